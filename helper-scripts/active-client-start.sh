@@ -4,17 +4,17 @@ git pull
 rm *.csv
 
 tmux new-session -s 'sequential-full-active-client' -d
-tmux send-keys -t 'sequential-full-active-client' 'mvn compile exec:java -Dexec.mainClass="de.uhh.Main" -Dexec.args="active-client --server-host 167.235.131.30 --server-port 8000  --bind-port 8000  --sequential --logfile sequential-full.csv"' Enter
+tmux send-keys -t 'sequential-full-active-client' 'mvn compile exec:java -Dexec.mainClass="de.uhh.Main" -Dexec.args="active-client --server-host 167.235.131.30 --own-id sequential-full-active --contact-id sequential-full-passive --server-port 8000  --bind-port 8000  --sequential --logfile sequential-full.csv --keepalive-interval 0"' Enter
 tmux new-session -s 'parallel-full-active-client' -d
-tmux send-keys -t 'parallel-full-active-client' 'mvn compile exec:java -Dexec.mainClass="de.uhh.Main" -Dexec.args="active-client --server-host 167.235.131.30 --server-port 9000  --bind-port 9000  --parallel   --logfile parallel-full.csv"' Enter
+tmux send-keys -t 'parallel-full-active-client' 'mvn compile exec:java -Dexec.mainClass="de.uhh.Main" -Dexec.args="active-client --server-host 167.235.131.30 --own-id parallel-full-active --contact-id parallel-full-passive --server-port 8000  --bind-port 9000  --parallel   --logfile parallel-full.csv --keepalive-interval 0"' Enter
 tmux new-session -s 'sequential-0rtt-active-client' -d
-tmux send-keys -t 'sequential-0rtt-active-client' 'mvn compile exec:java -Dexec.mainClass="de.uhh.Main" -Dexec.args="active-client --server-host 167.235.131.30 --server-port 10000 --bind-port 10000 --sequential --logfile sequential-0rtt.csv"' Enter
+tmux send-keys -t 'sequential-0rtt-active-client' 'mvn compile exec:java -Dexec.mainClass="de.uhh.Main" -Dexec.args="active-client --server-host 167.235.131.30 --own-id sequential-0rtt-active --contact-id sequential-0rtt-passive --server-port 8000  --bind-port 10000 --sequential --logfile sequential-0rtt.csv --keepalive-interval 0"' Enter
 tmux new-session -s 'parallel-0rtt-active-client' -d
-tmux send-keys -t 'parallel-0rtt-active-client' 'mvn compile exec:java -Dexec.mainClass="de.uhh.Main" -Dexec.args="active-client --server-host 167.235.131.30 --server-port 11000 --bind-port 11000 --parallel   --logfile parallel-0rtt.csv"' Enter
-#tmux new-session -d -s 'sequential-full-active-client' 'mvn compile exec:java -Dexec.mainClass="de.uhh.Main" -Dexec.args="active-client --server-host 167.235.131.30 --server-port 8000  --bind-port 8000  --sequential --logfile sequential-full.csv"'
-#tmux new-session -d -s 'parallel-full-active-client'   'mvn compile exec:java -Dexec.mainClass="de.uhh.Main" -Dexec.args="active-client --server-host 167.235.131.30 --server-port 9000  --bind-port 9000  --parallel   --logfile parallel-full.csv"'
-#tmux new-session -d -s 'sequential-0rtt-active-client' 'mvn compile exec:java -Dexec.mainClass="de.uhh.Main" -Dexec.args="active-client --server-host 167.235.131.30 --server-port 10000 --bind-port 10000 --sequential --logfile sequential-0rtt.csv"'
-#tmux new-session -d -s 'parallel-0rtt-active-client'   'mvn compile exec:java -Dexec.mainClass="de.uhh.Main" -Dexec.args="active-client --server-host 167.235.131.30 --server-port 11000 --bind-port 11000 --parallel   --logfile parallel-0rtt.csv"'
+tmux send-keys -t 'parallel-0rtt-active-client' 'mvn compile exec:java -Dexec.mainClass="de.uhh.Main" -Dexec.args="active-client --server-host 167.235.131.30 --own-id parallel-0rtt-active --contact-id parallel-0rtt-passive --server-port 8000  --bind-port 11000 --parallel   --logfile parallel-0rtt.csv --keepalive-interval 0"' Enter
+#tmux new-session -d -s 'sequential-full-active-client' 'mvn compile exec:java -Dexec.mainClass="de.uhh.Main" -Dexec.args="active-client --server-host 167.235.131.30 --own-id sequential-full-active --contact-id sequential-full-passive --server-port 8000  --bind-port 8000  --sequential --logfile sequential-full.csv"'
+#tmux new-session -d -s 'parallel-full-active-client'   'mvn compile exec:java -Dexec.mainClass="de.uhh.Main" -Dexec.args="active-client --server-host 167.235.131.30 --own-id parallel-full-active --contact-id parallel-full-passive --server-port 8000  --bind-port 9000  --parallel   --logfile parallel-full.csv"'
+#tmux new-session -d -s 'sequential-0rtt-active-client' 'mvn compile exec:java -Dexec.mainClass="de.uhh.Main" -Dexec.args="active-client --server-host 167.235.131.30 --own-id sequential-0rtt-active --contact-id sequential-0rtt-passive --server-port 8000  --bind-port 10000 --sequential --logfile sequential-0rtt.csv"'
+#tmux new-session -d -s 'parallel-0rtt-active-client'   'mvn compile exec:java -Dexec.mainClass="de.uhh.Main" -Dexec.args="active-client --server-host 167.235.131.30 --own-id parallel-0rtt-active --contact-id parallel-0rtt-passive --server-port 8000  --bind-port 11000 --parallel   --logfile parallel-0rtt.csv"'
 
 echo "Wait 30s to make sure active-clients are compiled and ready..."
 sleep 30 
@@ -0,0 +1,99 @@
+package de.uhh;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.AddressedEnvelope;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultAddressedEnvelope;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Encodes and decodes single control messages the way the pipeline does, but without the pipeline around the codec.
+ * Run with {@code -prof gc}: {@code gc.alloc.rate.norm} is what each message costs the allocator.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TlsHolePunchingCodecBenchmark {
+    private static final InetSocketAddress SENDER = new InetSocketAddress("192.0.2.1", 4433);
+    private static final InetSocketAddress RECIPIENT = new InetSocketAddress("192.0.2.2", 4433);
+    private final TlsHolePunchingCodec codec = new TlsHolePunchingCodec();
+    private final List<Object> out = new ArrayList<>();
+    private EmbeddedChannel channel;
+    private ChannelHandlerContext ctx;
+    private AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> reachabilityCheck;
+    private AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> forwardEndpoints;
+    private AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> connectionRequest;
+    private DatagramPacket encodedForwardEndpoints;
+
+    @Setup
+    public void setUp() {
+        channel = new EmbeddedChannel(codec);
+        ctx = channel.pipeline().context(codec);
+        reachabilityCheck = new DefaultAddressedEnvelope<>(ReachabilityCheck.INSTANCE, RECIPIENT, SENDER);
+        forwardEndpoints = new DefaultAddressedEnvelope<>(new ForwardEndpoints(SENDER), RECIPIENT, SENDER);
+        connectionRequest = new DefaultAddressedEnvelope<>(new ConnectionRequest("target-peer"), RECIPIENT, SENDER);
+        codec.encode(ctx, forwardEndpoints, out);
+        encodedForwardEndpoints = (DatagramPacket) out.remove(0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        encodedForwardEndpoints.release();
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public void encodeReachabilityCheck(final Blackhole blackhole) {
+        encode(reachabilityCheck, blackhole);
+    }
+
+    @Benchmark
+    public void encodeForwardEndpoints(final Blackhole blackhole) {
+        encode(forwardEndpoints, blackhole);
+    }
+
+    @Benchmark
+    public void encodeConnectionRequest(final Blackhole blackhole) {
+        encode(connectionRequest, blackhole);
+    }
+
+    @Benchmark
+    public void decodeForwardEndpoints(final Blackhole blackhole) throws Exception {
+        final ByteBuf content = encodedForwardEndpoints.content();
+        content.readerIndex(0);
+        codec.decode(ctx, encodedForwardEndpoints, out);
+        blackhole.consume(out.get(0));
+        out.clear();
+    }
+
+    private void encode(final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> msg,
+                        final Blackhole blackhole) {
+        codec.encode(ctx, msg, out);
+        blackhole.consume(out.get(0));
+        ReferenceCountUtil.release(out.get(0));
+        out.clear();
+    }
+}
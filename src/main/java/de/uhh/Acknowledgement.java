@@ -1,6 +1,11 @@
 package de.uhh;
 
 public class Acknowledgement implements TlsHolePunchingMessage {
+    public static final Acknowledgement INSTANCE = new Acknowledgement();
+
+    private Acknowledgement() {
+    }
+
     @Override
     public String toString() {
         return "Acknowledgement{}";
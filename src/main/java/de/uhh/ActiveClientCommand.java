@@ -1,31 +1,47 @@
 package de.uhh;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.AddressedEnvelope;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.DefaultAddressedEnvelope;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioDatagramChannel;
-import io.netty.handler.timeout.IdleStateEvent;
-import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.incubator.codec.quic.QuicChannel;
 import io.netty.incubator.codec.quic.QuicPacketType;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.incubator.codec.quic.QuicStreamType;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine.ArgGroup;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 
+import java.io.File;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.Set;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 @Command(
         name = "active-client",
@@ -35,16 +51,18 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 public class ActiveClientCommand implements Runnable {
     private static final Logger LOG = LoggerFactory.getLogger(ActiveClientCommand.class);
     public static final int IDLE_RESET_TIMEOUT = 10; // seconds
+    // a cached path is dropped after this many unanswered keepalives
+    static final int MISSED_KEEPALIVES = 3;
     @Option(
             names = { "--own-id" },
             defaultValue = "a"
     )
-    protected Character ownId;
+    protected String ownId;
     @Option(
             names = { "--contact-id" },
             defaultValue = "b"
     )
-    protected Character contactId;
+    protected String contactId;
     @Option(
             names = { "--bind-host" },
             defaultValue = "0.0.0.0"
@@ -60,41 +78,168 @@ public class ActiveClientCommand implements Runnable {
             defaultValue = "127.0.0.1"
     )
     protected String serverHost;
+    @Option(names = { "--server-host6" })
+    protected String serverHost6; // IPv6 address of the server if --server-host is an IPv4 address, same port
     @Option(
             names = { "--server-port" },
             defaultValue = "8012"
     )
     protected int serverPort;
+    @Option(
+            names = { "--server-secondary-port" },
+            defaultValue = "8013"
+    )
+    protected int serverSecondaryPort; // 0 disables the port delta discovery
+    @Option(
+            names = { "--register-interval" },
+            defaultValue = "30"
+    )
+    protected int registerInterval; // seconds, until the lifetime of our NAT mapping is known
+    @Option(
+            names = { "--max-register-interval" },
+            defaultValue = "60"
+    )
+    protected int maxRegisterInterval; // seconds, must be shorter than the server's peer ttl
+    @Option(names = "--no-lifetime-discovery")
+    protected boolean noLifetimeDiscovery;
     @ArgGroup
     private Mode mode;
+    @Option(names = "--implicit-connection-request")
+    protected boolean implicitConnectionRequest;
     @Option(
             names = { "--logfile" },
             defaultValue = "tls-hole-punching.csv"
     )
     protected String logfile;
+    @Option(
+            names = { "--log-format" },
+            defaultValue = "CSV"
+    )
+    protected CsvLogger.Format logFormat;
+    @Option(
+            names = { "--initial-rto" },
+            defaultValue = "200"
+    )
+    protected int initialRto; // milliseconds
+    @Option(
+            names = { "--max-retransmissions" },
+            defaultValue = "6"
+    )
+    protected int maxRetransmissions;
+    @Option(
+            names = { "--keepalive-interval" },
+            defaultValue = "15"
+    )
+    protected int keepaliveInterval; // seconds until the mapping lifetime is known, 0 disables the path cache
+    @Option(
+            names = { "--max-pending-bytes" },
+            defaultValue = "65536"
+    )
+    protected int maxPendingBytes; // per session, QUIC packets held back in sequential mode
+    @Option(names = "--no-host-candidates")
+    protected boolean noHostCandidates;
+    @Option(
+            names = { "--spray-ports" },
+            defaultValue = "16"
+    )
+    protected int sprayPorts; // predicted ports of the other client probed, 0 disables port prediction
+    @Option(
+            names = { "--spray-rate" },
+            defaultValue = "100"
+    )
+    protected int sprayRate; // probes per second
+    @Option(
+            names = { "--transport" },
+            defaultValue = "NIO"
+    )
+    protected DatagramTransport transport;
+    @Option(names = "--embedded")
+    protected boolean embedded; // accept TCP connections on the bind port and tunnel them over in-process QUIC
+    @Option(names = { "--trust-cert" })
+    protected File trustCert; // PEM, certificate of the embedded QUIC server. Required in embedded mode unless --insecure
+    @Option(names = "--insecure")
+    protected boolean insecure; // accept any certificate of the embedded QUIC server, for tests only
+    @Option(
+            names = { "--metrics-port" },
+            defaultValue = "0"
+    )
+    protected int metricsPort; // local Prometheus scrape endpoint, 0 disables it
+    @Option(
+            names = { "--flight-recorder" },
+            defaultValue = "4096"
+    )
+    protected int flightRecorderSlots; // datagrams kept per socket, 0 disables the flight recorder
+    @Option(names = { "--flight-recorder-dir" })
+    protected File flightRecorderDir; // failed hole punching dumps the flight recorder here. No dumps if unset
+    private final Metrics metrics = new Metrics("active");
+    private FlightRecorder flightRecorder;
+    private CsvLogger csvLogger;
+    // of the path to the rendezvous server. Sessions start from it
+    private RttEstimator serverRttEstimator;
     private InetSocketAddress serverEndpoint;
-    private InetSocketAddress otherClientEndpoint;
     private InetSocketAddress ownEndpoint;
 
     @Override
     public void run() {
         serverEndpoint = new InetSocketAddress(serverHost, serverPort);
+        if (serverHost6 != null && new InetSocketAddress(serverHost6, serverPort).isUnresolved()) {
+            throw new IllegalArgumentException("unable to resolve --server-host6 `" + serverHost6 + "`");
+        }
+        serverRttEstimator = new RttEstimator(MILLISECONDS.toNanos(initialRto));
 
-        final EventLoopGroup group = new NioEventLoopGroup(1);
+        if (embedded && trustCert == null && !insecure) {
+            throw new IllegalArgumentException("embedded mode requires --trust-cert, or --insecure to accept any certificate");
+        }
+        if (trustCert != null && insecure) {
+            throw new IllegalArgumentException("--trust-cert and --insecure are mutually exclusive");
+        }
+
+        final DatagramTransport transport = this.transport.orFallback();
+        final EventLoopGroup group = transport.newEventLoopGroup(1);
+        flightRecorder = flightRecorderSlots > 0 ? new FlightRecorder(flightRecorderSlots, flightRecorderDir) : null;
+        final MetricsEndpoint metricsEndpoint = MetricsEndpoint.start(metrics, flightRecorder, ActiveClientCommand.class.getSimpleName(), metricsPort);
+        csvLogger = new CsvLogger(logfile, logFormat);
         try {
-            final Bootstrap b = new Bootstrap()
-                    .group(group)
-                    .channel(NioDatagramChannel.class)
+            final Bootstrap b = transport.configure(new Bootstrap().group(group))
                     .handler(new ChannelInitializer<>() {
                         @Override
                         protected void initChannel(final Channel ch) {
                             final ChannelPipeline p = ch.pipeline();
-                            p.addLast(new IdleStateHandler(0, 0, IDLE_RESET_TIMEOUT));
+                            transport.initPipeline(p);
+                            p.addLast(new MetricsHandler(metrics));
+                            final QuicLoopback loopback = embedded ? new QuicLoopback() : null;
+                            if (embedded) {
+                                p.addLast(loopback.networkSide());
+                            }
+                            if (flightRecorder != null) {
+                                p.addLast(flightRecorder.newHandler());
+                            }
                             p.addLast(new TlsHolePunchingCodec());
                             p.addLast(new ActiveClientHandler(ActiveClientCommand.this));
+                            if (embedded) {
+                                p.addLast(loopback.quicSide());
+                                p.addLast(EmbeddedQuic.clientCodec(trustCert));
+                            }
                         }
                     });
             final Channel ch = b.bind(bindHost, bindPort).syncUninterruptibly().channel();
+            if (embedded) {
+                final Channel tcpChannel = new ServerBootstrap()
+                        .group(group)
+                        .channel(transport.serverSocketChannel())
+                        .childOption(ChannelOption.AUTO_READ, false)
+                        .childHandler(new ChannelInitializer<>() {
+                            private int virtualEndpoints;
+
+                            @Override
+                            protected void initChannel(final Channel tcp) {
+                                tcp.pipeline().addLast(new TunnelHandler(ch, EmbeddedQuic.virtualEndpoint(virtualEndpoints++)));
+                            }
+                        })
+                        .bind(bindHost, bindPort).syncUninterruptibly().channel();
+                ch.closeFuture().addListener(f -> tcpChannel.close());
+                System.out.println(ActiveClientCommand.class.getSimpleName() + " accepting TCP connections on `" + tcpChannel.localAddress() + "`.");
+            }
 
             // print configuration
             System.out.println(ActiveClientCommand.class.getSimpleName() + " has id `" + ownId + "`.");
@@ -107,28 +252,101 @@ public class ActiveClientCommand implements Runnable {
             ch.closeFuture().awaitUninterruptibly();
         }
         finally {
-            group.shutdownGracefully();
+            if (metricsEndpoint != null) {
+                metricsEndpoint.close();
+            }
+            if (flightRecorder != null) {
+                flightRecorder.close();
+            }
+            group.shutdownGracefully().syncUninterruptibly();
+            csvLogger.close();
+        }
+    }
+
+    private void punchFailed(final String reason) {
+        if (flightRecorder != null) {
+            flightRecorder.dumpOnFailure(reason);
+        }
+    }
+
+    /**
+     * Tunnels a TCP connection through its own QUIC connection of the embedded QUIC client. The TCP connection is
+     * read once the QUIC stream is open.
+     */
+    private static class TunnelHandler extends ChannelInboundHandlerAdapter {
+        private final Channel udpChannel;
+        // QUIC server as seen by the embedded QUIC client
+        private final InetSocketAddress quicEndpoint;
+        private QuicChannel quicChannel;
+
+        TunnelHandler(final Channel udpChannel,
+                      final InetSocketAddress quicEndpoint) {
+            this.udpChannel = udpChannel;
+            this.quicEndpoint = quicEndpoint;
+        }
+
+        @Override
+        public void channelActive(final ChannelHandlerContext ctx) {
+            final Channel tcp = ctx.channel();
+            LOG.trace("Tunnel TCP connection from `{}` via `{}`.", tcp.remoteAddress(), quicEndpoint);
+            QuicChannel.newBootstrap(udpChannel)
+                    .handler(EmbeddedQuic.CONNECTION_HANDLER)
+                    .remoteAddress(quicEndpoint)
+                    .connect()
+                    .addListener((Future<QuicChannel> connectFuture) -> {
+                        if (!connectFuture.isSuccess()) {
+                            LOG.warn("QUIC connection for `{}` failed: {}", tcp.remoteAddress(), connectFuture.cause().toString());
+                            tcp.close();
+                            return;
+                        }
+                        quicChannel = connectFuture.getNow();
+                        if (!tcp.isActive()) {
+                            quicChannel.close();
+                            return;
+                        }
+                        quicChannel.createStream(QuicStreamType.BIDIRECTIONAL, new StreamBridge(tcp)).addListener((Future<QuicStreamChannel> streamFuture) -> {
+                            if (streamFuture.isSuccess()) {
+                                ctx.pipeline().addLast(new StreamBridge(streamFuture.getNow()));
+                                tcp.config().setAutoRead(true);
+                            }
+                            else {
+                                tcp.close();
+                            }
+                        });
+                    });
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        public void channelInactive(final ChannelHandlerContext ctx) {
+            if (quicChannel != null) {
+                quicChannel.close();
+            }
+            ctx.fireChannelInactive();
         }
     }
 
     private static class ActiveClientHandler extends SimpleChannelInboundHandler<AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress>> {
-        private long holePunchTime;
-        private long holePunchedTime;
-        private int holePunchingSentMessages;
-        private int holePunchingReceivedMessages;
-        private boolean holePunchingAwaitResponse;
-        private int holePunchingRtt;
-        private long quicHandshakeTime;
-        private long quicHandshakedTime;
-        private int quicSentMessages;
-        private int quicReceivedMessages;
-        private boolean quicAwaitResponse;
-        private int quicRtt;
         private final ActiveClientCommand client;
-        private final QuicMessageHandler quicMessageHandler;
-        private long quicLastReceivedMessageTime;
-        private boolean completed;
-        private boolean doZeroRtt;
+        private final boolean sequential;
+        private final boolean racing;
+        // label of the phase metrics
+        private final String mode;
+        // QUIC packets relayed by the server replace the ConnectionRequest
+        private final boolean implicitConnectionRequest;
+        private final Map<InetSocketAddress, Session> sessionsByQuicClient = new HashMap<>();
+        private final Map<ByteBuf, Session> sessionsByConnectionId = new HashMap<>();
+        private final Map<InetSocketAddress, Set<Session>> sessionsByPeer = new HashMap<>();
+        private final Set<Session> requestedSessions = new LinkedHashSet<>();
+        // lengths of connection ids chosen by our QUIC clients, required to parse short header packets
+        private final BitSet connectionIdLengths = new BitSet();
+        // established paths to other clients, reused by new sessions without contacting the server
+        private final Map<String, PeerPath> pathsByPeerId = new HashMap<>();
+        private final Map<InetSocketAddress, PeerPath> pathsByEndpoint = new HashMap<>();
+        private final WriteBatch writeBatch = new WriteBatch();
+        private final PortPrediction portPrediction;
+        private List<InetSocketAddress> serverEndpoints;
+        private MappingLifetimeDiscovery lifetimeDiscovery;
 
         private enum State {
             INITIALIZED,
@@ -137,18 +355,24 @@ public class ActiveClientCommand implements Runnable {
             ACKNOWLEDGED // got acknowledgement
         }
 
-        private State state = State.INITIALIZED;
-        private InetSocketAddress quicClientEndpoint;
-
         public ActiveClientHandler(final ActiveClientCommand client) {
             this.client = client;
-            if (client.mode == null || client.mode.sequential) {
+            this.portPrediction = new PortPrediction(client.serverEndpoint, client.serverSecondaryPort, client.serverRttEstimator);
+            this.sequential = client.mode == null || client.mode.sequential;
+            this.racing = client.mode != null && client.mode.racing;
+            this.mode = sequential ? "sequential" : racing ? "racing" : "parallel";
+            if (sequential) {
                 LOG.trace("Sequential mode.");
-                quicMessageHandler = new SequentialQuicMessageHandler();
+            }
+            else if (racing) {
+                LOG.trace("Racing mode.");
             }
             else {
                 LOG.trace("Parallel mode.");
-                quicMessageHandler = new ParallelQuicMessageHandler();
+            }
+            this.implicitConnectionRequest = client.implicitConnectionRequest && !sequential;
+            if (client.implicitConnectionRequest && sequential) {
+                LOG.warn("Sequential mode does not relay QUIC packets. Send explicit connection requests.");
             }
         }
 
@@ -156,269 +380,598 @@ public class ActiveClientCommand implements Runnable {
         public void channelActive(final ChannelHandlerContext ctx) {
             ctx.fireChannelActive();
 
-            ctx.executor().scheduleWithFixedDelay(() -> {
-                LOG.trace("Register at rendezvous server `{}`.", client.serverEndpoint);
-                ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new Register(client.ownId), client.serverEndpoint));
-            }, 0, 30_000, MILLISECONDS);
+            // register over each address family, so that the server can choose the path for our sessions
+            serverEndpoints = DualStack.serverEndpoints(client.serverEndpoint, client.serverHost6, (InetSocketAddress) ctx.channel().localAddress());
+            // registrations keep our NAT mapping alive, as rarely as its lifetime permits
+            lifetimeDiscovery = new MappingLifetimeDiscovery(client.serverEndpoint, client.registerInterval, client.maxRegisterInterval);
+            if (!client.noLifetimeDiscovery) {
+                lifetimeDiscovery.start(ctx);
+            }
+            registerPeriodically(ctx);
+            ctx.executor().scheduleWithFixedDelay(this::expireSessions, 1_000, 1_000, MILLISECONDS);
+            ctx.executor().scheduleWithFixedDelay(() -> keepPathsAlive(ctx), 1_000, 1_000, MILLISECONDS);
+        }
+
+        private void registerPeriodically(final ChannelHandlerContext ctx) {
+            register(ctx);
+            portPrediction.discover(ctx);
+            ctx.executor().schedule(() -> registerPeriodically(ctx), lifetimeDiscovery.keepaliveInterval(), SECONDS);
+        }
+
+        private void register(final ChannelHandlerContext ctx) {
+            // gathered anew, as interfaces may have changed
+            final List<InetSocketAddress> candidates = client.noHostCandidates ? List.of() : HostCandidates.gather((InetSocketAddress) ctx.channel().localAddress());
+            for (final InetSocketAddress serverEndpoint : serverEndpoints) {
+                // port delta has been discovered over the primary endpoint only
+                final int portDelta = serverEndpoint.equals(client.serverEndpoint) ? portPrediction.portDelta() : 0;
+                LOG.trace("Register at rendezvous server `{}` with candidates `{}` and port delta {}.", serverEndpoint, candidates, portDelta);
+                ctx.write(new DefaultAddressedEnvelope<>(new Register(client.ownId, implicitConnectionRequest ? client.contactId : null, candidates, portDelta), serverEndpoint));
+            }
+            ctx.flush();
         }
 
         @Override
-        public void userEventTriggered(final ChannelHandlerContext ctx,
-                                       final Object evt) {
-            if (evt instanceof IdleStateEvent) {
-                if (state != State.INITIALIZED || !quicMessageHandler.isEmpty()) {
-                    LOG.info("No read for {}s. Reset state.", IDLE_RESET_TIMEOUT);
-                }
-                state = State.INITIALIZED;
-                client.otherClientEndpoint = null;
-                quicMessageHandler.clear();
-                holePunchTime = 0;
-                holePunchedTime = 0;
-                holePunchingSentMessages = 0;
-                holePunchingReceivedMessages = 0;
-                holePunchingAwaitResponse = false;
-                holePunchingRtt = 0;
-                quicHandshakedTime = 0;
-                quicHandshakeTime = 0;
-                quicSentMessages = 0;
-                quicReceivedMessages = 0;
-                quicAwaitResponse = false;
-                quicRtt = 0;
-                quicLastReceivedMessageTime = 0;
-                completed = false;
-                doZeroRtt = false;
+        public void channelInactive(final ChannelHandlerContext ctx) {
+            for (final Session session : new ArrayList<>(sessionsByQuicClient.values())) {
+                session.close();
             }
-            else {
-                ctx.fireUserEventTriggered(evt);
+            lifetimeDiscovery.close();
+            ctx.fireChannelInactive();
+        }
+
+        private void expireSessions() {
+            final long deadline = System.currentTimeMillis() - SECONDS.toMillis(IDLE_RESET_TIMEOUT);
+            final Iterator<Session> iterator = sessionsByQuicClient.values().iterator();
+            while (iterator.hasNext()) {
+                final Session session = iterator.next();
+                if (session.lastReadTime < deadline) {
+                    LOG.info("No read from/for QUIC client `{}` for {}s. Remove session.", session.quicClientEndpoint, IDLE_RESET_TIMEOUT);
+                    iterator.remove();
+                    session.close();
+                }
+            }
+        }
+
+        // paths live in the same NAT mapping as our registrations, the configured interval applies until its lifetime is known
+        private int keepaliveInterval() {
+            return client.keepaliveInterval > 0 && lifetimeDiscovery.isLifetimeKnown() ? lifetimeDiscovery.keepaliveInterval() : client.keepaliveInterval;
+        }
+
+        private void keepPathsAlive(final ChannelHandlerContext ctx) {
+            final long now = System.currentTimeMillis();
+            final int keepaliveInterval = keepaliveInterval();
+            final Iterator<PeerPath> iterator = pathsByEndpoint.values().iterator();
+            while (iterator.hasNext()) {
+                final PeerPath path = iterator.next();
+                if (now - path.lastReadTime > SECONDS.toMillis((long) keepaliveInterval * MISSED_KEEPALIVES)) {
+                    LOG.info("Path to `{}` got no answer to {} keepalive(s). Remove path.", path.endpoint, MISSED_KEEPALIVES);
+                    iterator.remove();
+                    pathsByPeerId.values().remove(path);
+                }
+                else if (now - path.lastKeepaliveTime >= SECONDS.toMillis(keepaliveInterval)) {
+                    LOG.trace("Send keepalive to `{}`.", path.endpoint);
+                    path.lastKeepaliveTime = now;
+                    ctx.writeAndFlush(new DefaultAddressedEnvelope<>(ReachabilityCheck.INSTANCE, path.endpoint));
+                }
+            }
+        }
+
+        private void cachePath(final String peerId, final InetSocketAddress endpoint) {
+            if (client.keepaliveInterval <= 0) {
+                return;
+            }
+            final PeerPath previous = pathsByPeerId.get(peerId);
+            if (previous != null && !previous.endpoint.equals(endpoint)) {
+                pathsByEndpoint.remove(previous.endpoint);
             }
+            final PeerPath path = pathsByEndpoint.computeIfAbsent(endpoint, PeerPath::new);
+            path.lastReadTime = System.currentTimeMillis();
+            pathsByPeerId.put(peerId, path);
         }
 
         @Override
         protected void channelRead0(final ChannelHandlerContext ctx,
                                     final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> msg) {
             LOG.trace("Got `{}` from `{}`.", msg.content(), msg.sender());
-            switch (state) {
-                case INITIALIZED:
-                    if (client.serverEndpoint.equals(msg.sender())) {
-                        // from server
-                        LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
+            if (msg.content() instanceof BindingResponse) {
+                // from server, on either port
+                if (portPrediction.bindingResponse(msg.sender(), (BindingResponse) msg.content())) {
+                    register(ctx);
+                }
+            }
+            else if (serverEndpoints.contains(msg.sender())) {
+                // from server
+                if (msg.content() instanceof ForwardEndpoints) {
+                    // all requests name the same contact, so the answer is valid for every requesting session
+                    if (requestedSessions.isEmpty()) {
+                        LOG.trace("No session waits for endpoints. Drop {}.", msg.content());
                     }
-                    else if (Objects.equals(client.otherClientEndpoint, msg.sender())) {
-                        // from other client
-                        LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
+                    for (final Session session : new ArrayList<>(requestedSessions)) {
+                        session.channelRead(ctx, msg);
+                    }
+                }
+                else {
+                    LOG.error("Got unexpected message {}.", msg.content());
+                }
+            }
+            else if (sessionsByPeer.containsKey(msg.sender()) || pathsByEndpoint.containsKey(msg.sender())) {
+                // from other client
+                final PeerPath path = pathsByEndpoint.get(msg.sender());
+                if (path != null) {
+                    path.lastReadTime = System.currentTimeMillis();
+                }
+                if (msg.content() instanceof QuicMessage) {
+                    final Session session = sessionOf((QuicMessage) msg.content(), sessionsByPeer.get(msg.sender()));
+                    if (session != null) {
+                        session.channelRead(ctx, msg);
                     }
                     else {
-                        // QUIC client
-                        if (msg.content() instanceof QuicMessage) {
-                            state = State.REQUESTED;
-                            quicClientEndpoint = msg.sender();
-                            quicMessageHandler.clear();
-                            // enqueue write
-                            holePunchTime = System.currentTimeMillis();
-                            LOG.debug("Got QUIC connection attempt from {}.", msg.sender());
-                            LOG.trace("No direct connection present. Request endpoints from rendezvous server.");
-                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new ConnectionRequest(), client.serverEndpoint));
-                            holePunchingAwaitResponse = true;
-                            holePunchingSentMessages++;
-                            quicMessageHandler.channelRead(ctx, state, msg, client, ActiveClientHandler.this);
+                        LOG.error("Got message {} for unknown session.", msg.content());
+                    }
+                }
+                else {
+                    // hole punching messages are exchanged per peer, so answer them only once
+                    final List<Session> peerSessions = new ArrayList<>(sessionsByPeer.getOrDefault(msg.sender(), Set.of()));
+                    if (msg.content() instanceof ReachabilityCheck) {
+                        LOG.trace("Confirm check.");
+                        if (peerSessions.stream().anyMatch(session -> session.state == State.CHECKING)) {
+                            // one datagram, so that acknowledgement and own check are not lost independently
+                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new Bundle(Acknowledgement.INSTANCE, ReachabilityCheck.INSTANCE), msg.sender()));
                         }
                         else {
-                            LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
+                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(Acknowledgement.INSTANCE, msg.sender()));
                         }
                     }
-                    break;
-                case REQUESTED:
-                    if (client.serverEndpoint.equals(msg.sender())) {
-                        // from server
-                        if (msg.content() instanceof ForwardEndpoints) {
-                            state = State.CHECKING;
-                            if (holePunchingAwaitResponse) {
-                                holePunchingAwaitResponse = false;
-                                holePunchingRtt++;
-                            }
-                            holePunchingReceivedMessages++;
-                            client.otherClientEndpoint = ((ForwardEndpoints) msg.content()).getEndpoint();
-                            LOG.trace("Got endpoints. Perform reachability checks to `{}`.", client.otherClientEndpoint);
-                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new ReachabilityCheck(), client.otherClientEndpoint));
-                            holePunchingSentMessages++;
-                            holePunchingAwaitResponse = true;
-                        }
-                        else {
-                            LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
+                    for (final Session session : peerSessions) {
+                        // established sessions ignore them, they must not keep idle sessions alive
+                        if (session.state != State.ACKNOWLEDGED) {
+                            session.channelRead(ctx, msg);
                         }
                     }
-                    else if (Objects.equals(client.otherClientEndpoint, msg.sender())) {
-                        // from other client
-                        LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
+                }
+            }
+            else {
+                // QUIC client
+                Session session = sessionsByQuicClient.get(msg.sender());
+                if (session == null) {
+                    if (!(msg.content() instanceof QuicMessage)) {
+                        LOG.error("Got unexpected message {} from `{}`.", msg.content(), msg.sender());
+                        return;
                     }
-                    else {
-                        // QUIC client
-                        if (msg.content() instanceof QuicMessage) {
-                            checkComplete(ctx, msg);
-                            LOG.trace("Waiting for endpoints. Enqueue write.");
-                            quicMessageHandler.channelRead(ctx, state, msg, client, ActiveClientHandler.this);
-                        }
-                        else {
-                            LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
-                        }
+                    session = new Session(msg.sender());
+                    sessionsByQuicClient.put(msg.sender(), session);
+                }
+                if (msg.content() instanceof QuicMessage) {
+                    session.addConnectionId(((QuicMessage) msg.content()).getSourceConnectionId());
+                }
+                session.channelRead(ctx, msg);
+            }
+        }
+
+        @Override
+        public void channelReadComplete(final ChannelHandlerContext ctx) {
+            writeBatch.flush(ctx);
+            ctx.fireChannelReadComplete();
+        }
+
+        /**
+         * Looks up the session a QUIC packet sent to one of our QUIC clients belongs to.
+         */
+        private Session sessionOf(final QuicMessage msg, final Set<Session> peerSessions) {
+            if (msg.getType() == QuicPacketType.SHORT) {
+                for (int length = connectionIdLengths.nextSetBit(0); length >= 0; length = connectionIdLengths.nextSetBit(length + 1)) {
+                    final ByteBuf dcid = msg.getDestinationConnectionId(length);
+                    final Session session = dcid != null ? sessionsByConnectionId.get(dcid) : null;
+                    if (session != null) {
+                        return session;
                     }
-                    break;
-                case CHECKING:
-                    if (client.serverEndpoint.equals(msg.sender())) {
-                        // from server
-                        LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
+                }
+            }
+            else {
+                final Session session = sessionsByConnectionId.get(msg.getDestinationConnectionId(0));
+                if (session != null) {
+                    return session;
+                }
+            }
+
+            // connection id unknown (e.g. issued within encrypted frames). unambiguous if only one session uses this peer
+            if (peerSessions != null && peerSessions.size() == 1) {
+                return peerSessions.iterator().next();
+            }
+            return null;
+        }
+
+        private class Session {
+            private final SessionTimeline timeline = new SessionTimeline();
+            private int holePunchingSentMessages;
+            private int holePunchingReceivedMessages;
+            private boolean holePunchingAwaitResponse;
+            private int holePunchingRtt;
+            private int quicSentMessages;
+            private int quicReceivedMessages;
+            private boolean quicAwaitResponse;
+            private int quicRtt;
+            private final QuicMessageHandler quicMessageHandler;
+            private final Retransmitter retransmitter;
+            // of the path to the other client, set once the endpoints are known
+            private RttEstimator rttEstimator;
+            private final ProbeSprayer sprayer;
+            private final List<ByteBuf> connectionIds = new ArrayList<>();
+            private long quicLastReceivedMessageTime;
+            private long lastReadTime;
+            // nanoTime of the packet being read
+            private long readTime;
+            private boolean completed;
+            private boolean doZeroRtt;
+            private State state = State.INITIALIZED;
+            private final InetSocketAddress quicClientEndpoint;
+            // endpoints the other client may answer from, including predicted ones
+            private List<InetSocketAddress> otherClientCandidates = List.of();
+            // candidate that has been acknowledged first, or the one seen by the server until then
+            private InetSocketAddress otherClientEndpoint;
+        
+            Session(final InetSocketAddress quicClientEndpoint) {
+                this.quicClientEndpoint = quicClientEndpoint;
+                this.retransmitter = new Retransmitter(client.maxRetransmissions, () -> client.punchFailed("Hole punching for QUIC client `" + quicClientEndpoint + "` failed"));
+                // probes each predicted endpoint as often as the candidates
+                this.sprayer = new ProbeSprayer(client.sprayRate, client.maxRetransmissions + 1);
+                if (sequential) {
+                    this.quicMessageHandler = new SequentialQuicMessageHandler(client.maxPendingBytes);
+                }
+                else if (racing) {
+                    this.quicMessageHandler = new RacingQuicMessageHandler();
+                }
+                else {
+                    this.quicMessageHandler = new ParallelQuicMessageHandler();
+                }
+            }
+
+            void addConnectionId(final ByteBuf connectionId) {
+                if (connectionId == null || !connectionId.isReadable() || sessionsByConnectionId.get(connectionId) == this) {
+                    return;
+                }
+                final ByteBuf key = Unpooled.copiedBuffer(connectionId);
+                LOG.trace("QUIC client `{}` uses connection id {}.", quicClientEndpoint, ByteBufUtil.hexDump(key));
+                final Session previous = sessionsByConnectionId.put(key, this);
+                if (previous != null) {
+                    previous.connectionIds.remove(key);
+                }
+                connectionIds.add(key);
+                connectionIdLengths.set(key.readableBytes());
+            }
+
+            void forward(final ChannelHandlerContext ctx,
+                         final TlsHolePunchingMessage msg,
+                         final InetSocketAddress recipient) {
+                timeline.sent(msg, recipient);
+                // msg is released after the read
+                writeBatch.write(ctx, new DefaultAddressedEnvelope<>(ReferenceCountUtil.retain(msg), recipient));
+            }
+
+            void close() {
+                retransmitter.cancel();
+                sprayer.cancel();
+                quicMessageHandler.clear();
+                sessionsByQuicClient.remove(quicClientEndpoint, this);
+                requestedSessions.remove(this);
+                for (final ByteBuf connectionId : connectionIds) {
+                    sessionsByConnectionId.remove(connectionId, this);
+                }
+                connectionIds.clear();
+                for (final InetSocketAddress candidate : otherClientCandidates) {
+                    final Set<Session> peerSessions = sessionsByPeer.get(candidate);
+                    if (peerSessions != null && peerSessions.remove(this) && peerSessions.isEmpty()) {
+                        sessionsByPeer.remove(candidate);
                     }
-                    else if (Objects.equals(client.otherClientEndpoint, msg.sender())) {
-                        // from other client
-                        if (msg.content() instanceof ReachabilityCheck) {
-                            LOG.trace("Confirm check.");
-                            holePunchingReceivedMessages++;
-                            holePunchingSentMessages++;
-                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new Acknowledgement(), client.otherClientEndpoint));
-                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new ReachabilityCheck(), client.otherClientEndpoint));
+                }
+            }
+
+            private void setOtherClientCandidates(final List<InetSocketAddress> candidates) {
+                // a predicted endpoint may equal a forwarded one
+                otherClientCandidates = new ArrayList<>(new LinkedHashSet<>(candidates));
+                otherClientEndpoint = otherClientCandidates.get(0);
+                for (final InetSocketAddress candidate : otherClientCandidates) {
+                    sessionsByPeer.computeIfAbsent(candidate, k -> new HashSet<>()).add(this);
+                }
+            }
+
+            void channelRead(final ChannelHandlerContext ctx,
+                             final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> msg) {
+                lastReadTime = System.currentTimeMillis();
+                readTime = timeline.received(msg.content(), msg.sender());
+                switch (state) {
+                    case INITIALIZED:
+                        if (serverEndpoints.contains(msg.sender())) {
+                            // from server
+                            LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
                         }
-                        else if (msg.content() instanceof Acknowledgement) {
-                            LOG.trace("Got acknowledgement.");
-                            holePunchingReceivedMessages++;
-                            if (holePunchingAwaitResponse) {
-                                holePunchingAwaitResponse = false;
-                                holePunchingRtt++;
+                        else if (otherClientCandidates.contains(msg.sender())) {
+                            // from other client
+                            LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
+                        }
+                        else {
+                            // QUIC client
+                            if (msg.content() instanceof QuicMessage && pathsByPeerId.containsKey(client.contactId)) {
+                                state = State.ACKNOWLEDGED;
+                                setOtherClientCandidates(List.of(pathsByPeerId.get(client.contactId).endpoint));
+                                // no hole punching required
+                                timeline.reach(SessionTimeline.Phase.HOLE_PUNCHING_STARTED, readTime);
+                                timeline.reach(SessionTimeline.Phase.HOLE_PUNCHED, readTime);
+                                timeline.reach(SessionTimeline.Phase.QUIC_HANDSHAKE_STARTED, readTime);
+                                LOG.debug("Got QUIC connection attempt from {}.", msg.sender());
+                                LOG.trace("Direct connection to `{}` present. Redirect {} to PassiveClient.", otherClientEndpoint, msg);
+                                quicSentMessages++;
+                                checkComplete(ctx, msg);
+                                quicAwaitResponse = true;
+                                forward(ctx, msg.content(), otherClientEndpoint);
+                            }
+                            else if (msg.content() instanceof QuicMessage) {
+                                state = State.REQUESTED;
+                                requestedSessions.add(this);
+                                // enqueue write
+                                timeline.reach(SessionTimeline.Phase.HOLE_PUNCHING_STARTED, readTime);
+                                LOG.debug("Got QUIC connection attempt from {}.", msg.sender());
+                                LOG.trace("No direct connection present. Request endpoints from rendezvous server.");
+                                final Runnable connectionRequest = () -> {
+                                    final ConnectionRequest request = new ConnectionRequest(client.contactId);
+                                    timeline.sent(request, client.serverEndpoint);
+                                    ctx.writeAndFlush(new DefaultAddressedEnvelope<>(request, client.serverEndpoint));
+                                    holePunchingSentMessages++;
+                                };
+                                if (implicitConnectionRequest) {
+                                    // relayed QUIC packet is the request. Send an explicit one if it got lost
+                                    retransmitter.startDeferred(ctx.executor(), client.serverRttEstimator, connectionRequest);
+                                }
+                                else {
+                                    retransmitter.start(ctx.executor(), client.serverRttEstimator, connectionRequest);
+                                }
+                                holePunchingAwaitResponse = true;
+                                quicMessageHandler.channelRead(ctx, state, msg, client, this);
+                            }
+                            else {
+                                LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
                             }
-                            state = State.ACKNOWLEDGED;
-                            checkComplete(ctx, msg);
                         }
-                        else if (msg.content() instanceof QuicMessage) {
-                            if (quicHandshakedTime == 0) {
-                                if (quicAwaitResponse) {
-                                    quicAwaitResponse = false;
-                                    quicRtt++;
+                        break;
+                    case REQUESTED:
+                        if (serverEndpoints.contains(msg.sender())) {
+                            // from server
+                            if (msg.content() instanceof ForwardEndpoints) {
+                                state = State.CHECKING;
+                                requestedSessions.remove(this);
+                                if (holePunchingAwaitResponse) {
+                                    holePunchingAwaitResponse = false;
+                                    holePunchingRtt++;
                                 }
+                                holePunchingReceivedMessages++;
+                                retransmitter.acknowledged();
+                                timeline.reach(SessionTimeline.Phase.ENDPOINTS_RECEIVED, readTime);
+                                final ForwardEndpoints endpoints = (ForwardEndpoints) msg.content();
+                                final List<InetSocketAddress> predicted = client.sprayPorts > 0 ? PortPrediction.predict(endpoints.getEndpoint(), endpoints.getPortDelta(), client.sprayPorts) : List.of();
+                                final List<InetSocketAddress> candidates = new ArrayList<>(endpoints.getEndpoints());
+                                candidates.addAll(predicted);
+                                setOtherClientCandidates(candidates);
+                                LOG.trace("Got endpoints. Perform reachability checks to `{}`.", endpoints.getEndpoints());
+                                rttEstimator = new RttEstimator(client.serverRttEstimator);
+                                // all candidates are checked in parallel, the first acknowledged one becomes the path
+                                retransmitter.start(ctx.executor(), rttEstimator, () -> {
+                                    for (final InetSocketAddress candidate : endpoints.getEndpoints()) {
+                                        timeline.sent(ReachabilityCheck.INSTANCE, candidate);
+                                        ctx.write(new DefaultAddressedEnvelope<>(ReachabilityCheck.INSTANCE, candidate));
+                                        holePunchingSentMessages++;
+                                    }
+                                    ctx.flush();
+                                });
+                                if (!predicted.isEmpty()) {
+                                    // other client's NAT maps endpoint-dependently. Our checks open our NAT for the
+                                    // mapping its checks to us get, one of the predicted endpoints
+                                    LOG.trace("Spray probes to predicted endpoints `{}`.", predicted);
+                                    sprayer.start(ctx.executor(), predicted, endpoint -> {
+                                        timeline.sent(ReachabilityCheck.INSTANCE, endpoint);
+                                        ctx.writeAndFlush(new DefaultAddressedEnvelope<>(ReachabilityCheck.INSTANCE, endpoint));
+                                        holePunchingSentMessages++;
+                                    });
+                                }
+                                holePunchingAwaitResponse = true;
+                            }
+                            else {
+                                LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
                             }
-                            quicReceivedMessages++;
-                            checkComplete(ctx, msg);
-                            LOG.trace("Redirect {} to QUIC client {}.", msg, quicClientEndpoint);
-                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(msg.content(), quicClientEndpoint));
                         }
-                        else {
+                        else if (otherClientCandidates.contains(msg.sender())) {
+                            // from other client
                             LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
                         }
-                    }
-                    else {
-                        // QUIC client
-                        if (msg.content() instanceof QuicMessage) {
-                            checkComplete(ctx, msg);
-                            LOG.trace("Waiting for acknowledgement. Enqueue write.");
-                            quicMessageHandler.channelRead(ctx, state, msg, client, ActiveClientHandler.this);
-                        }
                         else {
-                            LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
-                        }
-                    }
-                    break;
-                case ACKNOWLEDGED:
-                    if (client.serverEndpoint.equals(msg.sender())) {
-                        // from server
-                        LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
-                    }
-                    else if (Objects.equals(client.otherClientEndpoint, msg.sender())) {
-                        // from other client
-                        if (msg.content() instanceof ReachabilityCheck) {
-                            LOG.trace("Confirm check.");
-                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new Acknowledgement(), client.otherClientEndpoint));
+                            // QUIC client
+                            if (msg.content() instanceof QuicMessage) {
+                                checkComplete(ctx, msg);
+                                LOG.trace("Waiting for endpoints. Enqueue write.");
+                                quicMessageHandler.channelRead(ctx, state, msg, client, this);
+                            }
+                            else {
+                                LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
+                            }
                         }
-                        else if (msg.content() instanceof Acknowledgement) {
-                            // ignore
+                        break;
+                    case CHECKING:
+                        if (serverEndpoints.contains(msg.sender())) {
+                            // from server
+                            LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
                         }
-                        else if (msg.content() instanceof QuicMessage) {
-                            if (quicHandshakedTime == 0) {
-                                if (quicAwaitResponse) {
-                                    quicAwaitResponse = false;
-                                    quicRtt++;
+                        else if (otherClientCandidates.contains(msg.sender())) {
+                            // from other client
+                            if (msg.content() instanceof ReachabilityCheck) {
+                                // confirmed by handler
+                                holePunchingReceivedMessages++;
+                                holePunchingSentMessages++;
+                            }
+                            else if (msg.content() instanceof Acknowledgement) {
+                                LOG.trace("Got acknowledgement from `{}`.", msg.sender());
+                                otherClientEndpoint = msg.sender();
+                                holePunchingReceivedMessages++;
+                                retransmitter.acknowledged();
+                                sprayer.cancel();
+                                if (holePunchingAwaitResponse) {
+                                    holePunchingAwaitResponse = false;
+                                    holePunchingRtt++;
+                                }
+                                state = State.ACKNOWLEDGED;
+                                cachePath(client.contactId, otherClientEndpoint);
+                                checkComplete(ctx, msg);
+                            }
+                            else if (msg.content() instanceof QuicMessage) {
+                                if (!timeline.hasReached(SessionTimeline.Phase.QUIC_HANDSHAKED)) {
+                                    if (quicAwaitResponse) {
+                                        quicAwaitResponse = false;
+                                        quicRtt++;
+                                    }
                                 }
+                                quicReceivedMessages++;
+                                checkComplete(ctx, msg);
+                                LOG.trace("Redirect {} to QUIC client {}.", msg, quicClientEndpoint);
+                                forward(ctx, msg.content(), quicClientEndpoint);
+                            }
+                            else {
+                                LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
                             }
-                            quicReceivedMessages++;
-                            checkComplete(ctx, msg);
-                            LOG.trace("Redirect {} to QUIC client {}.", msg, quicClientEndpoint);
-                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(msg.content(), quicClientEndpoint));
                         }
                         else {
+                            // QUIC client
+                            if (msg.content() instanceof QuicMessage) {
+                                checkComplete(ctx, msg);
+                                LOG.trace("Waiting for acknowledgement. Enqueue write.");
+                                quicMessageHandler.channelRead(ctx, state, msg, client, this);
+                            }
+                            else {
+                                LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
+                            }
+                        }
+                        break;
+                    case ACKNOWLEDGED:
+                        if (serverEndpoints.contains(msg.sender())) {
+                            // from server
                             LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
                         }
-                    }
-                    else {
-                        // from QUIC client
-                        if (msg.content() instanceof QuicMessage) {
-                            quicSentMessages++;
-                            checkComplete(ctx, msg);
-                            quicAwaitResponse = true;
-                            LOG.trace("Redirect {} to PassiveClient {}.", msg, client.otherClientEndpoint);
-                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(msg.content(), client.otherClientEndpoint));
+                        else if (otherClientCandidates.contains(msg.sender())) {
+                            // from other client
+                            if (msg.content() instanceof ReachabilityCheck || msg.content() instanceof Acknowledgement) {
+                                // ignore, checks are confirmed by handler
+                            }
+                            else if (msg.content() instanceof QuicMessage) {
+                                if (!timeline.hasReached(SessionTimeline.Phase.QUIC_HANDSHAKED)) {
+                                    if (quicAwaitResponse) {
+                                        quicAwaitResponse = false;
+                                        quicRtt++;
+                                    }
+                                }
+                                quicReceivedMessages++;
+                                checkComplete(ctx, msg);
+                                LOG.trace("Redirect {} to QUIC client {}.", msg, quicClientEndpoint);
+                                forward(ctx, msg.content(), quicClientEndpoint);
+                            }
+                            else {
+                                LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
+                            }
                         }
                         else {
-                            LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
+                            // from QUIC client
+                            if (msg.content() instanceof QuicMessage) {
+                                quicSentMessages++;
+                                checkComplete(ctx, msg);
+                                quicAwaitResponse = true;
+                                LOG.trace("Redirect {} to PassiveClient {}.", msg, otherClientEndpoint);
+                                forward(ctx, msg.content(), otherClientEndpoint);
+                            }
+                            else {
+                                LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
+                            }
                         }
-                    }
-                    break;
+                        break;
+                }
             }
-        }
 
-        private void checkComplete(final ChannelHandlerContext ctx,
-                                   final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> msg) {
-            if (msg.content() instanceof QuicMessage) {
-                if (quicHandshakedTime == 0) {
-                    final QuicPacketType type = ((QuicMessage) msg.content()).getType();
-                    if (type == QuicPacketType.ZERO_RTT) {
-                        final long currentTimeMillis = System.currentTimeMillis();
-                        quicHandshakeTime = currentTimeMillis;
-                        quicHandshakedTime = currentTimeMillis;
-                        LOG.debug("0-RTT was sent. QUIC handshake is done.");
+            private void checkComplete(final ChannelHandlerContext ctx,
+                                       final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> msg) {
+                if (msg.content() instanceof QuicMessage) {
+                    if (!timeline.hasReached(SessionTimeline.Phase.QUIC_HANDSHAKED)) {
+                        final QuicPacketType type = ((QuicMessage) msg.content()).getType();
+                        if (type == QuicPacketType.ZERO_RTT) {
+                            timeline.reach(SessionTimeline.Phase.QUIC_HANDSHAKE_STARTED, readTime);
+                            timeline.reach(SessionTimeline.Phase.QUIC_HANDSHAKED, readTime);
+                            LOG.debug("0-RTT was sent. QUIC handshake is done.");
+                        }
+                        else if (type == QuicPacketType.SHORT) {
+                            // got first payload, handshake was done in previous message
+                            timeline.reach(SessionTimeline.Phase.QUIC_HANDSHAKED, quicLastReceivedMessageTime);
+                            LOG.debug("Got first QUIC payload. QUIC handshake done since previous message.");
+                            quicSentMessages -= 1; // remove current message, handshake was done in previous message
+                        }
+                        quicLastReceivedMessageTime = readTime;
                     }
-                    else if (type == QuicPacketType.SHORT) {
-                        // got first payload, handshake was done in previous message
-                        quicHandshakedTime = quicLastReceivedMessageTime;
-                        LOG.debug("Got first QUIC payload. QUIC handshake done since previous message.");
-                        quicSentMessages -= 1; // remove current message, handshake was done in previous message
+                }
+                else {
+                    if (!timeline.hasReached(SessionTimeline.Phase.HOLE_PUNCHED)) {
+                        if (msg.content() instanceof Acknowledgement) {
+                            timeline.reach(SessionTimeline.Phase.HOLE_PUNCHED, readTime);
+                            LOG.debug("Hole Punching done.");
+                            quicMessageHandler.holePunched(ctx, client, this);
+                        }
                     }
-                    quicLastReceivedMessageTime = System.currentTimeMillis();
                 }
-            }
-            else {
-                if (holePunchedTime == 0) {
-                    if (msg.content() instanceof Acknowledgement) {
-                        holePunchedTime = System.currentTimeMillis();
-                        LOG.debug("Hole Punching done.");
-                        quicMessageHandler.holePunched(ctx, client, ActiveClientHandler.this);
+
+                if (!completed && timeline.hasReached(SessionTimeline.Phase.QUIC_HANDSHAKED) && timeline.hasReached(SessionTimeline.Phase.HOLE_PUNCHED)) {
+                    completed = true;
+                    // nanoseconds since hole punching started
+                    final long holePunchingEnd = timeline.offset(SessionTimeline.Phase.HOLE_PUNCHED);
+                    final long quicHandshakeStart = timeline.offset(SessionTimeline.Phase.QUIC_HANDSHAKE_STARTED);
+                    final long quicHandshakeEnd = timeline.offset(SessionTimeline.Phase.QUIC_HANDSHAKED);
+                    final long totalTime = Math.max(holePunchingEnd, quicHandshakeEnd);
+                    final long holePunchingDuration = holePunchingEnd;
+                    final long quicHandshakeDuration = quicHandshakeEnd - quicHandshakeStart;
+                    System.out.printf("QUIC client `%s`:%n", quicClientEndpoint);
+                    System.out.printf("    UDP Hole Punching Start : +%9.3fms%n", 0.0);
+                    System.out.printf("      UDP Hole Punching End : +%9.3fms%n", holePunchingEnd / 1e6);
+                    System.out.printf(" UDP Hole Punching Duration : %10.3fms (%3.0f%%)%n", holePunchingDuration / 1e6, (double) holePunchingDuration / totalTime * 100);
+                    System.out.printf("       UDP Hole Punching TX : %6d%n", holePunchingSentMessages);
+                    System.out.printf("       UDP Hole Punching RX : %6d%n", holePunchingReceivedMessages);
+                    System.out.printf("      UDP Hole Punching RTT : %6d%n", holePunchingRtt);
+                    System.out.printf("%n");
+                    System.out.printf("       QUIC Handshake Start : +%9.3fms%n", quicHandshakeStart / 1e6);
+                    System.out.printf("         QUIC Handshake End : +%9.3fms%n", quicHandshakeEnd / 1e6);
+                    System.out.printf("    QUIC Handshake Duration : %10.3fms (%3.0f%%)%n", quicHandshakeDuration / 1e6, (double) quicHandshakeDuration / totalTime * 100);
+                    System.out.printf("          QUIC Handshake TX : %6d%n", quicSentMessages);
+                    System.out.printf("          QUIC Handshake RX : %6d%n", quicReceivedMessages);
+                    System.out.printf("         QUIC Handshake RTT : %6d%n", quicRtt);
+                    System.out.printf("%n");
+                    System.out.printf("             Total Duration : %10.3fms (%3.0f%%)%n", totalTime / 1e6, (double) 100);
+                    System.out.printf("%n");
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Timeline of QUIC client `{}`:{}", quicClientEndpoint, timeline);
+                    }
+
+                    final String labels = "mode=\"" + mode + "\",zero_rtt=\"" + doZeroRtt + "\"";
+                    final long rendezvous = timeline.offset(SessionTimeline.Phase.ENDPOINTS_RECEIVED);
+                    if (rendezvous != -1) {
+                        client.metrics.phase("rendezvous", labels).record(rendezvous);
                     }
+                    client.metrics.phase("hole_punching", labels).record(holePunchingDuration);
+                    client.metrics.phase("quic_handshake", labels).record(quicHandshakeDuration);
+                    client.metrics.phase("total", labels).record(totalTime);
+
+                    client.csvLogger.log(quicMessageHandler instanceof SequentialQuicMessageHandler, 0, NANOSECONDS.toMillis(holePunchingEnd), NANOSECONDS.toMillis(holePunchingDuration), holePunchingSentMessages, holePunchingReceivedMessages, holePunchingRtt, NANOSECONDS.toMillis(quicHandshakeStart), NANOSECONDS.toMillis(quicHandshakeEnd), NANOSECONDS.toMillis(quicHandshakeDuration), quicSentMessages, quicReceivedMessages, quicRtt, NANOSECONDS.toMillis(totalTime), client.ownEndpoint, client.serverEndpoint, otherClientEndpoint,
+                            rendezvous, holePunchingEnd, quicHandshakeStart, quicHandshakeEnd, totalTime, timeline.firstQuicPacket(true, quicClientEndpoint), timeline.firstQuicPacket(false, quicClientEndpoint));
                 }
             }
+        }
+
+        private static class PeerPath {
+            private final InetSocketAddress endpoint;
+            private long lastReadTime;
+            private long lastKeepaliveTime;
 
-            if (!completed && quicHandshakedTime != 0 && holePunchedTime != 0) {
-                completed = true;
-                final long totalTime = Math.max(holePunchedTime, quicHandshakedTime) - holePunchTime;
-                final long holePunchingDuration = holePunchedTime - holePunchTime;
-                final long quicHandshakeDuration = quicHandshakedTime - quicHandshakeTime;
-                final int holePunchingStart = 0;
-                System.out.printf("    UDP Hole Punching Start : +%5dms%n", holePunchingStart);
-                final long holePunchingEnd = holePunchedTime - holePunchTime;
-                System.out.printf("      UDP Hole Punching End : +%5dms%n", holePunchingEnd);
-                System.out.printf(" UDP Hole Punching Duration : %6dms (%3.0f%%)%n", holePunchingDuration, (double) holePunchingDuration / totalTime * 100);
-                System.out.printf("       UDP Hole Punching TX : %6d%n", holePunchingSentMessages);
-                System.out.printf("       UDP Hole Punching RX : %6d%n", holePunchingReceivedMessages);
-                System.out.printf("      UDP Hole Punching RTT : %6d%n", holePunchingRtt);
-                System.out.printf("%n");
-                final long quicHandshakeStart = quicHandshakeTime - holePunchTime;
-                System.out.printf("       QUIC Handshake Start : +%5dms%n", quicHandshakeStart);
-                final long quicHandshakeEnd = quicHandshakedTime - holePunchTime;
-                System.out.printf("         QUIC Handshake End : +%5dms%n", quicHandshakeEnd);
-                System.out.printf("    QUIC Handshake Duration : %6dms (%3.0f%%)%n", quicHandshakeDuration, (double) quicHandshakeDuration / totalTime * 100);
-                System.out.printf("          QUIC Handshake TX : %6d%n", quicSentMessages);
-                System.out.printf("          QUIC Handshake RX : %6d%n", quicReceivedMessages);
-                System.out.printf("         QUIC Handshake RTT : %6d%n", quicRtt);
-                System.out.printf("%n");
-                System.out.printf("             Total Duration : %6dms (%3.0f%%)%n", totalTime, (double) 100);
-                System.out.printf("%n");
-
-                CsvLogger.log(client.logfile, quicMessageHandler instanceof SequentialQuicMessageHandler, holePunchingStart, holePunchingEnd, holePunchingDuration, holePunchingSentMessages, holePunchingReceivedMessages, holePunchingRtt, quicHandshakeStart, quicHandshakeEnd, quicHandshakeDuration, quicSentMessages, quicReceivedMessages, quicRtt, totalTime, client.ownEndpoint, client.serverEndpoint, client.otherClientEndpoint);
+            PeerPath(final InetSocketAddress endpoint) {
+                this.endpoint = endpoint;
             }
         }
 
@@ -426,30 +979,34 @@ public class ActiveClientCommand implements Runnable {
             void channelRead(final ChannelHandlerContext ctx,
                              State state,
                              AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> msg,
-                             final ActiveClientCommand client, final ActiveClientHandler handler);
+                             final ActiveClientCommand client, final Session session);
 
             void clear();
 
             void holePunched(ChannelHandlerContext ctx,
-                             final ActiveClientCommand client, final ActiveClientHandler handler);
+                             final ActiveClientCommand client, final Session session);
 
             boolean isEmpty();
         }
 
         private static class SequentialQuicMessageHandler implements QuicMessageHandler {
-            private final List<AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress>> pendingWrites = new ArrayList<>();
+            private final PendingQuicMessages pendingWrites;
+
+            SequentialQuicMessageHandler(final int maxPendingBytes) {
+                this.pendingWrites = new PendingQuicMessages(maxPendingBytes);
+            }
 
             @Override
             public void channelRead(final ChannelHandlerContext ctx,
                                     final State state,
                                     final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> msg,
                                     final ActiveClientCommand client,
-                                    final ActiveClientHandler handler) {
+                                    final Session session) {
                 LOG.trace("Enqueue QUIC write `{}` till hole punching is done.", msg);
                 if (((QuicMessage) msg.content()).getType() == QuicPacketType.ZERO_RTT) {
-                    handler.doZeroRtt = true;
+                    session.doZeroRtt = true;
                 }
-                pendingWrites.add(msg);
+                pendingWrites.add(((QuicMessage) msg.content()).retain());
             }
 
             @Override
@@ -460,19 +1017,21 @@ public class ActiveClientCommand implements Runnable {
             @Override
             public void holePunched(final ChannelHandlerContext ctx,
                                     final ActiveClientCommand client,
-                                    final ActiveClientHandler handler) {
-                if (handler.quicHandshakeTime == 0) {
+                                    final Session session) {
+                if (!session.timeline.hasReached(SessionTimeline.Phase.QUIC_HANDSHAKE_STARTED)) {
                     // if we do 0-RTT. time has already been set!
-                    handler.quicHandshakeTime = System.currentTimeMillis();
+                    session.timeline.reach(SessionTimeline.Phase.QUIC_HANDSHAKE_STARTED);
                 }
-                handler.quicAwaitResponse = true;
+                session.quicAwaitResponse = true;
                 LOG.trace("Got acknowledgement. Flush {} pending write(s)!.", pendingWrites.size());
-                for (AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> pendingWrite : pendingWrites) {
-                    handler.quicSentMessages++;
-                    LOG.trace("Redirect {} to PassiveClient {}.", pendingWrite, client.otherClientEndpoint);
-                    ctx.writeAndFlush(new DefaultAddressedEnvelope<>(pendingWrite.content(), client.otherClientEndpoint));
+                QuicMessage pendingWrite;
+                while ((pendingWrite = pendingWrites.poll()) != null) {
+                    session.quicSentMessages++;
+                    LOG.trace("Redirect {} to PassiveClient {}.", pendingWrite, session.otherClientEndpoint);
+                    session.timeline.sent(pendingWrite, session.otherClientEndpoint);
+                    ctx.write(new DefaultAddressedEnvelope<>(pendingWrite, session.otherClientEndpoint));
                 }
-                pendingWrites.clear();
+                ctx.flush();
             }
 
             @Override
@@ -487,24 +1046,76 @@ public class ActiveClientCommand implements Runnable {
                                     final State state,
                                     final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> msg,
                                     final ActiveClientCommand client,
-                                    final ActiveClientHandler handler) {
+                                    final Session session) {
                 if (((QuicMessage) msg.content()).getType() == QuicPacketType.ZERO_RTT) {
-                    handler.doZeroRtt = true;
+                    session.doZeroRtt = true;
                 }
-                handler.quicAwaitResponse = true;
-                handler.quicSentMessages++;
-                if (handler.quicHandshakeTime == 0) {
-                    handler.quicHandshakeTime = System.currentTimeMillis();
+                session.quicAwaitResponse = true;
+                session.quicSentMessages++;
+                if (!session.timeline.hasReached(SessionTimeline.Phase.QUIC_HANDSHAKE_STARTED)) {
+                    session.timeline.reach(SessionTimeline.Phase.QUIC_HANDSHAKE_STARTED);
                 }
                 switch (state) {
                     case REQUESTED:
                     case CHECKING:
                         LOG.trace("Redirect {} to RendezvousServer {}.", msg, client.serverEndpoint);
-                        ctx.writeAndFlush(new DefaultAddressedEnvelope<>(msg.content(), client.serverEndpoint));
+                        session.forward(ctx, msg.content(), client.serverEndpoint);
+                        break;
+                    case ACKNOWLEDGED:
+                        LOG.trace("Redirect {} to PassiveClient {}.", msg, session.otherClientEndpoint);
+                        session.forward(ctx, msg.content(), session.otherClientEndpoint);
+                        break;
+                }
+            }
+
+            @Override
+            public void clear() {
+                // do nothing
+            }
+
+            @Override
+            public void holePunched(final ChannelHandlerContext ctx,
+                                    final ActiveClientCommand client,
+                                    final Session session) {
+                // do nothing
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return true;
+            }
+        }
+
+        // sends QUIC messages via the rendezvous server and, once the endpoint of the other client is known, also
+        // directly to it. Whichever copy arrives first is passed to the QUIC server, the other client drops the other
+        private static class RacingQuicMessageHandler implements QuicMessageHandler {
+            @Override
+            public void channelRead(final ChannelHandlerContext ctx,
+                                    final State state,
+                                    final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> msg,
+                                    final ActiveClientCommand client,
+                                    final Session session) {
+                if (((QuicMessage) msg.content()).getType() == QuicPacketType.ZERO_RTT) {
+                    session.doZeroRtt = true;
+                }
+                session.quicAwaitResponse = true;
+                session.quicSentMessages++;
+                if (!session.timeline.hasReached(SessionTimeline.Phase.QUIC_HANDSHAKE_STARTED)) {
+                    session.timeline.reach(SessionTimeline.Phase.QUIC_HANDSHAKE_STARTED);
+                }
+                switch (state) {
+                    case REQUESTED:
+                        LOG.trace("Redirect {} to RendezvousServer {}.", msg, client.serverEndpoint);
+                        session.forward(ctx, msg.content(), client.serverEndpoint);
+                        break;
+                    case CHECKING:
+                        LOG.trace("Redirect {} to RendezvousServer {} and PassiveClient {}.", msg, client.serverEndpoint, session.otherClientEndpoint);
+                        session.forward(ctx, msg.content(), client.serverEndpoint);
+                        session.forward(ctx, msg.content(), session.otherClientEndpoint);
                         break;
                     case ACKNOWLEDGED:
-                        LOG.trace("Redirect {} to PassiveClient {}.", msg, client.otherClientEndpoint);
-                        ctx.writeAndFlush(new DefaultAddressedEnvelope<>(msg.content(), client.otherClientEndpoint));
+                        LOG.trace("Redirect {} to PassiveClient {}.", msg, session.otherClientEndpoint);
+                        session.forward(ctx, msg.content(), session.otherClientEndpoint);
                         break;
                 }
             }
@@ -517,7 +1128,7 @@ public class ActiveClientCommand implements Runnable {
             @Override
             public void holePunched(final ChannelHandlerContext ctx,
                                     final ActiveClientCommand client,
-                                    final ActiveClientHandler handler) {
+                                    final Session session) {
                 // do nothing
             }
 
@@ -533,5 +1144,7 @@ public class ActiveClientCommand implements Runnable {
         boolean sequential;
         @Option(names = "--parallel")
         boolean parallel;
+        @Option(names = "--racing")
+        boolean racing;
     }
 }
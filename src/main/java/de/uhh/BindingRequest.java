@@ -0,0 +1,32 @@
+package de.uhh;
+
+/**
+ * Asks the rendezvous server for the endpoint it sees the sender at.
+ */
+public class BindingRequest implements TlsHolePunchingMessage {
+    static final int MAX_DELAY = 600; // seconds
+    public static final BindingRequest INSTANCE = new BindingRequest(0);
+    private final int delay;
+
+    /**
+     * @param delay seconds the rendezvous server waits before it responds. Tells whether our NAT keeps an idle
+     *              mapping that long
+     */
+    public BindingRequest(final int delay) {
+        if (delay < 0 || delay > MAX_DELAY) {
+            throw new IllegalArgumentException("Delay must be between 0 and " + MAX_DELAY + " seconds.");
+        }
+        this.delay = delay;
+    }
+
+    @Override
+    public String toString() {
+        return "BindingRequest{" +
+                "delay=" + delay +
+                '}';
+    }
+
+    public int getDelay() {
+        return delay;
+    }
+}
@@ -0,0 +1,27 @@
+package de.uhh;
+
+import java.net.InetSocketAddress;
+
+import static java.util.Objects.requireNonNull;
+
+public class BindingResponse implements TlsHolePunchingMessage {
+    private final InetSocketAddress endpoint;
+
+    /**
+     * @param endpoint endpoint the rendezvous server has seen the {@link BindingRequest} coming from
+     */
+    public BindingResponse(final InetSocketAddress endpoint) {
+        this.endpoint = requireNonNull(endpoint);
+    }
+
+    @Override
+    public String toString() {
+        return "BindingResponse{" +
+                "endpoint=" + endpoint +
+                '}';
+    }
+
+    public InetSocketAddress getEndpoint() {
+        return endpoint;
+    }
+}
@@ -0,0 +1,76 @@
+package de.uhh;
+
+import io.netty.util.AbstractReferenceCounted;
+
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Several control messages, optionally followed by one QUIC packet, sent as a single datagram. Only used for
+ * sending: a received bundle is decoded into its messages, so handlers never see one.
+ * <p>
+ * The bundle owns its QUIC packet and releases it when released itself.
+ */
+public class Bundle extends AbstractReferenceCounted implements TlsHolePunchingMessage {
+    static final int MAX_MESSAGES = 255;
+    private final List<TlsHolePunchingMessage> messages;
+    private final QuicMessage quicMessage;
+
+    public Bundle(final List<TlsHolePunchingMessage> messages,
+                  final QuicMessage quicMessage) {
+        if (messages.size() > MAX_MESSAGES) {
+            throw new IllegalArgumentException("Bundle must not contain more than " + MAX_MESSAGES + " messages.");
+        }
+        for (final TlsHolePunchingMessage message : messages) {
+            if (message instanceof Bundle || message instanceof QuicMessage) {
+                throw new IllegalArgumentException("Bundle must only contain control messages.");
+            }
+        }
+        this.messages = List.copyOf(messages);
+        this.quicMessage = quicMessage;
+    }
+
+    public Bundle(final TlsHolePunchingMessage... messages) {
+        this(List.of(messages), null);
+    }
+
+    public Bundle(final TlsHolePunchingMessage message,
+                  final QuicMessage quicMessage) {
+        this(List.of(message), requireNonNull(quicMessage));
+    }
+
+    @Override
+    public String toString() {
+        return "Bundle{" +
+                "messages=" + messages +
+                ", quicMessage=" + quicMessage +
+                '}';
+    }
+
+    public List<TlsHolePunchingMessage> getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return QUIC packet sent after the control messages, or {@code null}
+     */
+    public QuicMessage getQuicMessage() {
+        return quicMessage;
+    }
+
+    @Override
+    protected void deallocate() {
+        if (quicMessage != null) {
+            quicMessage.release();
+        }
+    }
+
+    @Override
+    public Bundle touch(final Object hint) {
+        if (quicMessage != null) {
+            quicMessage.touch(hint);
+        }
+        return this;
+    }
+}
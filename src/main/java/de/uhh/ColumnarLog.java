@@ -0,0 +1,250 @@
+package de.uhh;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Compact binary alternative to a CSV file of results. Rows are stored in blocks, and every block column by column:
+ * each value as the zig-zag varint of its difference to the value of the previous row, so timestamps and durations of
+ * similar sessions take a byte or two. String columns store ids into a dictionary that grows with each block, as they
+ * hold few distinct values (endpoints).
+ * <p>
+ * Layout, all integers are varints unless noted:
+ * <pre>
+ * file   = magic (4 bytes) version (1 byte) #long-columns #string-columns name (UTF)... block...
+ * block  = #rows #new-strings string (UTF)... long-column... string-column...
+ * column = delta...
+ * </pre>
+ */
+final class ColumnarLog {
+    private static final int MAGIC = 0x54485043; // "THPC"
+    private static final int VERSION = 1;
+
+    private ColumnarLog() {
+        // utility class
+    }
+
+    /**
+     * Writes rows of {@code longColumns.length} long values and {@code stringColumns.length} strings.
+     */
+    static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final int longColumns;
+        private final int stringColumns;
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private final List<String> newStrings = new ArrayList<>();
+
+        Writer(final OutputStream out,
+               final String[] longColumns,
+               final String[] stringColumns) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(requireNonNull(out), 65536));
+            this.longColumns = longColumns.length;
+            this.stringColumns = stringColumns.length;
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+            writeVarint(this.out, longColumns.length);
+            writeVarint(this.out, stringColumns.length);
+            for (final String name : longColumns) {
+                this.out.writeUTF(name);
+            }
+            for (final String name : stringColumns) {
+                this.out.writeUTF(name);
+            }
+        }
+
+        /**
+         * Writes {@code longs} and {@code strings} of the same rows as one block and flushes it.
+         */
+        void writeBlock(final List<long[]> longs, final List<String[]> strings) throws IOException {
+            final int rows = longs.size();
+            if (rows == 0) {
+                return;
+            }
+            final int[][] ids = new int[rows][];
+            for (int row = 0; row < rows; row++) {
+                ids[row] = new int[stringColumns];
+                for (int column = 0; column < stringColumns; column++) {
+                    ids[row][column] = idOf(strings.get(row)[column]);
+                }
+            }
+
+            writeVarint(out, rows);
+            writeVarint(out, newStrings.size());
+            for (final String string : newStrings) {
+                out.writeUTF(string);
+            }
+            newStrings.clear();
+            for (int column = 0; column < longColumns; column++) {
+                long previous = 0;
+                for (int row = 0; row < rows; row++) {
+                    final long value = longs.get(row)[column];
+                    writeVarint(out, zigZag(value - previous));
+                    previous = value;
+                }
+            }
+            for (int column = 0; column < stringColumns; column++) {
+                long previous = 0;
+                for (int row = 0; row < rows; row++) {
+                    final long value = ids[row][column];
+                    writeVarint(out, zigZag(value - previous));
+                    previous = value;
+                }
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        private int idOf(final String string) {
+            return dictionary.computeIfAbsent(string, k -> {
+                newStrings.add(k);
+                return dictionary.size();
+            });
+        }
+    }
+
+    /**
+     * Reads the rows written by a {@link Writer} one by one.
+     */
+    static class Reader implements Closeable {
+        private final DataInputStream in;
+        private final String[] longColumns;
+        private final String[] stringColumns;
+        private final List<String> dictionary = new ArrayList<>();
+        private long[][] longs = new long[0][];
+        private String[][] strings = new String[0][];
+        private int rows;
+        private int row;
+
+        Reader(final InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(requireNonNull(in), 65536));
+            if (this.in.readInt() != MAGIC) {
+                throw new IOException("Not a columnar log.");
+            }
+            final int version = this.in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported columnar log version " + version + ".");
+            }
+            longColumns = new String[(int) readVarint(this.in)];
+            stringColumns = new String[(int) readVarint(this.in)];
+            for (int i = 0; i < longColumns.length; i++) {
+                longColumns[i] = this.in.readUTF();
+            }
+            for (int i = 0; i < stringColumns.length; i++) {
+                stringColumns[i] = this.in.readUTF();
+            }
+        }
+
+        String[] longColumns() {
+            return longColumns.clone();
+        }
+
+        String[] stringColumns() {
+            return stringColumns.clone();
+        }
+
+        /**
+         * Copies the next row into {@code longs} and {@code strings}.
+         *
+         * @return {@code false} if all rows have been read
+         */
+        boolean next(final long[] longs, final String[] strings) throws IOException {
+            if (row == rows && !readBlock()) {
+                return false;
+            }
+            System.arraycopy(this.longs[row], 0, longs, 0, longColumns.length);
+            System.arraycopy(this.strings[row], 0, strings, 0, stringColumns.length);
+            row++;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private boolean readBlock() throws IOException {
+            final int b = in.read();
+            if (b == -1) {
+                return false;
+            }
+            rows = (int) readVarint(in, b);
+            row = 0;
+            final long newStrings = readVarint(in);
+            for (long i = 0; i < newStrings; i++) {
+                dictionary.add(in.readUTF());
+            }
+            longs = new long[rows][longColumns.length];
+            strings = new String[rows][stringColumns.length];
+            for (int column = 0; column < longColumns.length; column++) {
+                long value = 0;
+                for (int i = 0; i < rows; i++) {
+                    value += unZigZag(readVarint(in));
+                    longs[i][column] = value;
+                }
+            }
+            for (int column = 0; column < stringColumns.length; column++) {
+                long id = 0;
+                for (int i = 0; i < rows; i++) {
+                    id += unZigZag(readVarint(in));
+                    if (id < 0 || id >= dictionary.size()) {
+                        throw new IOException("Unknown string id " + id + ".");
+                    }
+                    strings[i][column] = dictionary.get((int) id);
+                }
+            }
+            return rows > 0;
+        }
+    }
+
+    private static long zigZag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(final DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(final DataInputStream in) throws IOException {
+        return readVarint(in, in.read());
+    }
+
+    private static long readVarint(final DataInputStream in, int b) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (b == -1) {
+                throw new EOFException("Truncated columnar log.");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            b = in.read();
+        }
+        throw new IOException("Malformed varint.");
+    }
+}
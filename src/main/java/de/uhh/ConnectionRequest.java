@@ -1,8 +1,28 @@
 package de.uhh;
 
+import io.netty.buffer.ByteBufUtil;
+
+import static de.uhh.Register.MAX_PEER_ID_LENGTH;
+import static java.util.Objects.requireNonNull;
+
 public class ConnectionRequest implements TlsHolePunchingMessage {
+    private final String targetPeerId;
+
+    public ConnectionRequest(final String targetPeerId) {
+        if (ByteBufUtil.utf8Bytes(targetPeerId) > MAX_PEER_ID_LENGTH) {
+            throw new IllegalArgumentException("Peer id must not be longer than " + MAX_PEER_ID_LENGTH + " bytes.");
+        }
+        this.targetPeerId = requireNonNull(targetPeerId);
+    }
+
     @Override
     public String toString() {
-        return "ConnectionRequest{}";
+        return "ConnectionRequest{" +
+                "targetPeerId=" + targetPeerId +
+                '}';
+    }
+
+    public String getTargetPeerId() {
+        return targetPeerId;
     }
 }
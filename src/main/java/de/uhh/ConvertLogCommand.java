@@ -0,0 +1,62 @@
+package de.uhh;
+
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Converts a {@link CsvLogger.Format#COLUMNAR} result log into the CSV written with {@link CsvLogger.Format#CSV}.
+ */
+@Command(
+        name = "convert-log",
+        showDefaultValues = true
+)
+public class ConvertLogCommand implements Runnable {
+    @Option(
+            names = { "--input" },
+            required = true
+    )
+    protected String input;
+    @Option(
+            names = { "--output" },
+            defaultValue = "tls-hole-punching.csv"
+    )
+    protected String output;
+
+    @Override
+    public void run() {
+        try (final ColumnarLog.Reader reader = new ColumnarLog.Reader(new FileInputStream(input));
+             final Writer writer = new BufferedWriter(new FileWriter(output), 65536)) {
+            final String[] longColumns = reader.longColumns();
+            final String[] stringColumns = reader.stringColumns();
+            // logs without the nanosecond columns have a prefix of them
+            if (longColumns.length < CsvLogger.LEADING_LONG_COLUMNS
+                    || longColumns.length > CsvLogger.LONG_COLUMNS.length
+                    || !Arrays.equals(longColumns, Arrays.copyOf(CsvLogger.LONG_COLUMNS, longColumns.length))
+                    || !Arrays.equals(stringColumns, CsvLogger.STRING_COLUMNS)) {
+                throw new IOException("Unsupported columns " + Arrays.toString(longColumns) + " " + Arrays.toString(stringColumns) + ".");
+            }
+            writer.write(CsvLogger.csvHeader(longColumns, stringColumns));
+            final long[] longs = new long[longColumns.length];
+            final String[] strings = new String[stringColumns.length];
+            final StringBuilder line = new StringBuilder();
+            long rows = 0;
+            while (reader.next(longs, strings)) {
+                line.setLength(0);
+                CsvLogger.appendCsv(line, longs, strings);
+                writer.append(line);
+                rows++;
+            }
+            System.out.println("Converted " + rows + " rows from `" + input + "` to `" + output + "`.");
+        }
+        catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,145 +1,332 @@
 package de.uhh;
 
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
 import java.net.InetSocketAddress;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.TimeZone;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Records the results of sessions. {@link #log} only enqueues a row into a lock-free queue, so it never blocks the
+ * event loop. A background thread writes the rows in batches, as CSV or as {@link ColumnarLog}, and flushes after
+ * each batch. The file is created with the first row.
+ */
+public class CsvLogger implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(CsvLogger.class);
+    static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX").withZone(ZoneId.of("Europe/Berlin"));
+    // numeric columns, time is in milliseconds since the epoch and mode is 1 for sequential. Columns after
+    // total_duration follow the string columns in CSV and are in nanoseconds, -1 if not applicable
+    static final String[] LONG_COLUMNS = {
+            "time",
+            "mode",
+            "hp_start",
+            "hp_end",
+            "hp_duration",
+            "hp_sent",
+            "hp_received",
+            "hp_rtt",
+            "quic_start",
+            "quic_end",
+            "quic_duration",
+            "quic_sent",
+            "quic_received",
+            "quic_rtt",
+            "total_duration",
+            "rendezvous_ns",
+            "hp_end_ns",
+            "quic_start_ns",
+            "quic_end_ns",
+            "total_duration_ns",
+            "first_quic_tx_ns",
+            "first_quic_rx_ns"
+    };
+    static final String[] STRING_COLUMNS = {
+            "active_endpoint",
+            "passive_endpoint",
+            "server_endpoint"
+    };
+    private static final int TIME = 0;
+    private static final int MODE = 1;
+    // number of numeric columns in front of the string columns
+    static final int LEADING_LONG_COLUMNS = 15;
+    private static final int MAX_BATCH_SIZE = 4096; // rows
+    private static final long IDLE_POLL_INTERVAL = MILLISECONDS.toNanos(50);
+    private final String filename;
+    private final Format format;
+    private final Queue<Row> rows = new ConcurrentLinkedQueue<>();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    public enum Format {
+        CSV,
+        COLUMNAR
+    }
 
-public class CsvLogger {
-    private static final DateFormat df;
+    public CsvLogger(final String filename, final Format format) {
+        this.filename = requireNonNull(filename);
+        this.format = requireNonNull(format);
+        writer = new DefaultThreadFactory("csv-logger", true).newThread(this::writeRows);
+        writer.start();
+    }
 
-    static {
-        df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
-        df.setTimeZone(TimeZone.getTimeZone("Europe/Berlin"));
+    public void log(final boolean sequential,
+                    final long holePunchingStart,
+                    final long holePunchingEnd,
+                    final long holePunchingDuration,
+                    final long holePunchingSentMessages,
+                    final long holePunchingReceivedMessages,
+                    final int holePunchingRtt,
+                    final long quicStart,
+                    final long quicEnd,
+                    final long quicDuration,
+                    final long quicSentMessages,
+                    final long quicReceivedMessages,
+                    final int quicRtt,
+                    final long totalDuration,
+                    final InetSocketAddress activeClientEndpoint,
+                    final InetSocketAddress passiveClientEndpoint,
+                    final InetSocketAddress rendezvousServerEndpoint,
+                    final long rendezvousNanos,
+                    final long holePunchingEndNanos,
+                    final long quicStartNanos,
+                    final long quicEndNanos,
+                    final long totalDurationNanos,
+                    final long firstQuicSentNanos,
+                    final long firstQuicReceivedNanos) {
+        if (closed) {
+            return;
+        }
+        rows.add(new Row(
+                new long[]{
+                        System.currentTimeMillis(),
+                        sequential ? 1 : 0,
+                        holePunchingStart,
+                        holePunchingEnd,
+                        holePunchingDuration,
+                        holePunchingSentMessages,
+                        holePunchingReceivedMessages,
+                        holePunchingRtt,
+                        quicStart,
+                        quicEnd,
+                        quicDuration,
+                        quicSentMessages,
+                        quicReceivedMessages,
+                        quicRtt,
+                        totalDuration,
+                        rendezvousNanos,
+                        holePunchingEndNanos,
+                        quicStartNanos,
+                        quicEndNanos,
+                        totalDurationNanos,
+                        firstQuicSentNanos,
+                        firstQuicReceivedNanos
+                },
+                new InetSocketAddress[]{ activeClientEndpoint, passiveClientEndpoint, rendezvousServerEndpoint }
+        ));
     }
 
-    private static Writer WRITER = null;
-
-    public static synchronized void log(final String filename,
-                                        final boolean sequential,
-                                        final long holePunchingStart,
-                                        final long holePunchingEnd,
-                                        final long holePunchingDuration,
-                                        final long holePunchingSentMessages,
-                                        final long holePunchingReceivedMessages,
-                                        final int holePunchingRtt,
-                                        final long quicStart,
-                                        final long quicEnd,
-                                        final long quicDuration,
-                                        final long quicSentMessages,
-                                        final long quicReceivedMessages,
-                                        final int quicRtt,
-                                        final long totalDuration,
-                                        final InetSocketAddress activeClientEndpoint,
-                                        final InetSocketAddress passiveClientEndpoint,
-                                        final InetSocketAddress rendezvousServerEndpoint) {
-        if (WRITER == null) {
-            try {
-                WRITER = new FileWriter(filename);
-                WRITER.append("time");
-                WRITER.append(',');
-                WRITER.append("mode");
-                WRITER.append(',');
-                WRITER.append("hp_start");
-                WRITER.append(',');
-                WRITER.append("hp_end");
-                WRITER.append(',');
-                WRITER.append("hp_duration");
-                WRITER.append(',');
-                WRITER.append("hp_sent");
-                WRITER.append(',');
-                WRITER.append("hp_received");
-                WRITER.append(',');
-                WRITER.append("hp_rtt");
-                WRITER.append(',');
-                WRITER.append("quic_start");
-                WRITER.append(',');
-                WRITER.append("quic_end");
-                WRITER.append(',');
-                WRITER.append("quic_duration");
-                WRITER.append(',');
-                WRITER.append("quic_sent");
-                WRITER.append(',');
-                WRITER.append("quic_received");
-                WRITER.append(',');
-                WRITER.append("quic_rtt");
-                WRITER.append(',');
-                WRITER.append("total_duration");
-                WRITER.append(',');
-                WRITER.append("active_endpoint");
-                WRITER.append(',');
-                WRITER.append("passive_endpoint");
-                WRITER.append(',');
-                WRITER.append("server_endpoint");
-                WRITER.append('\n');
+    public void log(final boolean sequential,
+                    final long holePunchingStart,
+                    final long holePunchingEnd,
+                    final long holePunchingDuration,
+                    final int holePunchingRtt,
+                    final long quicStart,
+                    final long quicEnd,
+                    final long quicDuration,
+                    final int quicRtt,
+                    final long totalDuration,
+                    final InetSocketAddress activeClientEndpoint,
+                    final InetSocketAddress passiveClientEndpoint,
+                    final InetSocketAddress rendezvousServerEndpoint) {
+        log(sequential, holePunchingStart, holePunchingEnd, holePunchingDuration, 0, 0, holePunchingRtt, quicStart, quicEnd, quicDuration, 0, 0, quicRtt, totalDuration, activeClientEndpoint, passiveClientEndpoint, rendezvousServerEndpoint, -1, -1, -1, -1, -1, -1, -1);
+    }
+
+    /**
+     * Writes all rows logged so far and closes the file.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeRows() {
+        final List<long[]> longs = new ArrayList<>();
+        final List<String[]> strings = new ArrayList<>();
+        Sink sink = null;
+        try {
+            while (true) {
+                // read before draining, so that no row logged before close is left behind
+                final boolean last = closed;
+                Row row;
+                while (longs.size() < MAX_BATCH_SIZE && (row = rows.poll()) != null) {
+                    longs.add(row.longs);
+                    strings.add(row.strings());
+                }
+                if (!longs.isEmpty()) {
+                    if (sink == null) {
+                        sink = format == Format.CSV ? new CsvSink(filename) : new ColumnarSink(filename);
+                    }
+                    sink.write(longs, strings);
+                    longs.clear();
+                    strings.clear();
+                }
+                else if (last) {
+                    break;
+                }
+                else {
+                    LockSupport.parkNanos(this, IDLE_POLL_INTERVAL);
+                }
             }
-            catch (IOException e) {
-                throw new RuntimeException(e);
+        }
+        catch (final IOException e) {
+            closed = true;
+            rows.clear();
+            LOG.error("Unable to write results to `{}`. Stop logging results.", filename, e);
+        }
+        finally {
+            if (sink != null) {
+                try {
+                    sink.close();
+                }
+                catch (final IOException e) {
+                    LOG.error("Unable to close `{}`.", filename, e);
+                }
             }
         }
+    }
 
-        try {
-            WRITER.append(df.format(new Date()));
-            WRITER.append(',');
-            WRITER.append(sequential ? "sequential" : "parallel");
-            WRITER.append(',');
-            WRITER.append(String.valueOf(holePunchingStart));
-            WRITER.append(',');
-            WRITER.append(String.valueOf(holePunchingEnd));
-            WRITER.append(',');
-            WRITER.append(String.valueOf(holePunchingDuration));
-            WRITER.append(',');
-            WRITER.append(String.valueOf(holePunchingSentMessages));
-            WRITER.append(',');
-            WRITER.append(String.valueOf(holePunchingReceivedMessages));
-            WRITER.append(',');
-            WRITER.append(String.valueOf(holePunchingRtt));
-            WRITER.append(',');
-            WRITER.append(String.valueOf(quicStart));
-            WRITER.append(',');
-            WRITER.append(String.valueOf(quicEnd));
-            WRITER.append(',');
-            WRITER.append(String.valueOf(quicDuration));
-            WRITER.append(',');
-            WRITER.append(String.valueOf(quicSentMessages));
-            WRITER.append(',');
-            WRITER.append(String.valueOf(quicReceivedMessages));
-            WRITER.append(',');
-            WRITER.append(String.valueOf(quicRtt));
-            WRITER.append(',');
-            WRITER.append(String.valueOf(totalDuration));
-            WRITER.append(',');
-            WRITER.append(activeClientEndpoint.toString());
-            WRITER.append(',');
-            WRITER.append(passiveClientEndpoint.toString());
-            WRITER.append(',');
-            WRITER.append(rendezvousServerEndpoint.toString());
-            WRITER.append('\n');
-            WRITER.flush();
-        }
-        catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * Appends {@code longs} and {@code strings} as CSV line to {@code out}.
+     */
+    static void appendCsv(final StringBuilder out, final long[] longs, final String[] strings) {
+        for (int column = 0; column < longs.length; column++) {
+            if (column == LEADING_LONG_COLUMNS) {
+                appendStrings(out, strings);
+            }
+            if (column == TIME) {
+                out.append(TIME_FORMAT.format(Instant.ofEpochMilli(longs[column])));
+            }
+            else if (column == MODE) {
+                out.append(',').append(longs[column] != 0 ? "sequential" : "parallel");
+            }
+            else {
+                out.append(',').append(longs[column]);
+            }
+        }
+        if (longs.length <= LEADING_LONG_COLUMNS) {
+            appendStrings(out, strings);
         }
+        out.append('\n');
     }
 
-    public static synchronized void log(final String filename,
-                                        final boolean sequential,
-                                        final long holePunchingStart,
-                                        final long holePunchingEnd,
-                                        final long holePunchingDuration,
-                                        final int holePunchingRtt,
-                                        final long quicStart,
-                                        final long quicEnd,
-                                        final long quicDuration,
-                                        final int quicRtt,
-                                        final long totalDuration,
-                                        final InetSocketAddress activeClientEndpoint,
-                                        final InetSocketAddress passiveClientEndpoint,
-                                        final InetSocketAddress rendezvousServerEndpoint) {
-        log(filename, sequential, holePunchingStart, holePunchingEnd, holePunchingDuration, 0, 0, holePunchingRtt, quicStart, quicEnd, quicDuration, 0, 0, quicRtt, totalDuration, activeClientEndpoint, passiveClientEndpoint, rendezvousServerEndpoint);
+    private static void appendStrings(final StringBuilder out, final String[] strings) {
+        for (final String string : strings) {
+            out.append(',').append(string);
+        }
+    }
+
+    static String csvHeader(final String[] longColumns, final String[] stringColumns) {
+        final StringBuilder header = new StringBuilder();
+        for (int column = 0; column < longColumns.length; column++) {
+            if (column == LEADING_LONG_COLUMNS) {
+                header.append(',').append(String.join(",", stringColumns));
+            }
+            header.append(column == 0 ? "" : ",").append(longColumns[column]);
+        }
+        if (longColumns.length <= LEADING_LONG_COLUMNS) {
+            header.append(',').append(String.join(",", stringColumns));
+        }
+        return header.append('\n').toString();
+    }
+
+    private static class Row {
+        private final long[] longs;
+        private final InetSocketAddress[] endpoints;
+
+        Row(final long[] longs, final InetSocketAddress[] endpoints) {
+            this.longs = longs;
+            this.endpoints = endpoints;
+        }
+
+        String[] strings() {
+            final String[] strings = new String[endpoints.length];
+            for (int i = 0; i < endpoints.length; i++) {
+                strings[i] = String.valueOf(endpoints[i]);
+            }
+            return strings;
+        }
+    }
+
+    private interface Sink extends AutoCloseable {
+        void write(List<long[]> longs, List<String[]> strings) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    private static class CsvSink implements Sink {
+        private final Writer out;
+        private final StringBuilder batch = new StringBuilder(65536);
+
+        CsvSink(final String filename) throws IOException {
+            out = new BufferedWriter(new FileWriter(filename), 65536);
+            out.write(csvHeader(LONG_COLUMNS, STRING_COLUMNS));
+        }
+
+        @Override
+        public void write(final List<long[]> longs, final List<String[]> strings) throws IOException {
+            batch.setLength(0);
+            for (int i = 0; i < longs.size(); i++) {
+                appendCsv(batch, longs.get(i), strings.get(i));
+            }
+            out.append(batch);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static class ColumnarSink implements Sink {
+        private final ColumnarLog.Writer out;
+
+        ColumnarSink(final String filename) throws IOException {
+            out = new ColumnarLog.Writer(new FileOutputStream(filename), LONG_COLUMNS, STRING_COLUMNS);
+        }
+
+        @Override
+        public void write(final List<long[]> longs, final List<String[]> strings) throws IOException {
+            out.writeBlock(longs, strings);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
     }
 }
@@ -0,0 +1,110 @@
+package de.uhh;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.unix.SegmentedDatagramPacket;
+import io.netty.util.concurrent.PromiseNotifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds back written {@link DatagramPacket}s until the next flush. Then, consecutive datagrams to the same recipient
+ * are sent as one {@link SegmentedDatagramPacket}, if all but the last one are of equal size. The kernel (or NIC)
+ * splits them again (UDP generic segmentation offload), so the whole run costs only one pass through the network
+ * stack. Other messages are passed through in order.
+ * <p>
+ * Must be placed at the socket end of the pipeline of an epoll datagram channel, and only if
+ * {@link io.netty.channel.epoll.EpollDatagramChannel#isSegmentedDatagramPacketSupported()}.
+ */
+class DatagramSegmenter extends ChannelOutboundHandlerAdapter {
+    private static final Logger LOG = LoggerFactory.getLogger(DatagramSegmenter.class);
+    // UDP_MAX_SEGMENTS of the linux kernel
+    private static final int MAX_SEGMENTS = 64;
+    // GSO buffers must fit into a single IP packet of maximum size
+    private static final int MAX_SEGMENTED_SIZE = 65000;
+    private final List<DatagramPacket> pendingPackets = new ArrayList<>();
+    private final List<ChannelPromise> pendingPromises = new ArrayList<>();
+
+    @Override
+    public void write(final ChannelHandlerContext ctx,
+                      final Object msg,
+                      final ChannelPromise promise) {
+        if (msg instanceof DatagramPacket && !(msg instanceof SegmentedDatagramPacket) && !promise.isVoid()) {
+            pendingPackets.add((DatagramPacket) msg);
+            pendingPromises.add(promise);
+        }
+        else {
+            // keep order
+            writePending(ctx);
+            ctx.write(msg, promise);
+        }
+    }
+
+    @Override
+    public void flush(final ChannelHandlerContext ctx) {
+        writePending(ctx);
+        ctx.flush();
+    }
+
+    @Override
+    public void handlerRemoved(final ChannelHandlerContext ctx) {
+        writePending(ctx);
+    }
+
+    private void writePending(final ChannelHandlerContext ctx) {
+        if (pendingPackets.isEmpty()) {
+            return;
+        }
+        // writes may cause a nested flush (e.g. a QUIC codec in the same pipeline flushing on writability changes)
+        final List<DatagramPacket> pendingPackets = new ArrayList<>(this.pendingPackets);
+        final List<ChannelPromise> pendingPromises = new ArrayList<>(this.pendingPromises);
+        this.pendingPackets.clear();
+        this.pendingPromises.clear();
+
+        int start = 0;
+        while (start < pendingPackets.size()) {
+            final DatagramPacket first = pendingPackets.get(start);
+            final InetSocketAddress recipient = first.recipient();
+            final int segmentSize = first.content().readableBytes();
+            final int maxSegments = segmentSize == 0 ? 1 : Math.min(MAX_SEGMENTS, MAX_SEGMENTED_SIZE / segmentSize);
+
+            // find run of datagrams that can be segmented
+            int end = start + 1;
+            while (end < pendingPackets.size() && end - start < maxSegments) {
+                final DatagramPacket next = pendingPackets.get(end);
+                final int size = next.content().readableBytes();
+                if (!recipient.equals(next.recipient()) || size > segmentSize || size == 0) {
+                    break;
+                }
+                end++;
+                if (size < segmentSize) {
+                    // smaller datagram can only be the last segment
+                    break;
+                }
+            }
+
+            if (end - start == 1) {
+                ctx.write(first, pendingPromises.get(start));
+            }
+            else {
+                LOG.trace("Segment {} datagram(s) of {} bytes to `{}`.", end - start, segmentSize, recipient);
+                final CompositeByteBuf content = ctx.alloc().compositeDirectBuffer(end - start);
+                for (int i = start; i < end; i++) {
+                    content.addComponent(true, pendingPackets.get(i).content());
+                }
+                final ChannelPromise[] promises = pendingPromises.subList(start, end).toArray(new ChannelPromise[0]);
+                ctx.write(new SegmentedDatagramPacket(content, segmentSize, recipient, first.sender()))
+                        .addListener(new PromiseNotifier<>(promises));
+            }
+            start = end;
+        }
+    }
+}
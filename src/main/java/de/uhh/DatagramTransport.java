@@ -0,0 +1,133 @@
+package de.uhh;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Datagram transports selectable by all commands. {@link #EPOLL} receives datagrams merged by the kernel with a
+ * single syscall (UDP_GRO), sends all datagrams of a flush with a single sendmmsg, and coalesces equally sized
+ * datagrams to the same recipient into one UDP_SEGMENT (GSO) send.
+ */
+public enum DatagramTransport {
+    NIO {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(final int threads) {
+            return new NioEventLoopGroup(threads);
+        }
+
+        @Override
+        public Bootstrap configure(final Bootstrap b) {
+            return b.channel(NioDatagramChannel.class);
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannel() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverSocketChannel() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public void initPipeline(final ChannelPipeline p) {
+            // nothing to add
+        }
+    },
+    EPOLL {
+        @Override
+        public boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(final int threads) {
+            return new EpollEventLoopGroup(threads);
+        }
+
+        @Override
+        public Bootstrap configure(final Bootstrap b) {
+            // recvmmsg (MAX_DATAGRAM_PAYLOAD_SIZE) is not enabled: this Netty version reports the payload size
+            // instead of the received size for each datagram
+            return b.channel(EpollDatagramChannel.class)
+                    .option(EpollChannelOption.UDP_GRO, true)
+                    .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(READ_BUFFER_SIZE));
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannel() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverSocketChannel() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public void initPipeline(final ChannelPipeline p) {
+            if (EpollDatagramChannel.isSegmentedDatagramPacketSupported()) {
+                p.addFirst(new DatagramSegmenter());
+            }
+        }
+    };
+
+    private static final Logger LOG = LoggerFactory.getLogger(DatagramTransport.class);
+    // UDP_GRO may pass up to 64 KiB at once
+    private static final int READ_BUFFER_SIZE = 65536;
+
+    public abstract boolean isAvailable();
+
+    public abstract EventLoopGroup newEventLoopGroup(int threads);
+
+    /**
+     * Sets the channel class and transport specific options of {@code b}.
+     */
+    public abstract Bootstrap configure(Bootstrap b);
+
+    /**
+     * TCP channel classes matching the event loops of this transport, used by the embedded QUIC endpoints.
+     */
+    public abstract Class<? extends SocketChannel> socketChannel();
+
+    public abstract Class<? extends ServerSocketChannel> serverSocketChannel();
+
+    /**
+     * Adds transport specific handlers to the socket end of {@code p}.
+     */
+    public abstract void initPipeline(ChannelPipeline p);
+
+    /**
+     * @return this transport, or {@link #NIO} if this transport is not available on this system
+     */
+    public DatagramTransport orFallback() {
+        if (this != NIO && !isAvailable()) {
+            LOG.warn("Transport {} not available ({}). Fall back to {}.", this, Epoll.unavailabilityCause().toString(), NIO);
+            return NIO;
+        }
+        return this;
+    }
+}
@@ -0,0 +1,59 @@
+package de.uhh;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers for sockets serving IPv4 and IPv6. A socket bound to the wildcard address is dual-stack: it reaches IPv6
+ * endpoints and, through IPv4-mapped addresses, IPv4 endpoints. Received IPv4 senders are reported as IPv4
+ * addresses by both transports.
+ */
+final class DualStack {
+    static final int IPV4 = 0;
+    static final int IPV6 = 1;
+    static final int FAMILIES = 2;
+
+    private DualStack() {
+        // utility class
+    }
+
+    static int family(final InetSocketAddress endpoint) {
+        return endpoint.getAddress() instanceof Inet6Address ? IPV6 : IPV4;
+    }
+
+    /**
+     * Returns the endpoints of the rendezvous server reachable from {@code localAddress}, at most one per address
+     * family. The first endpoint is {@code primary}. The endpoint of the other family is at {@code otherHost} if
+     * given, otherwise at an address the host name of {@code primary} resolves to.
+     */
+    static List<InetSocketAddress> serverEndpoints(final InetSocketAddress primary,
+                                                   final String otherHost,
+                                                   final InetSocketAddress localAddress) {
+        final List<InetSocketAddress> endpoints = new ArrayList<>(FAMILIES);
+        endpoints.add(primary);
+        if (isDualStack(localAddress)) {
+            try {
+                for (final InetAddress address : InetAddress.getAllByName(otherHost != null ? otherHost : primary.getHostString())) {
+                    final InetSocketAddress endpoint = new InetSocketAddress(address, primary.getPort());
+                    if (family(endpoint) != family(primary)) {
+                        endpoints.add(endpoint);
+                        break;
+                    }
+                }
+            }
+            catch (final UnknownHostException e) {
+                // both hosts have been resolved on startup, so the host has vanished in the meantime. Stick to the
+                // primary
+            }
+        }
+        return endpoints;
+    }
+
+    private static boolean isDualStack(final InetSocketAddress localAddress) {
+        return localAddress.getAddress() instanceof Inet6Address && localAddress.getAddress().isAnyLocalAddress();
+    }
+}
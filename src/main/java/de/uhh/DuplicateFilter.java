@@ -0,0 +1,40 @@
+package de.uhh;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+/**
+ * Remembers hashes of the most recently seen packets to detect copies of a packet that arrive over more than one
+ * path. QUIC never sends the same packet twice (retransmitted data gets a new packet number), so equal packets are
+ * copies. A hash collision drops a packet, which QUIC recovers from like from any other loss.
+ * <p>
+ * This class is not thread-safe.
+ */
+class DuplicateFilter {
+    private final int[] hashes;
+    private int next;
+    private int size;
+
+    DuplicateFilter(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.hashes = new int[capacity];
+    }
+
+    /**
+     * @return {@code true} if {@code packet} has not been seen recently
+     */
+    boolean add(final ByteBuf packet) {
+        final int hash = ByteBufUtil.hashCode(packet);
+        for (int i = 0; i < size; i++) {
+            if (hashes[i] == hash) {
+                return false;
+            }
+        }
+        hashes[next] = hash;
+        next = (next + 1) % hashes.length;
+        size = Math.max(size, next == 0 ? hashes.length : next);
+        return true;
+    }
+}
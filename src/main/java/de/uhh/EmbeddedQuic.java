@@ -0,0 +1,125 @@
+package de.uhh;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.incubator.codec.quic.QuicClientCodecBuilder;
+import io.netty.incubator.codec.quic.QuicServerCodecBuilder;
+import io.netty.incubator.codec.quic.QuicSslContextBuilder;
+import io.netty.incubator.codec.quic.QuicTokenHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Helpers for the QUIC endpoints embedded into the client pipelines. An embedded endpoint tunnels TCP connections,
+ * one QUIC connection with a single bidirectional stream each. Its QUIC packets are exchanged with the hole punching
+ * handler through a {@link QuicLoopback}, addressed to virtual endpoints: wildcard addresses that never occur on the
+ * network.
+ */
+final class EmbeddedQuic {
+    private static final Logger LOG = LoggerFactory.getLogger(EmbeddedQuic.class);
+    static final String APPLICATION_PROTOCOL = "tls-hole-punching";
+    private static final int MAX_IDLE_TIMEOUT = 30; // seconds
+    private static final long MAX_DATA = 10_000_000; // bytes per connection
+    private static final long MAX_STREAM_DATA = 1_000_000; // bytes per stream
+    private static final long MAX_STREAMS = 16;
+    private static final int VIRTUAL_PORTS = 65535;
+    static final ChannelHandler CONNECTION_HANDLER = new ConnectionHandler();
+
+    private EmbeddedQuic() {
+        // utility class
+    }
+
+    static boolean isVirtual(final InetSocketAddress endpoint) {
+        return endpoint != null && endpoint.getAddress() != null && endpoint.getAddress().isAnyLocalAddress();
+    }
+
+    /**
+     * Returns the {@code n}-th virtual endpoint. Endpoints repeat after {@link #VIRTUAL_PORTS}, far more than
+     * concurrent connections.
+     */
+    static InetSocketAddress virtualEndpoint(final int n) {
+        return new InetSocketAddress("0.0.0.0", 1 + Math.floorMod(n, VIRTUAL_PORTS));
+    }
+
+    /**
+     * @param trustCert certificate of the QUIC server, or {@code null} to trust any certificate (--insecure)
+     */
+    static ChannelHandler clientCodec(final File trustCert) {
+        final QuicSslContextBuilder ssl = QuicSslContextBuilder.forClient();
+        if (trustCert != null) {
+            ssl.trustManager(trustCert);
+        }
+        else {
+            LOG.warn("No certificate to trust given. Accept any certificate of the QUIC server.");
+            ssl.trustManager(InsecureTrustManagerFactory.INSTANCE);
+        }
+        return new QuicClientCodecBuilder()
+                .sslContext(ssl.applicationProtocols(APPLICATION_PROTOCOL).build())
+                .maxIdleTimeout(MAX_IDLE_TIMEOUT, SECONDS)
+                .initialMaxData(MAX_DATA)
+                .initialMaxStreamDataBidirectionalLocal(MAX_STREAM_DATA)
+                .initialMaxStreamDataBidirectionalRemote(MAX_STREAM_DATA)
+                .build();
+    }
+
+    static ChannelHandler serverCodec(final File cert,
+                                      final File key,
+                                      final ChannelHandler streamHandler) {
+        return new QuicServerCodecBuilder()
+                .sslContext(QuicSslContextBuilder.forServer(key, null, cert).applicationProtocols(APPLICATION_PROTOCOL).build())
+                .maxIdleTimeout(MAX_IDLE_TIMEOUT, SECONDS)
+                .initialMaxData(MAX_DATA)
+                .initialMaxStreamDataBidirectionalLocal(MAX_STREAM_DATA)
+                .initialMaxStreamDataBidirectionalRemote(MAX_STREAM_DATA)
+                .initialMaxStreamsBidirectional(MAX_STREAMS)
+                // source addresses are virtual, validating them with a retry is pointless
+                .tokenHandler(new NoRetryTokenHandler())
+                .handler(CONNECTION_HANDLER)
+                .streamHandler(streamHandler)
+                .build();
+    }
+
+    @Sharable
+    private static class ConnectionHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelActive(final ChannelHandlerContext ctx) {
+            LOG.trace("QUIC connection {} established.", ctx.channel());
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        public void channelInactive(final ChannelHandlerContext ctx) {
+            LOG.trace("QUIC connection {} closed.", ctx.channel());
+            ctx.fireChannelInactive();
+        }
+    }
+
+    /**
+     * Accepts every connection without a retry.
+     */
+    private static class NoRetryTokenHandler implements QuicTokenHandler {
+        @Override
+        public boolean writeToken(final ByteBuf out, final ByteBuf dcid, final InetSocketAddress address) {
+            return false;
+        }
+
+        @Override
+        public int validateToken(final ByteBuf token, final InetSocketAddress address) {
+            return -1;
+        }
+
+        @Override
+        public int maxTokenLength() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package de.uhh;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Always-on recorder of the last datagrams of each channel. Every channel gets its own {@link #newHandler()}, a ring
+ * of {@code slots} preallocated records: timestamp, direction, length, remote endpoint, and the first
+ * {@link #SNAP_LENGTH} bytes. Recording copies into the ring and allocates nothing.
+ * <p>
+ * {@link #writePcap(OutputStream)} dumps all rings as pcap file, with IP and UDP headers made up from the endpoints,
+ * so that the capture can be inspected with Wireshark. Rings are copied on the event loops of their channels.
+ */
+class FlightRecorder {
+    private static final Logger LOG = LoggerFactory.getLogger(FlightRecorder.class);
+    static final int SNAP_LENGTH = 128; // bytes of each datagram recorded
+    // at most one dump per interval is written on failures
+    private static final long MIN_DUMP_INTERVAL = SECONDS.toNanos(10);
+    private static final long SNAPSHOT_TIMEOUT = 5; // seconds
+    private static final int PCAP_MAGIC_NANOS = 0xa1b23c4d;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int IPV4_HEADER_LENGTH = 20;
+    private static final int IPV6_HEADER_LENGTH = 40;
+    private static final int UDP_HEADER_LENGTH = 8;
+    private static final InetAddress IPV4_UNSPECIFIED;
+    private static final InetAddress IPV6_UNSPECIFIED;
+
+    static {
+        try {
+            IPV4_UNSPECIFIED = InetAddress.getByAddress(new byte[4]);
+            IPV6_UNSPECIFIED = InetAddress.getByAddress(new byte[16]);
+        }
+        catch (final UnknownHostException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final int slots;
+    private final File dumpDirectory;
+    private final List<Ring> rings = new CopyOnWriteArrayList<>();
+    // maps System.nanoTime() to the wall clock
+    private final long epochNanos;
+    private final long originNanos;
+    private final AtomicLong lastDumpTime = new AtomicLong(System.nanoTime() - MIN_DUMP_INTERVAL);
+    private final ExecutorService dumpExecutor = Executors.newSingleThreadExecutor(new DefaultThreadFactory("flight-recorder", true));
+
+    /**
+     * @param slots         datagrams kept per channel
+     * @param dumpDirectory directory of the dumps written by {@link #dumpOnFailure(String)}, or {@code null} to write
+     *                      none
+     */
+    FlightRecorder(final int slots, final File dumpDirectory) {
+        if (slots <= 0 || slots > Integer.MAX_VALUE / SNAP_LENGTH) {
+            throw new IllegalArgumentException("slots must be positive and fit into an array of prefixes");
+        }
+        this.slots = slots;
+        this.dumpDirectory = dumpDirectory;
+        final Instant now = Instant.now();
+        originNanos = System.nanoTime();
+        epochNanos = now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    /**
+     * Returns a handler that records the datagrams of the channel it is added to. Place it right before the
+     * {@link TlsHolePunchingCodec}.
+     */
+    ChannelHandler newHandler() {
+        return new Ring(slots);
+    }
+
+    /**
+     * Writes the datagrams recorded by all channels, oldest first.
+     */
+    void writePcap(final OutputStream out) throws IOException {
+        final List<Record> records = new ArrayList<>();
+        for (final Ring ring : rings) {
+            records.addAll(ring.snapshot());
+        }
+        records.sort(Comparator.comparingLong(r -> r.time));
+
+        final DataOutputStream pcap = new DataOutputStream(new BufferedOutputStream(out, 65536));
+        pcap.writeInt(PCAP_MAGIC_NANOS);
+        pcap.writeShort(2);
+        pcap.writeShort(4);
+        pcap.writeInt(0); // UTC
+        pcap.writeInt(0);
+        pcap.writeInt(65535);
+        pcap.writeInt(LINKTYPE_RAW);
+        for (final Record record : records) {
+            writeRecord(pcap, record);
+        }
+        pcap.flush();
+    }
+
+    /**
+     * Dumps all rings into a new file of the dump directory, unless there is none or a dump has been written recently.
+     * Returns immediately, the dump is written by a thread of its own.
+     */
+    void dumpOnFailure(final String reason) {
+        if (dumpDirectory == null) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final long last = lastDumpTime.get();
+        if (now - last < MIN_DUMP_INTERVAL || !lastDumpTime.compareAndSet(last, now)) {
+            return;
+        }
+        dumpExecutor.execute(() -> {
+            final File file = new File(dumpDirectory, "flight-recorder-" + Instant.now().toString().replace(':', '-') + ".pcap");
+            try (final OutputStream out = new FileOutputStream(file)) {
+                writePcap(out);
+                LOG.info("{}. Dumped flight recorder to `{}`.", reason, file);
+            }
+            catch (final IOException e) {
+                LOG.warn("Unable to dump flight recorder to `{}`: {}", file, e.toString());
+            }
+        });
+    }
+
+    void close() {
+        dumpExecutor.shutdown();
+    }
+
+    private void writeRecord(final DataOutputStream pcap, final Record record) throws IOException {
+        final InetSocketAddress local = record.local != null ? record.local : new InetSocketAddress(0);
+        final InetSocketAddress remote = record.remote != null ? record.remote : new InetSocketAddress(0);
+        final boolean ipv4 = remote.getAddress() instanceof Inet4Address;
+        final InetSocketAddress src = record.tx ? local : remote;
+        final InetSocketAddress dst = record.tx ? remote : local;
+        final int headerLength = (ipv4 ? IPV4_HEADER_LENGTH : IPV6_HEADER_LENGTH) + UDP_HEADER_LENGTH;
+
+        final long time = epochNanos + (record.time - originNanos);
+        pcap.writeInt((int) (time / 1_000_000_000L));
+        pcap.writeInt((int) (time % 1_000_000_000L));
+        pcap.writeInt(headerLength + record.prefix.length);
+        pcap.writeInt(headerLength + record.length);
+
+        final int udpLength = Math.min(65535, UDP_HEADER_LENGTH + record.length);
+        if (ipv4) {
+            final byte[] header = new byte[IPV4_HEADER_LENGTH];
+            header[0] = 0x45;
+            final int totalLength = Math.min(65535, IPV4_HEADER_LENGTH + udpLength);
+            header[2] = (byte) (totalLength >> 8);
+            header[3] = (byte) totalLength;
+            header[6] = 0x40; // don't fragment
+            header[8] = 64; // ttl
+            header[9] = 17; // UDP
+            System.arraycopy(addressOf(src, true), 0, header, 12, 4);
+            System.arraycopy(addressOf(dst, true), 0, header, 16, 4);
+            final int checksum = checksum(header);
+            header[10] = (byte) (checksum >> 8);
+            header[11] = (byte) checksum;
+            pcap.write(header);
+        }
+        else {
+            pcap.writeInt(0x60000000);
+            pcap.writeShort(udpLength);
+            pcap.writeByte(17); // UDP
+            pcap.writeByte(64); // hop limit
+            pcap.write(addressOf(src, false));
+            pcap.write(addressOf(dst, false));
+        }
+        pcap.writeShort(src.getPort());
+        pcap.writeShort(dst.getPort());
+        pcap.writeShort(udpLength);
+        pcap.writeShort(0); // no checksum, the datagram is truncated anyway
+        pcap.write(record.prefix);
+    }
+
+    // address of endpoint in the family of the record, unspecified if of the other family (e.g. a wildcard bind)
+    private static byte[] addressOf(final InetSocketAddress endpoint, final boolean ipv4) {
+        final InetAddress address = endpoint.getAddress();
+        if (address != null && (address instanceof Inet4Address) == ipv4) {
+            return address.getAddress();
+        }
+        return (ipv4 ? IPV4_UNSPECIFIED : IPV6_UNSPECIFIED).getAddress();
+    }
+
+    private static int checksum(final byte[] header) {
+        int sum = 0;
+        for (int i = 0; i < header.length; i += 2) {
+            sum += ((header[i] & 0xFF) << 8) | (header[i + 1] & 0xFF);
+        }
+        while ((sum >> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        }
+        return ~sum & 0xFFFF;
+    }
+
+    private static class Record {
+        private final long time;
+        private final boolean tx;
+        private final int length;
+        private final InetSocketAddress local;
+        private final InetSocketAddress remote;
+        private final byte[] prefix;
+
+        Record(final long time,
+               final boolean tx,
+               final int length,
+               final InetSocketAddress local,
+               final InetSocketAddress remote,
+               final byte[] prefix) {
+            this.time = time;
+            this.tx = tx;
+            this.length = length;
+            this.local = local;
+            this.remote = remote;
+            this.prefix = prefix;
+        }
+    }
+
+    /**
+     * Ring of one channel. Written only by the channel's event loop, {@link #snapshot()} copies it there.
+     */
+    private class Ring extends ChannelDuplexHandler {
+        private final long[] times;
+        private final boolean[] txs;
+        private final int[] lengths;
+        private final InetSocketAddress[] remotes;
+        private final int[] captured;
+        private final byte[] prefixes;
+        // total datagrams recorded, the next one goes into slot next % slots
+        private long next;
+        private ChannelHandlerContext ctx;
+
+        Ring(final int slots) {
+            times = new long[slots];
+            txs = new boolean[slots];
+            lengths = new int[slots];
+            remotes = new InetSocketAddress[slots];
+            captured = new int[slots];
+            prefixes = new byte[slots * SNAP_LENGTH];
+        }
+
+        @Override
+        public void handlerAdded(final ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+            rings.add(this);
+        }
+
+        @Override
+        public void handlerRemoved(final ChannelHandlerContext ctx) {
+            rings.remove(this);
+        }
+
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+            if (msg instanceof DatagramPacket) {
+                record(false, ((DatagramPacket) msg).sender(), ((DatagramPacket) msg).content());
+            }
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) {
+            if (msg instanceof DatagramPacket) {
+                record(true, ((DatagramPacket) msg).recipient(), ((DatagramPacket) msg).content());
+            }
+            ctx.write(msg, promise);
+        }
+
+        private void record(final boolean tx, final InetSocketAddress remote, final ByteBuf content) {
+            final int slot = (int) (next++ % times.length);
+            times[slot] = System.nanoTime();
+            txs[slot] = tx;
+            lengths[slot] = content.readableBytes();
+            remotes[slot] = remote;
+            captured[slot] = Math.min(SNAP_LENGTH, content.readableBytes());
+            content.getBytes(content.readerIndex(), prefixes, slot * SNAP_LENGTH, captured[slot]);
+        }
+
+        List<Record> snapshot() throws IOException {
+            if (ctx.executor().inEventLoop()) {
+                return copy();
+            }
+            try {
+                return ctx.executor().submit(this::copy).get(SNAPSHOT_TIMEOUT, SECONDS);
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while copying flight recorder.", e);
+            }
+            catch (final ExecutionException | TimeoutException e) {
+                throw new IOException("Unable to copy flight recorder of " + ctx.channel() + ".", e);
+            }
+        }
+
+        private List<Record> copy() {
+            final InetSocketAddress local = (InetSocketAddress) ctx.channel().localAddress();
+            final int size = (int) Math.min(next, times.length);
+            final List<Record> records = new ArrayList<>(size);
+            for (long i = next - size; i < next; i++) {
+                final int slot = (int) (i % times.length);
+                final byte[] prefix = new byte[captured[slot]];
+                System.arraycopy(prefixes, slot * SNAP_LENGTH, prefix, 0, prefix.length);
+                records.add(new Record(times[slot], txs[slot], lengths[slot], local, remotes[slot], prefix));
+            }
+            return records;
+        }
+    }
+}
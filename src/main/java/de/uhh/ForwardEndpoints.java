@@ -1,28 +1,58 @@
 package de.uhh;
 
-import java.net.Inet6Address;
 import java.net.InetSocketAddress;
-
-import static java.util.Objects.requireNonNull;
+import java.util.List;
 
 public class ForwardEndpoints implements TlsHolePunchingMessage {
-    private final InetSocketAddress endpoint;
+    private final List<InetSocketAddress> endpoints;
+    private final int portDelta;
 
     public ForwardEndpoints(final InetSocketAddress endpoint) {
-        if (endpoint.getAddress() instanceof Inet6Address) {
-            throw new RuntimeException("IPv6 not supported!");
+        this(List.of(endpoint));
+    }
+
+    /**
+     * @param endpoints candidate endpoints of the other peer, the one seen by the rendezvous server first
+     */
+    public ForwardEndpoints(final List<InetSocketAddress> endpoints) {
+        this(endpoints, 0);
+    }
+
+    /**
+     * @param endpoints candidate endpoints of the other peer, the one seen by the rendezvous server first
+     * @param portDelta port allocation delta of the other peer's NAT, or {@code 0} if its ports are not predictable
+     */
+    public ForwardEndpoints(final List<InetSocketAddress> endpoints, final int portDelta) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one endpoint required.");
         }
-        this.endpoint = requireNonNull(endpoint);
+        if (Math.abs(portDelta) > PortPrediction.MAX_PORT_DELTA) {
+            throw new IllegalArgumentException("Port delta must not exceed " + PortPrediction.MAX_PORT_DELTA + ".");
+        }
+        this.endpoints = List.copyOf(endpoints);
+        this.portDelta = portDelta;
     }
 
     @Override
     public String toString() {
         return "ForwardEndpoints{" +
-                "endpoint=" + endpoint +
+                "endpoints=" + endpoints +
+                ", portDelta=" + portDelta +
                 '}';
     }
 
+    /**
+     * @return endpoint seen by the rendezvous server
+     */
     public InetSocketAddress getEndpoint() {
-        return endpoint;
+        return endpoints.get(0);
+    }
+
+    public List<InetSocketAddress> getEndpoints() {
+        return endpoints;
+    }
+
+    public int getPortDelta() {
+        return portDelta;
     }
 }
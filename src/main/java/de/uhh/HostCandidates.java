@@ -0,0 +1,65 @@
+package de.uhh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Gathers the local endpoints of a socket. Peers behind the same NAT reach each other on these endpoints without
+ * relying on the NAT to hairpin.
+ */
+final class HostCandidates {
+    private static final Logger LOG = LoggerFactory.getLogger(HostCandidates.class);
+
+    private HostCandidates() {
+        // utility class
+    }
+
+    /**
+     * Returns at most {@link Register#MAX_CANDIDATES} endpoints {@code localAddress} is reachable on. Loopback and
+     * link-local addresses are omitted, they are of no use for other hosts.
+     */
+    static List<InetSocketAddress> gather(final InetSocketAddress localAddress) {
+        final List<InetSocketAddress> candidates = new ArrayList<>();
+        if (!localAddress.getAddress().isAnyLocalAddress()) {
+            if (isUsable(localAddress.getAddress())) {
+                candidates.add(localAddress);
+            }
+            return candidates;
+        }
+
+        // a wildcard socket opened as IPv4 socket can not reach IPv6 endpoints
+        final boolean dualStack = localAddress.getAddress() instanceof Inet6Address;
+        try {
+            for (final NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+                    continue;
+                }
+                for (final InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                    if (candidates.size() < Register.MAX_CANDIDATES && isUsable(address) && (dualStack || address instanceof Inet4Address)) {
+                        // drop the scope, it is meaningless on other hosts
+                        candidates.add(new InetSocketAddress(InetAddress.getByAddress(address.getAddress()), localAddress.getPort()));
+                    }
+                }
+            }
+        }
+        catch (final SocketException | UnknownHostException e) {
+            LOG.warn("Unable to gather host candidates: {}", e.toString());
+        }
+        return candidates;
+    }
+
+    private static boolean isUsable(final InetAddress address) {
+        return !address.isLoopbackAddress() && !address.isLinkLocalAddress();
+    }
+}
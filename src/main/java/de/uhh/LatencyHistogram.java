@@ -0,0 +1,109 @@
+package de.uhh;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of latencies with the bucket layout of an HdrHistogram: below {@code 2 * SUB_BUCKETS} microseconds
+ * every value has its own bucket, above each power of two is split into {@link #SUB_BUCKETS} buckets. Recorded values
+ * are thus known within 1/{@link #SUB_BUCKETS} (6.25%) of their magnitude, from microseconds to days, with a fixed
+ * number of counters.
+ * <p>
+ * Recording takes no lock and allocates nothing, and {@link #snapshot()} may be called from any thread.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values above are clamped, 2^40 microseconds are about 12 days
+    private static final long MAX_VALUE = (1L << 40) - 1; // microseconds
+    private static final int BUCKETS = indexOf(MAX_VALUE) + 1;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(final long nanos) {
+        final long micros = Math.min(MAX_VALUE, Math.max(0, nanos / 1_000));
+        counts.incrementAndGet(indexOf(micros));
+        sum.add(nanos);
+        if (nanos > max.get()) {
+            max.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    Snapshot snapshot() {
+        final long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, sum.sum(), max.get());
+    }
+
+    private static int indexOf(final long micros) {
+        if (micros < 2 * SUB_BUCKETS) {
+            return (int) micros;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (micros >>> shift);
+    }
+
+    // highest value that falls into bucket index
+    private static long highestValueOf(final int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Counts of a {@link LatencyHistogram} at one point in time. Counts and sum may be off by the values recorded
+     * while the snapshot was taken.
+     */
+    static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(final long[] counts, final long count, final long sum, final long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        long count() {
+            return count;
+        }
+
+        /**
+         * @return sum of all values in nanoseconds
+         */
+        long sum() {
+            return sum;
+        }
+
+        /**
+         * @return value in nanoseconds at least {@code quantile} of all values are equal to or lower than, 0 if
+         * empty
+         */
+        long valueAt(final double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(max, highestValueOf(i) * 1_000 + 999);
+                }
+            }
+            return max;
+        }
+    }
+}
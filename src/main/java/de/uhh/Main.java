@@ -13,7 +13,8 @@ import picocli.CommandLine.HelpCommand;
                 HelpCommand.class,
                 ActiveClientCommand.class,
                 PassiveClientCommand.class,
-                RendezvousServer.class
+                RendezvousServer.class,
+                ConvertLogCommand.class
         }
 )
 public class Main {
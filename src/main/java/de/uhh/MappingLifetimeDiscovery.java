@@ -0,0 +1,186 @@
+package de.uhh;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.AddressedEnvelope;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.DefaultAddressedEnvelope;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Discovers how long our NAT keeps an idle mapping (RFC 5780, 4.6). A dedicated socket asks the rendezvous server to
+ * respond after increasing delays, then narrows down between the longest delay answered and the shortest one
+ * that was not. The socket sends nothing else, so the mapping is idle while the server waits.
+ * <p>
+ * Until a lifetime has been found, {@link #keepaliveInterval()} returns the initial interval. All methods must be
+ * called on the event loop of the channel passed to {@link #start(ChannelHandlerContext)}.
+ */
+class MappingLifetimeDiscovery {
+    private static final Logger LOG = LoggerFactory.getLogger(MappingLifetimeDiscovery.class);
+    // search stops when the lifetime is known this precisely
+    private static final int PRECISION = 5; // seconds
+    // time to wait for a response after its delay has passed
+    private static final int RESPONSE_TIMEOUT = 5; // seconds
+    private final InetSocketAddress serverEndpoint;
+    private final int initialInterval;
+    private final int maxInterval;
+    private ChannelFuture channelFuture;
+    private ScheduledFuture<?> timeout;
+    // longest delay that has been answered, shortest one that has not (0 if none yet)
+    private int lowerBound;
+    private int upperBound;
+    private int delay;
+    private long requestTime;
+    private int keepaliveInterval;
+    private boolean lifetimeKnown;
+
+    /**
+     * @param initialInterval keepalive interval until the lifetime is known, also the first delay probed
+     * @param maxInterval     keepalive interval is never longer, the rendezvous server expires registrations
+     */
+    MappingLifetimeDiscovery(final InetSocketAddress serverEndpoint,
+                             final int initialInterval,
+                             final int maxInterval) {
+        if (initialInterval < 1 || maxInterval < initialInterval) {
+            throw new IllegalArgumentException("intervals must be positive and initialInterval must not exceed maxInterval");
+        }
+        this.serverEndpoint = requireNonNull(serverEndpoint);
+        this.initialInterval = initialInterval;
+        this.maxInterval = maxInterval;
+        this.keepaliveInterval = initialInterval;
+    }
+
+    /**
+     * Opens the probe socket next to {@code ctx}'s channel and starts the search.
+     */
+    void start(final ChannelHandlerContext ctx) {
+        final DatagramTransport transport = ctx.channel() instanceof EpollDatagramChannel ? DatagramTransport.EPOLL : DatagramTransport.NIO;
+        final InetSocketAddress localAddress = (InetSocketAddress) ctx.channel().localAddress();
+        channelFuture = transport.configure(new Bootstrap().group(ctx.channel().eventLoop()))
+                .handler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(final Channel ch) {
+                        final ChannelPipeline p = ch.pipeline();
+                        transport.initPipeline(p);
+                        p.addLast(new TlsHolePunchingCodec());
+                        p.addLast(new ProbeHandler());
+                    }
+                })
+                .bind(localAddress.getAddress(), 0);
+        channelFuture.addListener(f -> {
+            if (f.isSuccess()) {
+                probe(initialInterval);
+            }
+            else {
+                LOG.warn("Unable to open socket for mapping lifetime discovery: {}", f.cause().toString());
+            }
+        });
+    }
+
+    void close() {
+        if (timeout != null) {
+            timeout.cancel(false);
+            timeout = null;
+        }
+        if (channelFuture != null) {
+            channelFuture.channel().close();
+        }
+    }
+
+    /**
+     * @return seconds between two registrations that keep our mapping alive
+     */
+    int keepaliveInterval() {
+        return keepaliveInterval;
+    }
+
+    /**
+     * @return {@code true} once {@link #keepaliveInterval()} is derived from a discovered lifetime
+     */
+    boolean isLifetimeKnown() {
+        return lifetimeKnown;
+    }
+
+    private void probe(final int delay) {
+        LOG.trace("Ask rendezvous server `{}` to respond after {}s.", serverEndpoint, delay);
+        this.delay = delay;
+        requestTime = System.nanoTime();
+        final Channel channel = channelFuture.channel();
+        channel.writeAndFlush(new DefaultAddressedEnvelope<>(new BindingRequest(delay), serverEndpoint));
+        timeout = channel.eventLoop().schedule(this::timedOut, delay + RESPONSE_TIMEOUT, SECONDS);
+    }
+
+    private void answered() {
+        timeout.cancel(false);
+        timeout = null;
+        LOG.trace("Mapping has survived {}s idle.", delay);
+        lowerBound = delay;
+        if (lowerBound >= maxInterval) {
+            found();
+        }
+        else if (upperBound == 0) {
+            probe(Math.min(maxInterval, 2 * delay));
+        }
+        else {
+            next();
+        }
+    }
+
+    private void timedOut() {
+        timeout = null;
+        LOG.trace("No response after {}s. Mapping has been dropped while idle.", delay);
+        upperBound = delay;
+        next();
+    }
+
+    private void next() {
+        if (upperBound - lowerBound <= PRECISION) {
+            found();
+        }
+        else {
+            probe((lowerBound + upperBound) / 2);
+        }
+    }
+
+    private void found() {
+        channelFuture.channel().close();
+        if (lowerBound == 0) {
+            // as likely as a mapping that lives only seconds: the server does not answer delayed requests
+            LOG.warn("Rendezvous server has not answered any binding request. Keep keepalive interval of {}s.", keepaliveInterval);
+            return;
+        }
+        // stay below the lifetime, NATs expire mappings on coarse timer ticks
+        keepaliveInterval = upperBound == 0 ? Math.min(maxInterval, lowerBound) : lowerBound - lowerBound / 10;
+        lifetimeKnown = true;
+        LOG.debug("Mapping survives {}s idle{}. Keepalive interval is {}s.", lowerBound, upperBound != 0 ? ", but not " + upperBound + "s" : "", keepaliveInterval);
+    }
+
+    private class ProbeHandler extends SimpleChannelInboundHandler<AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress>> {
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx,
+                                    final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> msg) {
+            if (!serverEndpoint.equals(msg.sender()) || !(msg.content() instanceof BindingResponse)) {
+                LOG.trace("Got unexpected message {} from `{}`.", msg.content(), msg.sender());
+            }
+            else if (timeout == null || System.nanoTime() - requestTime < SECONDS.toNanos(delay)) {
+                // response to a request that has timed out before
+                LOG.trace("Got late binding response. Ignore.");
+            }
+            else {
+                answered();
+            }
+        }
+    }
+}
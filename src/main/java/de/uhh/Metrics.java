@@ -0,0 +1,148 @@
+package de.uhh;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static de.uhh.TlsHolePunchingCodec.MAGIC_NUMBER_ACKNOWLEDGEMENT;
+import static de.uhh.TlsHolePunchingCodec.MAGIC_NUMBER_BINDING_REQUEST;
+import static de.uhh.TlsHolePunchingCodec.MAGIC_NUMBER_BINDING_RESPONSE;
+import static de.uhh.TlsHolePunchingCodec.MAGIC_NUMBER_BUNDLE;
+import static de.uhh.TlsHolePunchingCodec.MAGIC_NUMBER_CONNECTION_REQUEST;
+import static de.uhh.TlsHolePunchingCodec.MAGIC_NUMBER_FORWARD_ENDPOINTS;
+import static de.uhh.TlsHolePunchingCodec.MAGIC_NUMBER_REACHABILITY_CHECK;
+import static de.uhh.TlsHolePunchingCodec.MAGIC_NUMBER_REGISTER;
+import static de.uhh.TlsHolePunchingCodec.MAGIC_NUMBER_RELAY_ORIGIN;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Always-on metrics of a command: packets and bytes per message type and direction, counted by {@link
+ * MetricsHandler}, and latency distributions of the connection phases. Event loops update them without locks,
+ * {@link #writePrometheus(Appendable)} reads them from any thread.
+ */
+class Metrics {
+    static final int RX = 0;
+    static final int TX = 1;
+    private static final String[] DIRECTIONS = { "rx", "tx" };
+    // control messages in the order of typeOf, followed by the two QUIC header forms
+    private static final String[] MESSAGE_TYPES = {
+            "connection_request",
+            "forward_endpoints",
+            "reachability_check",
+            "acknowledgement",
+            "register",
+            "bundle",
+            "binding_request",
+            "binding_response",
+            "relay_origin",
+            "quic_long",
+            "quic_short"
+    };
+    private static final int QUIC_LONG = MESSAGE_TYPES.length - 2;
+    private static final int QUIC_SHORT = MESSAGE_TYPES.length - 1;
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999, 1 };
+    private final String role;
+    private final LongAdder[][] packets = new LongAdder[DIRECTIONS.length][MESSAGE_TYPES.length];
+    private final LongAdder[][] bytes = new LongAdder[DIRECTIONS.length][MESSAGE_TYPES.length];
+    // by phase and labels of the session
+    private final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> phases = new ConcurrentHashMap<>();
+
+    /**
+     * @param role value of the {@code role} label of all metrics
+     */
+    Metrics(final String role) {
+        this.role = requireNonNull(role);
+        for (int direction = 0; direction < DIRECTIONS.length; direction++) {
+            for (int type = 0; type < MESSAGE_TYPES.length; type++) {
+                packets[direction][type] = new LongAdder();
+                bytes[direction][type] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * Counts a datagram received ({@link #RX}) or sent ({@link #TX}).
+     */
+    void datagram(final int direction, final ByteBuf content) {
+        if (!content.isReadable()) {
+            return;
+        }
+        final int type = typeOf(content.getByte(content.readerIndex()));
+        packets[direction][type].increment();
+        bytes[direction][type].add(content.readableBytes());
+    }
+
+    /**
+     * Returns the distribution of {@code phase} for sessions with {@code labels}, e.g. {@code mode="parallel"}. Look
+     * it up once per session, not per packet.
+     */
+    LatencyHistogram phase(final String phase, final String labels) {
+        return phases.computeIfAbsent(phase, k -> new ConcurrentHashMap<>()).computeIfAbsent(labels, k -> new LatencyHistogram());
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format (version 0.0.4).
+     */
+    void writePrometheus(final Appendable out) throws IOException {
+        writeCounters(out, "tls_hole_punching_packets_total", packets);
+        writeCounters(out, "tls_hole_punching_bytes_total", bytes);
+
+        out.append("# TYPE tls_hole_punching_phase_seconds summary\n");
+        for (final Map.Entry<String, ConcurrentMap<String, LatencyHistogram>> phase : phases.entrySet()) {
+            for (final Map.Entry<String, LatencyHistogram> histogram : phase.getValue().entrySet()) {
+                final String labels = "role=\"" + role + "\",phase=\"" + phase.getKey() + "\"," + histogram.getKey();
+                final LatencyHistogram.Snapshot snapshot = histogram.getValue().snapshot();
+                for (final double quantile : QUANTILES) {
+                    out.append("tls_hole_punching_phase_seconds{").append(labels).append(",quantile=\"").append(String.valueOf(quantile)).append("\"} ").append(seconds(snapshot.valueAt(quantile))).append('\n');
+                }
+                out.append("tls_hole_punching_phase_seconds_sum{").append(labels).append("} ").append(seconds(snapshot.sum())).append('\n');
+                out.append("tls_hole_punching_phase_seconds_count{").append(labels).append("} ").append(String.valueOf(snapshot.count())).append('\n');
+            }
+        }
+    }
+
+    private void writeCounters(final Appendable out,
+                               final String name,
+                               final LongAdder[][] counters) throws IOException {
+        out.append("# TYPE ").append(name).append(" counter\n");
+        for (int direction = 0; direction < DIRECTIONS.length; direction++) {
+            for (int type = 0; type < MESSAGE_TYPES.length; type++) {
+                out.append(name).append("{role=\"").append(role).append("\",direction=\"").append(DIRECTIONS[direction]).append("\",type=\"").append(MESSAGE_TYPES[type]).append("\"} ").append(String.valueOf(counters[direction][type].sum())).append('\n');
+            }
+        }
+    }
+
+    private static int typeOf(final byte firstByte) {
+        switch (firstByte) {
+            case MAGIC_NUMBER_CONNECTION_REQUEST:
+                return 0;
+            case MAGIC_NUMBER_FORWARD_ENDPOINTS:
+                return 1;
+            case MAGIC_NUMBER_REACHABILITY_CHECK:
+                return 2;
+            case MAGIC_NUMBER_ACKNOWLEDGEMENT:
+                return 3;
+            case MAGIC_NUMBER_REGISTER:
+                return 4;
+            case MAGIC_NUMBER_BUNDLE:
+                return 5;
+            case MAGIC_NUMBER_BINDING_REQUEST:
+                return 6;
+            case MAGIC_NUMBER_BINDING_RESPONSE:
+                return 7;
+            case MAGIC_NUMBER_RELAY_ORIGIN:
+                return 8;
+            default:
+                // most significant bit is the header form (RFC 9000, 17.2)
+                return (firstByte & 0x80) != 0 ? QUIC_LONG : QUIC_SHORT;
+        }
+    }
+
+    private static String seconds(final long nanos) {
+        return String.valueOf(nanos / 1e9);
+    }
+}
@@ -0,0 +1,119 @@
+package de.uhh;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Serves {@link Metrics} in the Prometheus text format at {@code http://127.0.0.1:<port>/metrics}. Scrapes run on a
+ * thread of their own and only read the metrics, so they never block an event loop. If given, the
+ * {@link FlightRecorder} is dumped at {@code http://127.0.0.1:<port>/flight-recorder.pcap}.
+ */
+class MetricsEndpoint implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsEndpoint.class);
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String PCAP_CONTENT_TYPE = "application/vnd.tcpdump.pcap";
+    private final Metrics metrics;
+    private final FlightRecorder recorder;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    MetricsEndpoint(final Metrics metrics, final FlightRecorder recorder, final int port) throws IOException {
+        this.metrics = requireNonNull(metrics);
+        this.recorder = recorder;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = Executors.newSingleThreadExecutor(new DefaultThreadFactory("metrics", true));
+        server.setExecutor(executor);
+        server.createContext("/metrics", this::scrape);
+        if (recorder != null) {
+            server.createContext("/flight-recorder.pcap", this::dump);
+        }
+        server.start();
+    }
+
+    InetSocketAddress address() {
+        return server.getAddress();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private void scrape(final HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            final StringBuilder body = new StringBuilder(8192);
+            metrics.writePrometheus(body);
+            final byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private void dump(final HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            final ByteArrayOutputStream body = new ByteArrayOutputStream(65536);
+            recorder.writePcap(body);
+            exchange.getResponseHeaders().set("Content-Type", PCAP_CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.size());
+            try (final OutputStream out = exchange.getResponseBody()) {
+                body.writeTo(out);
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Serves {@code metrics} and, if not {@code null}, {@code recorder} on {@code port} and prints the URL on behalf
+     * of {@code owner}.
+     *
+     * @return the endpoint, or {@code null} if {@code port} is 0 or unavailable
+     */
+    static MetricsEndpoint start(final Metrics metrics,
+                                 final FlightRecorder recorder,
+                                 final String owner,
+                                 final int port) {
+        if (port == 0) {
+            return null;
+        }
+        try {
+            final MetricsEndpoint endpoint = new MetricsEndpoint(metrics, recorder, port);
+            System.out.println(owner + " serving metrics on `http://" + endpoint.address().getHostString() + ":" + endpoint.address().getPort() + "/metrics`.");
+            return endpoint;
+        }
+        catch (final IOException e) {
+            LOG.warn("Unable to serve metrics on port {}: {}", port, e.toString());
+            return null;
+        }
+    }
+}
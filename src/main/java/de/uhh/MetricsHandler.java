@@ -0,0 +1,38 @@
+package de.uhh;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.DatagramPacket;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Counts datagrams passing between the socket and the {@link TlsHolePunchingCodec} in {@link Metrics}. Must be placed
+ * after the transport specific handlers, so that it sees every datagram before segmentation.
+ */
+@Sharable
+class MetricsHandler extends ChannelDuplexHandler {
+    private final Metrics metrics;
+
+    MetricsHandler(final Metrics metrics) {
+        this.metrics = requireNonNull(metrics);
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+        if (msg instanceof DatagramPacket) {
+            metrics.datagram(Metrics.RX, ((DatagramPacket) msg).content());
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) {
+        if (msg instanceof DatagramPacket) {
+            metrics.datagram(Metrics.TX, ((DatagramPacket) msg).content());
+        }
+        ctx.write(msg, promise);
+    }
+}
@@ -1,30 +1,41 @@
 package de.uhh;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.AddressedEnvelope;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.DefaultAddressedEnvelope;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioDatagramChannel;
-import io.netty.handler.timeout.IdleStateEvent;
-import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.incubator.codec.quic.QuicPacketType;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 
+import java.io.File;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 @Command(
         name = "passive-client",
@@ -34,11 +45,15 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 public class PassiveClientCommand implements Runnable {
     private static final Logger LOG = LoggerFactory.getLogger(PassiveClientCommand.class);
     public static final int IDLE_RESET_TIMEOUT = 10; // seconds
+    // an established peer is dropped after this many unanswered keepalives
+    static final int MISSED_KEEPALIVES = 3;
+    // packets remembered per peer to drop copies that arrive both relayed and directly
+    private static final int RECENT_PACKETS = 64;
     @Option(
             names = { "--own-id" },
             defaultValue = "b"
     )
-    protected Character ownId;
+    protected String ownId;
     @Option(
             names = { "--bind-host" },
             defaultValue = "0.0.0.0"
@@ -54,11 +69,30 @@ public class PassiveClientCommand implements Runnable {
             defaultValue = "127.0.0.1"
     )
     protected String serverHost;
+    @Option(names = { "--server-host6" })
+    protected String serverHost6; // IPv6 address of the server if --server-host is an IPv4 address, same port
     @Option(
             names = { "--server-port" },
             defaultValue = "8012"
     )
     protected int serverPort;
+    @Option(
+            names = { "--server-secondary-port" },
+            defaultValue = "8013"
+    )
+    protected int serverSecondaryPort; // 0 disables the port delta discovery
+    @Option(
+            names = { "--register-interval" },
+            defaultValue = "30"
+    )
+    protected int registerInterval; // seconds, until the lifetime of our NAT mapping is known
+    @Option(
+            names = { "--max-register-interval" },
+            defaultValue = "60"
+    )
+    protected int maxRegisterInterval; // seconds, must be shorter than the server's peer ttl
+    @Option(names = "--no-lifetime-discovery")
+    protected boolean noLifetimeDiscovery;
     private InetSocketAddress serverEndpoint;
     @Option(
             names = { "--target-host" },
@@ -71,24 +105,109 @@ public class PassiveClientCommand implements Runnable {
     )
     protected int targetPort;
     private InetSocketAddress targetEndpoint;
+    @Option(
+            names = { "--initial-rto" },
+            defaultValue = "200"
+    )
+    protected int initialRto; // milliseconds
+    @Option(
+            names = { "--max-retransmissions" },
+            defaultValue = "6"
+    )
+    protected int maxRetransmissions;
+    @Option(
+            names = { "--upstream-pool-size" },
+            defaultValue = "16"
+    )
+    protected int upstreamPoolSize;
+    @Option(
+            names = { "--keepalive-interval" },
+            defaultValue = "15"
+    )
+    protected int keepaliveInterval; // seconds until the mapping lifetime is known, 0 disables keepalives
+    @Option(
+            names = { "--max-pending-bytes" },
+            defaultValue = "65536"
+    )
+    protected int maxPendingBytes; // per peer, QUIC packets held back until the path is acknowledged
+    @Option(names = "--no-host-candidates")
+    protected boolean noHostCandidates;
+    @Option(
+            names = { "--spray-ports" },
+            defaultValue = "16"
+    )
+    protected int sprayPorts; // predicted ports of the other client probed, 0 disables port prediction
+    @Option(
+            names = { "--spray-rate" },
+            defaultValue = "100"
+    )
+    protected int sprayRate; // probes per second
+    @Option(
+            names = { "--transport" },
+            defaultValue = "NIO"
+    )
+    protected DatagramTransport transport;
+    @Option(names = "--embedded")
+    protected boolean embedded; // terminate QUIC in-process and forward its streams to the TCP target
+    @Option(names = { "--cert" })
+    protected File cert; // PEM, required in embedded mode
+    @Option(names = { "--key" })
+    protected File key; // PEM, PKCS#8, required in embedded mode
+    @Option(
+            names = { "--metrics-port" },
+            defaultValue = "0"
+    )
+    protected int metricsPort; // local Prometheus scrape endpoint, 0 disables it
+    @Option(
+            names = { "--flight-recorder" },
+            defaultValue = "4096"
+    )
+    protected int flightRecorderSlots; // datagrams kept per socket, 0 disables the flight recorder
+    @Option(names = { "--flight-recorder-dir" })
+    protected File flightRecorderDir; // failed hole punching dumps the flight recorder here. No dumps if unset
+    private final Metrics metrics = new Metrics("passive");
+    private FlightRecorder flightRecorder;
+    // of the path to the rendezvous server. Peers start from it
+    private RttEstimator serverRttEstimator;
 
     @Override
     public void run() {
         serverEndpoint = new InetSocketAddress(serverHost, serverPort);
+        if (serverHost6 != null && new InetSocketAddress(serverHost6, serverPort).isUnresolved()) {
+            throw new IllegalArgumentException("unable to resolve --server-host6 `" + serverHost6 + "`");
+        }
         targetEndpoint = new InetSocketAddress(targetHost, targetPort);
+        serverRttEstimator = new RttEstimator(MILLISECONDS.toNanos(initialRto));
 
-        final EventLoopGroup group = new NioEventLoopGroup(1);
+        if (embedded && (cert == null || key == null)) {
+            throw new IllegalArgumentException("embedded mode requires --cert and --key");
+        }
+
+        final DatagramTransport transport = this.transport.orFallback();
+        final EventLoopGroup group = transport.newEventLoopGroup(1);
+        flightRecorder = flightRecorderSlots > 0 ? new FlightRecorder(flightRecorderSlots, flightRecorderDir) : null;
+        final MetricsEndpoint metricsEndpoint = MetricsEndpoint.start(metrics, flightRecorder, PassiveClientCommand.class.getSimpleName(), metricsPort);
         try {
-            final Bootstrap b = new Bootstrap()
-                    .group(group)
-                    .channel(NioDatagramChannel.class)
+            final Bootstrap b = transport.configure(new Bootstrap().group(group))
                     .handler(new ChannelInitializer<>() {
                         @Override
                         protected void initChannel(final Channel ch) {
                             final ChannelPipeline p = ch.pipeline();
-                            p.addLast(new IdleStateHandler(0, 0, IDLE_RESET_TIMEOUT));
+                            transport.initPipeline(p);
+                            p.addLast(new MetricsHandler(metrics));
+                            final QuicLoopback loopback = embedded ? new QuicLoopback() : null;
+                            if (embedded) {
+                                p.addLast(loopback.networkSide());
+                            }
+                            if (flightRecorder != null) {
+                                p.addLast(flightRecorder.newHandler());
+                            }
                             p.addLast(new TlsHolePunchingCodec());
                             p.addLast(new PassiveClientHandler(PassiveClientCommand.this));
+                            if (embedded) {
+                                p.addLast(loopback.quicSide());
+                                p.addLast(EmbeddedQuic.serverCodec(cert, key, new TargetConnector(transport, targetEndpoint)));
+                            }
                         }
                     });
             final Channel ch = b.bind(bindHost, bindPort).syncUninterruptibly().channel();
@@ -97,177 +216,579 @@ public class PassiveClientCommand implements Runnable {
             System.out.println(PassiveClientCommand.class.getSimpleName() + " has id `" + ownId + "`.");
             System.out.println(PassiveClientCommand.class.getSimpleName() + " listening on `" + ch.localAddress() + "`.");
             System.out.println(PassiveClientCommand.class.getSimpleName() + " will contact server at `" + serverEndpoint + "`.");
+            if (embedded) {
+                System.out.println(PassiveClientCommand.class.getSimpleName() + " will forward QUIC streams to TCP `" + targetEndpoint + "`.");
+            }
 
-            ch.closeFuture().awaitUninterruptibly();
+            ch.closeFuture().await();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
         finally {
+            if (metricsEndpoint != null) {
+                metricsEndpoint.close();
+            }
+            if (flightRecorder != null) {
+                flightRecorder.close();
+            }
             group.shutdownGracefully();
         }
     }
 
+    private void punchFailed(final String reason) {
+        if (flightRecorder != null) {
+            flightRecorder.dumpOnFailure(reason);
+        }
+    }
+
+    /**
+     * Connects each QUIC stream of the embedded QUIC server to the TCP target. The stream is read once the TCP
+     * connection is established.
+     */
+    private static class TargetConnector extends ChannelInitializer<QuicStreamChannel> {
+        private final DatagramTransport transport;
+        private final InetSocketAddress targetEndpoint;
+
+        TargetConnector(final DatagramTransport transport,
+                        final InetSocketAddress targetEndpoint) {
+            this.transport = transport;
+            this.targetEndpoint = targetEndpoint;
+        }
+
+        @Override
+        protected void initChannel(final QuicStreamChannel stream) {
+            stream.config().setAutoRead(false);
+            final ChannelFuture connectFuture = new Bootstrap()
+                    .group(stream.eventLoop())
+                    .channel(transport.socketChannel())
+                    .handler(new StreamBridge(stream))
+                    .connect(targetEndpoint);
+            connectFuture.addListener(f -> {
+                if (f.isSuccess()) {
+                    LOG.trace("Forward stream {} to TCP `{}`.", stream, targetEndpoint);
+                    stream.pipeline().addLast(new StreamBridge(connectFuture.channel()));
+                    stream.config().setAutoRead(true);
+                }
+                else {
+                    LOG.warn("Unable to connect to TCP `{}`: {}", targetEndpoint, f.cause().toString());
+                    stream.close();
+                }
+            });
+        }
+    }
+
     private static class PassiveClientHandler extends SimpleChannelInboundHandler<AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress>> {
         private final PassiveClientCommand client;
-        private InetSocketAddress otherClientEndpoint;
+        private final Map<InetSocketAddress, Peer> peers = new HashMap<>();
+        // bound upstream sockets currently not assigned to any peer
+        private final Deque<UpstreamHandler> idleUpstreams = new ArrayDeque<>();
+        // upstream sockets with writes that will be flushed at the end of the current read batch
+        private final List<UpstreamHandler> unflushedUpstreams = new ArrayList<>();
+        private final WriteBatch writeBatch = new WriteBatch();
+        // peers by the virtual endpoint they have towards the embedded QUIC server
+        private final Map<InetSocketAddress, Peer> peersByQuicEndpoint = new HashMap<>();
+        private int virtualEndpoints;
+        private ChannelHandlerContext ctx;
+        private List<InetSocketAddress> serverEndpoints;
+        private MappingLifetimeDiscovery lifetimeDiscovery;
+        private PortPrediction portPrediction;
+        // peers by the connection ids their QUIC clients use towards the QUIC server, to tell relayed packets apart
+        private final Map<ByteBuf, Peer> peersByConnectionId = new HashMap<>();
+        private final BitSet connectionIdLengths = new BitSet();
+        // requester of the relayed QUIC packet that directly follows
+        private InetSocketAddress relayOrigin;
 
         private enum State {
-            INITIALIZED,
             CHECKING, // performing reachability checks
             ACKNOWLEDGED // got acknowledgement
         }
 
-        private State state = State.INITIALIZED;
-        private List<AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress>> pendingWrites = new ArrayList<>();
-
         public PassiveClientHandler(final PassiveClientCommand client) {
             this.client = client;
         }
 
         @Override
         public void channelActive(final ChannelHandlerContext ctx) {
+            this.ctx = ctx;
             ctx.fireChannelActive();
 
-            ctx.executor().scheduleWithFixedDelay(() -> {
-                LOG.trace("Register at rendezvous server `{}`.", client.serverEndpoint);
-                ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new Register(client.ownId), client.serverEndpoint));
-            }, 0, 30_000, MILLISECONDS);
+            if (!client.embedded) {
+                for (int i = 0; i < client.upstreamPoolSize; i++) {
+                    idleUpstreams.add(newUpstream());
+                }
+            }
+
+            // register over each address family, so that the server can choose the path for each session
+            serverEndpoints = DualStack.serverEndpoints(client.serverEndpoint, client.serverHost6, (InetSocketAddress) ctx.channel().localAddress());
+            portPrediction = new PortPrediction(client.serverEndpoint, client.serverSecondaryPort, client.serverRttEstimator);
+            // registrations keep our NAT mapping alive, as rarely as its lifetime permits
+            lifetimeDiscovery = new MappingLifetimeDiscovery(client.serverEndpoint, client.registerInterval, client.maxRegisterInterval);
+            if (!client.noLifetimeDiscovery) {
+                lifetimeDiscovery.start(ctx);
+            }
+            registerPeriodically(ctx);
+            ctx.executor().scheduleWithFixedDelay(this::expirePeers, 1_000, 1_000, MILLISECONDS);
+        }
+
+        private void registerPeriodically(final ChannelHandlerContext ctx) {
+            register();
+            portPrediction.discover(ctx);
+            ctx.executor().schedule(() -> registerPeriodically(ctx), lifetimeDiscovery.keepaliveInterval(), SECONDS);
+        }
+
+        private void register() {
+            // gathered anew, as interfaces may have changed
+            final List<InetSocketAddress> candidates = client.noHostCandidates ? List.of() : HostCandidates.gather((InetSocketAddress) ctx.channel().localAddress());
+            for (final InetSocketAddress serverEndpoint : serverEndpoints) {
+                // port delta has been discovered over the primary endpoint only
+                final int portDelta = serverEndpoint.equals(client.serverEndpoint) ? portPrediction.portDelta() : 0;
+                LOG.trace("Register at rendezvous server `{}` with candidates `{}` and port delta {}.", serverEndpoint, candidates, portDelta);
+                ctx.write(new DefaultAddressedEnvelope<>(new Register(client.ownId, null, candidates, portDelta), serverEndpoint));
+            }
+            ctx.flush();
         }
 
         @Override
-        public void userEventTriggered(final ChannelHandlerContext ctx,
-                                       final Object evt) {
-            if (evt instanceof IdleStateEvent) {
-                if (state != State.INITIALIZED || !pendingWrites.isEmpty()) {
-                    LOG.info("No read for {}s. Reset state.", IDLE_RESET_TIMEOUT);
-                }
-                state = State.INITIALIZED;
-                otherClientEndpoint = null;
-                pendingWrites.clear();
+        public void channelInactive(final ChannelHandlerContext ctx) {
+            for (final Peer peer : new HashSet<>(peers.values())) {
+                peer.close();
+            }
+            lifetimeDiscovery.close();
+            for (final UpstreamHandler upstream : idleUpstreams) {
+                upstream.channelFuture.channel().close();
+            }
+            idleUpstreams.clear();
+            ctx.fireChannelInactive();
+        }
+
+        // paths live in the same NAT mapping as our registrations, the configured interval applies until its lifetime is known
+        private int keepaliveInterval() {
+            return client.keepaliveInterval > 0 && lifetimeDiscovery.isLifetimeKnown() ? lifetimeDiscovery.keepaliveInterval() : client.keepaliveInterval;
+        }
+
+        private void expirePeers() {
+            final long now = System.currentTimeMillis();
+            final int keepaliveInterval = keepaliveInterval();
+            // peers are mapped by each of their candidates
+            for (final Peer peer : new HashSet<>(peers.values())) {
+                // established paths are kept as long as the other client answers our keepalives
+                final long timeout = peer.state == State.ACKNOWLEDGED && keepaliveInterval > 0 ? SECONDS.toMillis((long) keepaliveInterval * MISSED_KEEPALIVES) : SECONDS.toMillis(IDLE_RESET_TIMEOUT);
+                if (now - peer.lastReadTime > timeout) {
+                    LOG.info("No read from/for peer `{}` for {}ms. Remove peer.", peer.endpoint, timeout);
+                    peer.close();
+                }
+                else if (peer.state == State.ACKNOWLEDGED && keepaliveInterval > 0 && now - peer.lastKeepaliveTime >= SECONDS.toMillis(keepaliveInterval)) {
+                    // keep our NAT mapping alive, many NATs refresh it only on outbound traffic
+                    LOG.trace("Send keepalive to `{}`.", peer.endpoint);
+                    peer.lastKeepaliveTime = now;
+                    ctx.writeAndFlush(new DefaultAddressedEnvelope<>(ReachabilityCheck.INSTANCE, peer.endpoint));
+                }
+            }
+        }
+
+        private UpstreamHandler newUpstream() {
+            final UpstreamHandler upstream = new UpstreamHandler();
+            final DatagramTransport transport = ctx.channel() instanceof EpollDatagramChannel ? DatagramTransport.EPOLL : DatagramTransport.NIO;
+            upstream.channelFuture = transport.configure(new Bootstrap().group(ctx.channel().eventLoop()))
+                    .handler(new ChannelInitializer<>() {
+                        @Override
+                        protected void initChannel(final Channel ch) {
+                            final ChannelPipeline p = ch.pipeline();
+                            transport.initPipeline(p);
+                            p.addLast(new TlsHolePunchingCodec());
+                            p.addLast(upstream);
+                        }
+                    })
+                    .bind(client.bindHost, 0);
+            return upstream;
+        }
+
+        private UpstreamHandler acquireUpstream() {
+            final UpstreamHandler upstream = idleUpstreams.poll();
+            return upstream != null ? upstream : newUpstream();
+        }
+
+        private void releaseUpstream(final UpstreamHandler upstream) {
+            upstream.peer = null;
+            if (idleUpstreams.size() < client.upstreamPoolSize && upstream.channelFuture.channel().isActive()) {
+                idleUpstreams.add(upstream);
             }
             else {
-                ctx.fireUserEventTriggered(evt);
+                upstream.channelFuture.channel().close();
             }
         }
 
+        @Override
+        public void channelReadComplete(final ChannelHandlerContext ctx) {
+            for (final UpstreamHandler upstream : unflushedUpstreams) {
+                upstream.flush();
+            }
+            unflushedUpstreams.clear();
+            writeBatch.flush(ctx);
+            ctx.fireChannelReadComplete();
+        }
+
         @Override
         protected void channelRead0(final ChannelHandlerContext ctx,
                                     final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> msg) {
             LOG.trace("Got `{}` from `{}`.", msg.content(), msg.sender());
-            switch (state) {
-                case INITIALIZED:
-                    if (client.serverEndpoint.equals(msg.sender())) {
-                        // from server
-                        if (msg.content() instanceof ForwardEndpoints) {
-                            state = State.CHECKING;
-                            otherClientEndpoint = ((ForwardEndpoints) msg.content()).getEndpoint();
-                            pendingWrites.clear();
-                            LOG.trace("Got endpoints. Perform reachability checks to `{}`.", otherClientEndpoint);
-                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new ReachabilityCheck(), otherClientEndpoint));
+            // only valid for the message directly following it
+            final InetSocketAddress relayOrigin = this.relayOrigin;
+            this.relayOrigin = null;
+            if (EmbeddedQuic.isVirtual(msg.sender())) {
+                // from embedded QUIC server
+                final Peer peer = peersByQuicEndpoint.get(msg.sender());
+                if (peer == null) {
+                    LOG.trace("Got message {} for expired peer. Drop.", msg.content());
+                }
+                else if (msg.content() instanceof QuicMessage) {
+                    peer.lastReadTime = System.currentTimeMillis();
+                    peer.addConnectionId(((QuicMessage) msg.content()).getSourceConnectionId());
+                    LOG.trace("Redirect {} to ActiveClient {}.", msg, peer.endpoint);
+                    writeBatch.write(ctx, new DefaultAddressedEnvelope<>(ReferenceCountUtil.retain(msg.content()), peer.endpoint));
+                }
+                else {
+                    LOG.error("Got unexpected message {}.", msg.content());
+                }
+            }
+            else if (msg.content() instanceof BindingResponse) {
+                // from server, on either port
+                if (portPrediction.bindingResponse(msg.sender(), (BindingResponse) msg.content())) {
+                    register();
+                }
+            }
+            else if (serverEndpoints.contains(msg.sender())) {
+                // from server
+                if (msg.content() instanceof ForwardEndpoints) {
+                    final ForwardEndpoints endpoints = (ForwardEndpoints) msg.content();
+                    final List<InetSocketAddress> candidates = endpoints.getEndpoints();
+                    Peer peer = peers.get(candidates.get(0));
+                    if (peer == null) {
+                        final List<InetSocketAddress> predicted = client.sprayPorts > 0 ? PortPrediction.predict(endpoints.getEndpoint(), endpoints.getPortDelta(), client.sprayPorts) : List.of();
+                        peer = new Peer(candidates, predicted, client.embedded ? null : acquireUpstream());
+                        for (final InetSocketAddress candidate : candidates) {
+                            // a local endpoint may be used by another client in a different network
+                            peers.putIfAbsent(candidate, peer);
                         }
-                        else {
-                            LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
+                        for (final InetSocketAddress endpoint : predicted) {
+                            peers.putIfAbsent(endpoint, peer);
                         }
+                        LOG.trace("Got endpoints. Perform reachability checks to `{}`.", candidates);
+                        peer.startReachabilityChecks();
                     }
-                    else if (Objects.equals(otherClientEndpoint, msg.sender())) {
-                        // from other client
-                        LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
+                    else if (peer.state == State.ACKNOWLEDGED) {
+                        // the other client starts a new session. answering its checks is sufficient
+                        LOG.trace("New connection? Path to `{}` is already established.", peer.endpoint);
+                        ctx.writeAndFlush(new DefaultAddressedEnvelope<>(ReachabilityCheck.INSTANCE, peer.endpoint));
                     }
-                    else if (client.targetEndpoint.equals(msg.sender())) {
-                        // from QUIC server
-                        LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
+                    peer.lastReadTime = System.currentTimeMillis();
+                }
+                else if (msg.content() instanceof RelayOrigin) {
+                    this.relayOrigin = ((RelayOrigin) msg.content()).getEndpoint();
+                }
+                else if (msg.content() instanceof QuicMessage) {
+                    final QuicMessage quicMessage = (QuicMessage) msg.content();
+                    final Peer peer = relayOrigin != null ? peers.get(relayOrigin) : peerOf(quicMessage);
+                    if (peer != null) {
+                        if (quicMessage.getType() != QuicPacketType.SHORT) {
+                            peer.addConnectionId(quicMessage.getDestinationConnectionId(0));
+                        }
+                        peer.lastReadTime = System.currentTimeMillis();
+                        peer.writeRelayed(quicMessage);
                     }
                     else {
-                        LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
+                        LOG.error("Got relayed message {} without known peer.", msg.content());
                     }
-                    break;
-                case CHECKING:
-                    if (client.serverEndpoint.equals(msg.sender())) {
-                        // from server
-                        if (msg.content() instanceof QuicMessage) {
-                            LOG.trace("Redirect {} to QUIC server {}.", msg, client.targetEndpoint);
-                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(msg.content(), client.targetEndpoint));
-                        }
-                        else {
-                            LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
-                        }
+                }
+                else {
+                    LOG.error("Got unexpected message {}.", msg.content());
+                }
+            }
+            else if (peers.containsKey(msg.sender())) {
+                // from other client
+                peers.get(msg.sender()).channelRead(ctx, msg);
+            }
+            else {
+                LOG.error("Got unexpected message {} from `{}`.", msg.content(), msg.sender());
+            }
+        }
+
+        /**
+         * Looks up the peer a relayed QUIC packet comes from.
+         */
+        private Peer peerOf(final QuicMessage msg) {
+            if (msg.getType() == QuicPacketType.SHORT) {
+                for (int length = connectionIdLengths.nextSetBit(0); length >= 0; length = connectionIdLengths.nextSetBit(length + 1)) {
+                    final ByteBuf dcid = msg.getDestinationConnectionId(length);
+                    final Peer peer = dcid != null ? peersByConnectionId.get(dcid) : null;
+                    if (peer != null) {
+                        return peer;
                     }
-                    else if (Objects.equals(otherClientEndpoint, msg.sender())) {
-                        // from other client
+                }
+            }
+            else {
+                final Peer peer = peersByConnectionId.get(msg.getDestinationConnectionId(0));
+                if (peer != null) {
+                    return peer;
+                }
+            }
+
+            // connection id unknown (e.g. issued within encrypted frames). unambiguous if there is only one peer
+            Peer onlyPeer = null;
+            for (final Peer peer : peers.values()) {
+                if (onlyPeer != null && onlyPeer != peer) {
+                    return null;
+                }
+                onlyPeer = peer;
+            }
+            return onlyPeer;
+        }
+
+        /**
+         * State of a single other client. All its QUIC traffic uses an own upstream socket, so that the QUIC server
+         * can tell the other clients apart.
+         */
+        private class Peer {
+            private final List<InetSocketAddress> candidates;
+            // endpoints the next mappings of the other client's NAT will get, if it maps endpoint-dependently
+            private final List<InetSocketAddress> predicted;
+            // candidate that has been acknowledged first, or the one seen by the server until then
+            private InetSocketAddress endpoint;
+            // socket towards the QUIC server, or null if it is embedded
+            private final UpstreamHandler upstream;
+            // sender of our packets as seen by the embedded QUIC server
+            private final InetSocketAddress quicEndpoint;
+            private final Retransmitter retransmitter;
+            // of the path to the peer
+            private final RttEstimator rttEstimator = new RttEstimator(client.serverRttEstimator);
+            private final ProbeSprayer sprayer;
+            private final PendingQuicMessages pendingWrites = new PendingQuicMessages(client.maxPendingBytes);
+            private final List<ByteBuf> connectionIds = new ArrayList<>();
+            private State state = State.CHECKING;
+            private long lastReadTime = System.currentTimeMillis();
+            private long lastKeepaliveTime = lastReadTime;
+            // packets passed on to the QUIC server, whichever path delivered them first. Every peer needs one, as we
+            // cannot tell whether the other client races
+            private final DuplicateFilter duplicateFilter = new DuplicateFilter(RECENT_PACKETS);
+
+            Peer(final List<InetSocketAddress> candidates,
+                 final List<InetSocketAddress> predicted,
+                 final UpstreamHandler upstream) {
+                this.candidates = candidates;
+                this.predicted = predicted;
+                this.endpoint = candidates.get(0);
+                this.upstream = upstream;
+                this.quicEndpoint = upstream == null ? EmbeddedQuic.virtualEndpoint(virtualEndpoints++) : null;
+                this.retransmitter = new Retransmitter(client.maxRetransmissions, () -> client.punchFailed("Hole punching to `" + endpoint + "` failed"));
+                // probes each predicted endpoint as often as the candidates
+                this.sprayer = new ProbeSprayer(client.sprayRate, client.maxRetransmissions + 1);
+                if (upstream != null) {
+                    upstream.peer = this;
+                }
+                else {
+                    peersByQuicEndpoint.put(quicEndpoint, this);
+                }
+            }
+
+            void addConnectionId(final ByteBuf connectionId) {
+                if (connectionId == null || !connectionId.isReadable() || peersByConnectionId.get(connectionId) == this) {
+                    return;
+                }
+                final ByteBuf key = Unpooled.copiedBuffer(connectionId);
+                LOG.trace("Peer `{}` uses connection id {}.", endpoint, ByteBufUtil.hexDump(key));
+                final Peer previous = peersByConnectionId.put(key, this);
+                if (previous != null) {
+                    previous.connectionIds.remove(key);
+                }
+                connectionIds.add(key);
+                connectionIdLengths.set(key.readableBytes());
+            }
+
+            void close() {
+                retransmitter.cancel();
+                sprayer.cancel();
+                pendingWrites.clear();
+                for (final InetSocketAddress candidate : candidates) {
+                    peers.remove(candidate, this);
+                }
+                for (final InetSocketAddress endpoint : predicted) {
+                    peers.remove(endpoint, this);
+                }
+                for (final ByteBuf connectionId : connectionIds) {
+                    peersByConnectionId.remove(connectionId, this);
+                }
+                connectionIds.clear();
+                if (upstream != null) {
+                    releaseUpstream(upstream);
+                }
+                else {
+                    peersByQuicEndpoint.remove(quicEndpoint, this);
+                }
+            }
+
+            /**
+             * Writes {@code msg} to the QUIC server and takes ownership of it. The write is flushed at the end of the
+             * current read batch.
+             */
+            void writeUpstream(final TlsHolePunchingMessage msg) {
+                if (upstream != null) {
+                    upstream.write(msg);
+                }
+                else {
+                    writeBatch.write(ctx, new DefaultAddressedEnvelope<>(msg, quicEndpoint));
+                }
+            }
+
+            void writeRelayed(final QuicMessage msg) {
+                if (duplicateFilter.add(msg.getPacket())) {
+                    LOG.trace("Redirect {} to QUIC server {}.", msg, client.targetEndpoint);
+                    writeUpstream(msg.retain());
+                }
+                else {
+                    LOG.trace("Already got {} directly. Drop.", msg);
+                }
+            }
+
+            void startReachabilityChecks() {
+                // all candidates are checked in parallel, the first acknowledged one becomes the path
+                retransmitter.start(ctx.executor(), rttEstimator, () -> {
+                    for (final InetSocketAddress candidate : candidates) {
+                        ctx.write(new DefaultAddressedEnvelope<>(ReachabilityCheck.INSTANCE, candidate));
+                    }
+                    ctx.flush();
+                });
+                if (!predicted.isEmpty()) {
+                    // other client's NAT maps endpoint-dependently. Our checks open our NAT for the mapping its
+                    // checks to us get, one of the predicted endpoints
+                    LOG.trace("Spray probes to predicted endpoints `{}`.", predicted);
+                    sprayer.start(ctx.executor(), predicted, endpoint -> ctx.writeAndFlush(new DefaultAddressedEnvelope<>(ReachabilityCheck.INSTANCE, endpoint)));
+                }
+            }
+
+            void channelRead(final ChannelHandlerContext ctx,
+                             final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> msg) {
+                lastReadTime = System.currentTimeMillis();
+                switch (state) {
+                    case CHECKING:
                         if (msg.content() instanceof ReachabilityCheck) {
                             LOG.trace("Confirm check.");
-                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new Acknowledgement(), otherClientEndpoint));
-                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new ReachabilityCheck(), otherClientEndpoint));
+                            // one datagram, so that acknowledgement and own check are not lost independently
+                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new Bundle(Acknowledgement.INSTANCE, ReachabilityCheck.INSTANCE), msg.sender()));
                         }
                         else if (msg.content() instanceof Acknowledgement) {
                             state = State.ACKNOWLEDGED;
-                            LOG.trace("Got acknowledgement. Flush {} pending write(s)!.", pendingWrites.size());
-                            for (AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> pendingWrite : pendingWrites) {
-                                LOG.trace("Redirect {} to PassiveClient {}.", pendingWrite, otherClientEndpoint);
-                                ctx.writeAndFlush(new DefaultAddressedEnvelope<>(pendingWrite.content(), otherClientEndpoint));
+                            retransmitter.acknowledged();
+                            sprayer.cancel();
+                            endpoint = msg.sender();
+                            LOG.trace("Got acknowledgement from `{}`. Flush {} pending write(s)!.", endpoint, pendingWrites.size());
+                            QuicMessage pendingWrite;
+                            while ((pendingWrite = pendingWrites.poll()) != null) {
+                                LOG.trace("Redirect {} to QUIC server {}.", pendingWrite, client.targetEndpoint);
+                                writeUpstream(pendingWrite);
                             }
-                            pendingWrites.clear();
-                        }
-                        else {
-                            LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
-                        }
-                    }
-                    else if (client.targetEndpoint.equals(msg.sender())) {
-                        // from QUIC server
-                        if (msg.content() instanceof QuicMessage) {
-                            LOG.trace("Redirect {} to ActiveClient {}.", msg, otherClientEndpoint);
-                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(msg.content(), otherClientEndpoint));
-                        }
-                        else {
-                            LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
-                        }
-                    }
-                    else {
-                        LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
-                    }
-                    break;
-                case ACKNOWLEDGED:
-                    if (client.serverEndpoint.equals(msg.sender())) {
-                        // from server
-                        if (msg.content() instanceof ForwardEndpoints) {
-                            state = State.CHECKING;
-                            otherClientEndpoint = ((ForwardEndpoints) msg.content()).getEndpoint();
-                            pendingWrites.clear();
-                            LOG.trace("New connection? Got endpoints. Perform reachability checks to `{}`.", otherClientEndpoint);
-                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new ReachabilityCheck(), otherClientEndpoint));
                         }
                         else if (msg.content() instanceof QuicMessage) {
-                            LOG.trace("Redirect {} to QUIC server {}.", msg, client.targetEndpoint);
-                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(msg.content(), client.targetEndpoint));
+                            if (duplicateFilter.add(((QuicMessage) msg.content()).getPacket())) {
+                                // other client got our acknowledgement before we got its one
+                                LOG.trace("Waiting for acknowledgement. Enqueue write.");
+                                pendingWrites.add(((QuicMessage) msg.content()).retain());
+                            }
+                            else {
+                                LOG.trace("Already got {} relayed. Drop.", msg.content());
+                            }
                         }
                         else {
                             LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
                         }
-                    }
-                    else if (Objects.equals(otherClientEndpoint, msg.sender())) {
-                        // from other client
+                        break;
+                    case ACKNOWLEDGED:
                         if (msg.content() instanceof ReachabilityCheck) {
                             LOG.trace("Confirm check.");
-                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new Acknowledgement(), otherClientEndpoint));
+                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(Acknowledgement.INSTANCE, msg.sender()));
                         }
                         else if (msg.content() instanceof Acknowledgement) {
                             // ignore
                         }
                         else if (msg.content() instanceof QuicMessage) {
-                            LOG.trace("Redirect {} to QUIC server {}.", msg, client.targetEndpoint);
-                            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(msg.content(), client.targetEndpoint));
+                            if (duplicateFilter.add(((QuicMessage) msg.content()).getPacket())) {
+                                LOG.trace("Redirect {} to QUIC server {}.", msg, client.targetEndpoint);
+                                writeUpstream(ReferenceCountUtil.retain((QuicMessage) msg.content()));
+                            }
+                            else {
+                                LOG.trace("Already got {} relayed. Drop.", msg.content());
+                            }
                         }
                         else {
                             LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
                         }
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Socket towards the QUIC server, assigned to at most one {@link Peer} at a time.
+         */
+        private class UpstreamHandler extends SimpleChannelInboundHandler<AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress>> {
+            private final WriteBatch writeBatch = new WriteBatch();
+            private ChannelFuture channelFuture;
+            private Peer peer;
+
+            /**
+             * Writes {@code msg} to the QUIC server and takes ownership of it. The write is flushed at the end of the
+             * current read batch.
+             */
+            void write(final TlsHolePunchingMessage msg) {
+                if (channelFuture.isDone()) {
+                    if (writeBatch.isEmpty()) {
+                        unflushedUpstreams.add(this);
                     }
-                    else if (client.targetEndpoint.equals(msg.sender())) {
-                        // from QUIC server
-                        LOG.trace("Redirect {} to ActiveClient {}.", msg, otherClientEndpoint);
-                        ctx.writeAndFlush(new DefaultAddressedEnvelope<>(msg.content(), otherClientEndpoint));
-                    }
-                    else {
-                        LOG.error("Got unexpected message {} in state {}.", msg.content(), state);
-                    }
-                    break;
+                    writeBatch.write(channelFuture.channel(), new DefaultAddressedEnvelope<>(msg, client.targetEndpoint));
+                }
+                else {
+                    // socket is still binding
+                    channelFuture.addListener(f -> {
+                        if (f.isSuccess()) {
+                            channelFuture.channel().writeAndFlush(new DefaultAddressedEnvelope<>(msg, client.targetEndpoint));
+                        }
+                        else {
+                            LOG.warn("Unable to bind upstream socket: {}", f.cause().toString());
+                            ReferenceCountUtil.release(msg);
+                        }
+                    });
+                }
+            }
+
+            void flush() {
+                writeBatch.flush(channelFuture.channel());
+            }
+
+            @Override
+            public void channelReadComplete(final ChannelHandlerContext upstreamCtx) {
+                PassiveClientHandler.this.writeBatch.flush(ctx);
+                upstreamCtx.fireChannelReadComplete();
+            }
+
+            @Override
+            protected void channelRead0(final ChannelHandlerContext upstreamCtx,
+                                        final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> msg) {
+                if (!client.targetEndpoint.equals(msg.sender())) {
+                    LOG.error("Got unexpected message {} from `{}`.", msg.content(), msg.sender());
+                }
+                else if (peer == null) {
+                    LOG.trace("Got message {} for expired peer. Drop.", msg.content());
+                }
+                else if (msg.content() instanceof QuicMessage) {
+                    // from QUIC server
+                    peer.lastReadTime = System.currentTimeMillis();
+                    peer.addConnectionId(((QuicMessage) msg.content()).getSourceConnectionId());
+                    LOG.trace("Redirect {} to ActiveClient {}.", msg, peer.endpoint);
+                    PassiveClientHandler.this.writeBatch.write(ctx, new DefaultAddressedEnvelope<>(ReferenceCountUtil.retain(msg.content()), peer.endpoint));
+                }
+                else {
+                    LOG.error("Got unexpected message {}.", msg.content());
+                }
             }
         }
     }
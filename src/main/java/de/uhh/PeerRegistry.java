@@ -0,0 +1,457 @@
+package de.uhh;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry of peers known to the rendezvous server. Entries are stored column-wise in primitive arrays and are
+ * addressed by their slot. Two open addressing indexes allow O(1) lookups by peer id and by endpoint. Entries not
+ * refreshed by a {@link Register} message within the ttl are removed by a hashed timer wheel.
+ * <p>
+ * Addresses are stored as 128 bit, IPv4 addresses as IPv4-mapped IPv6 addresses (RFC 4291, 2.5.5.2).
+ * <p>
+ * This class is not thread-safe and must only be accessed from the event loop owning it.
+ */
+public class PeerRegistry {
+    public static final int NO_SLOT = -1;
+    private static final int WHEEL_SIZE = 256;
+    private static final int MIN_CAPACITY = 16;
+    // index entries hold slot + 1, so that an unused entry can be zero
+    private static final int EMPTY = 0;
+    private static final long IPV4_MAPPED_PREFIX = 0xffffL << 32;
+    private static final InetSocketAddress[] NO_CANDIDATES = new InetSocketAddress[0];
+    private final long ttlNanos;
+    private final long tickNanos;
+    private final long startNanos;
+    private final int[] wheel = new int[WHEEL_SIZE];
+    private long currentTick;
+    private int size;
+    private int nextUnusedSlot;
+    private int freeSlots = NO_SLOT;
+    // entry columns
+    private String[] peerIds;
+    private String[] contactIds;
+    private InetSocketAddress[][] candidates;
+    private int[] portDeltas;
+    private long[] addressesHigh;
+    private long[] addressesLow;
+    private int[] ports;
+    private long[] deadlines;
+    private int[] wheelNext;
+    private int[] wheelPrev;
+    // indexes
+    private int[] idIndex;
+    private int[] endpointIndex;
+
+    public PeerRegistry(final int initialCapacity, final long ttl, final TimeUnit unit) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("ttl must be positive");
+        }
+        this.ttlNanos = unit.toNanos(ttl);
+        this.tickNanos = Math.max(ttlNanos / (WHEEL_SIZE / 2), TimeUnit.MILLISECONDS.toNanos(1));
+        this.startNanos = System.nanoTime();
+        Arrays.fill(wheel, NO_SLOT);
+        allocate(Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, initialCapacity - 1)) << 1));
+    }
+
+    /**
+     * Adds or refreshes the registration of {@code peerId} at {@code endpoint}.
+     *
+     * @return slot of the registration
+     */
+    public int register(final String peerId, final InetSocketAddress endpoint) {
+        return register(peerId, null, endpoint);
+    }
+
+    /**
+     * Adds or refreshes the registration of {@code peerId} at {@code endpoint}. QUIC connection attempts relayed
+     * on behalf of {@code peerId} are directed to {@code contactId}.
+     *
+     * @param contactId peer to connect to if no connection has been requested explicitly, or {@code null}
+     * @return slot of the registration
+     */
+    public int register(final String peerId, final String contactId, final InetSocketAddress endpoint) {
+        return register(peerId, contactId, List.of(), endpoint);
+    }
+
+    /**
+     * Adds or refreshes the registration of {@code peerId} at {@code endpoint}, together with the local endpoints
+     * {@code peerId} has reported.
+     *
+     * @param contactId  peer to connect to if no connection has been requested explicitly, or {@code null}
+     * @param candidates local endpoints of {@code peerId}
+     * @return slot of the registration
+     */
+    public int register(final String peerId,
+                        final String contactId,
+                        final List<InetSocketAddress> candidates,
+                        final InetSocketAddress endpoint) {
+        return register(peerId, contactId, candidates, 0, endpoint);
+    }
+
+    /**
+     * Adds or refreshes the registration of {@code peerId} at {@code endpoint}, together with the local endpoints
+     * {@code peerId} has reported and the port allocation delta of its NAT.
+     *
+     * @param contactId  peer to connect to if no connection has been requested explicitly, or {@code null}
+     * @param candidates local endpoints of {@code peerId}
+     * @param portDelta  port allocation delta of the NAT in front of {@code peerId}, or {@code 0}
+     * @return slot of the registration
+     */
+    public int register(final String peerId,
+                        final String contactId,
+                        final List<InetSocketAddress> candidates,
+                        final int portDelta,
+                        final InetSocketAddress endpoint) {
+        final long high = addressHigh(endpoint);
+        final long low = addressLow(endpoint);
+        final int port = endpoint.getPort();
+
+        // an other peer registered previously from this endpoint? drop it, the NAT has reused the mapping
+        final int previous = slotOf(high, low, port);
+        if (previous != NO_SLOT && !peerIds[previous].equals(peerId)) {
+            remove(previous);
+        }
+
+        int slot = slotOf(peerId);
+        if (slot == NO_SLOT) {
+            slot = allocateSlot();
+            peerIds[slot] = peerId;
+            addressesHigh[slot] = high;
+            addressesLow[slot] = low;
+            ports[slot] = port;
+            insert(idIndex, slot, idHash(peerId));
+            insert(endpointIndex, slot, endpointHash(high, low, port));
+            size++;
+        }
+        else {
+            unlinkFromWheel(slot);
+            if (addressesHigh[slot] != high || addressesLow[slot] != low || ports[slot] != port) {
+                // peer has a new endpoint
+                delete(endpointIndex, slot, endpointHash(slot), false);
+                addressesHigh[slot] = high;
+                addressesLow[slot] = low;
+                ports[slot] = port;
+                insert(endpointIndex, slot, endpointHash(high, low, port));
+            }
+        }
+
+        contactIds[slot] = contactId;
+        this.candidates[slot] = candidates.isEmpty() ? NO_CANDIDATES : candidates.toArray(NO_CANDIDATES);
+        portDeltas[slot] = portDelta;
+        deadlines[slot] = now() + ttlNanos;
+        linkToWheel(slot);
+
+        return slot;
+    }
+
+    /**
+     * Removes the registration of {@code peerId}.
+     *
+     * @return {@code true} if {@code peerId} was registered
+     */
+    public boolean unregister(final String peerId) {
+        final int slot = slotOf(peerId);
+        if (slot == NO_SLOT) {
+            return false;
+        }
+        remove(slot);
+        return true;
+    }
+
+    /**
+     * @return slot of the registration for {@code peerId}, or {@link #NO_SLOT}
+     */
+    public int slotOf(final String peerId) {
+        final int mask = idIndex.length - 1;
+        for (int i = idHash(peerId) & mask; ; i = (i + 1) & mask) {
+            final int entry = idIndex[i];
+            if (entry == EMPTY) {
+                return NO_SLOT;
+            }
+            if (peerIds[entry - 1].equals(peerId)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    /**
+     * @return slot of the registration made from {@code endpoint}, or {@link #NO_SLOT}
+     */
+    public int slotOf(final InetSocketAddress endpoint) {
+        return slotOf(addressHigh(endpoint), addressLow(endpoint), endpoint.getPort());
+    }
+
+    public String peerId(final int slot) {
+        return peerIds[slot];
+    }
+
+    /**
+     * @return contact of the registration in {@code slot}, or {@code null}
+     */
+    public String contactId(final int slot) {
+        return contactIds[slot];
+    }
+
+    /**
+     * @return local endpoints reported by the registration in {@code slot}
+     */
+    public List<InetSocketAddress> candidates(final int slot) {
+        return List.of(candidates[slot]);
+    }
+
+    /**
+     * @return port allocation delta reported by the registration in {@code slot}, or {@code 0}
+     */
+    public int portDelta(final int slot) {
+        return portDeltas[slot];
+    }
+
+    public InetSocketAddress endpoint(final int slot) {
+        final long high = addressesHigh[slot];
+        final long low = addressesLow[slot];
+        final byte[] address;
+        if (high == 0 && (low & 0xffffffff00000000L) == IPV4_MAPPED_PREFIX) {
+            address = new byte[4];
+            writeBytes(address, 0, low, 4);
+        }
+        else {
+            address = new byte[16];
+            writeBytes(address, 0, high, 8);
+            writeBytes(address, 8, low, 8);
+        }
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(address), ports[slot]);
+        }
+        catch (final UnknownHostException e) {
+            // can not happen, address has correct length
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return interval in which {@link #expire()} should be called
+     */
+    public long tickMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    /**
+     * Removes all registrations whose ttl has elapsed.
+     *
+     * @return number of removed registrations
+     */
+    public int expire() {
+        final long now = now();
+        final long tick = now / tickNanos;
+        int expired = 0;
+        // each bucket has to be visited at most once
+        currentTick = Math.max(currentTick, tick - WHEEL_SIZE + 1);
+        for (; currentTick <= tick; currentTick++) {
+            int slot = wheel[(int) (currentTick & (WHEEL_SIZE - 1))];
+            while (slot != NO_SLOT) {
+                final int next = wheelNext[slot];
+                if (deadlines[slot] <= now) {
+                    remove(slot);
+                    expired++;
+                }
+                slot = next;
+            }
+        }
+        // stay on the current tick, as it may receive further entries
+        currentTick = tick;
+        return expired;
+    }
+
+    private long now() {
+        return System.nanoTime() - startNanos;
+    }
+
+    private int slotOf(final long high, final long low, final int port) {
+        final int mask = endpointIndex.length - 1;
+        for (int i = endpointHash(high, low, port) & mask; ; i = (i + 1) & mask) {
+            final int entry = endpointIndex[i];
+            if (entry == EMPTY) {
+                return NO_SLOT;
+            }
+            if (addressesLow[entry - 1] == low && ports[entry - 1] == port && addressesHigh[entry - 1] == high) {
+                return entry - 1;
+            }
+        }
+    }
+
+    private void remove(final int slot) {
+        unlinkFromWheel(slot);
+        delete(idIndex, slot, idHash(peerIds[slot]), true);
+        delete(endpointIndex, slot, endpointHash(slot), false);
+        peerIds[slot] = null;
+        contactIds[slot] = null;
+        candidates[slot] = null;
+        wheelNext[slot] = freeSlots;
+        freeSlots = slot;
+        size--;
+    }
+
+    private int allocateSlot() {
+        if (freeSlots != NO_SLOT) {
+            final int slot = freeSlots;
+            freeSlots = wheelNext[slot];
+            return slot;
+        }
+        if (nextUnusedSlot == peerIds.length) {
+            allocate(peerIds.length << 1);
+        }
+        return nextUnusedSlot++;
+    }
+
+    private void allocate(final int capacity) {
+        if (peerIds == null) {
+            peerIds = new String[capacity];
+            contactIds = new String[capacity];
+            candidates = new InetSocketAddress[capacity][];
+            portDeltas = new int[capacity];
+            addressesHigh = new long[capacity];
+            addressesLow = new long[capacity];
+            ports = new int[capacity];
+            deadlines = new long[capacity];
+            wheelNext = new int[capacity];
+            wheelPrev = new int[capacity];
+        }
+        else {
+            peerIds = Arrays.copyOf(peerIds, capacity);
+            contactIds = Arrays.copyOf(contactIds, capacity);
+            candidates = Arrays.copyOf(candidates, capacity);
+            portDeltas = Arrays.copyOf(portDeltas, capacity);
+            addressesHigh = Arrays.copyOf(addressesHigh, capacity);
+            addressesLow = Arrays.copyOf(addressesLow, capacity);
+            ports = Arrays.copyOf(ports, capacity);
+            deadlines = Arrays.copyOf(deadlines, capacity);
+            wheelNext = Arrays.copyOf(wheelNext, capacity);
+            wheelPrev = Arrays.copyOf(wheelPrev, capacity);
+        }
+
+        // rebuild indexes with a load factor of 0.5
+        idIndex = new int[capacity << 1];
+        endpointIndex = new int[capacity << 1];
+        for (int slot = 0; slot < nextUnusedSlot; slot++) {
+            if (peerIds[slot] != null) {
+                insert(idIndex, slot, idHash(peerIds[slot]));
+                insert(endpointIndex, slot, endpointHash(slot));
+            }
+        }
+    }
+
+    private static void insert(final int[] index, final int slot, final int hash) {
+        final int mask = index.length - 1;
+        int i = hash & mask;
+        while (index[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        index[i] = slot + 1;
+    }
+
+    // backward shift deletion, keeps probe sequences intact without tombstones
+    private void delete(final int[] index, final int slot, final int hash, final boolean byId) {
+        final int mask = index.length - 1;
+        int i = hash & mask;
+        while (index[i] != slot + 1) {
+            i = (i + 1) & mask;
+        }
+
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            final int entry = index[j];
+            if (entry == EMPTY) {
+                break;
+            }
+            final int home = (byId ? idHash(peerIds[entry - 1]) : endpointHash(entry - 1)) & mask;
+            // move entry to the gap if its home position is not in (i, j]
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                index[i] = entry;
+                i = j;
+            }
+        }
+        index[i] = EMPTY;
+    }
+
+    private void linkToWheel(final int slot) {
+        final int bucket = (int) ((deadlines[slot] / tickNanos) & (WHEEL_SIZE - 1));
+        final int head = wheel[bucket];
+        wheelPrev[slot] = NO_SLOT;
+        wheelNext[slot] = head;
+        if (head != NO_SLOT) {
+            wheelPrev[head] = slot;
+        }
+        wheel[bucket] = slot;
+    }
+
+    private void unlinkFromWheel(final int slot) {
+        final int prev = wheelPrev[slot];
+        final int next = wheelNext[slot];
+        if (prev != NO_SLOT) {
+            wheelNext[prev] = next;
+        }
+        else {
+            wheel[(int) ((deadlines[slot] / tickNanos) & (WHEEL_SIZE - 1))] = next;
+        }
+        if (next != NO_SLOT) {
+            wheelPrev[next] = prev;
+        }
+    }
+
+    private static long addressHigh(final InetSocketAddress endpoint) {
+        final InetAddress address = endpoint.getAddress();
+        return address instanceof Inet4Address ? 0 : readLong(address.getAddress(), 0);
+    }
+
+    private static long addressLow(final InetSocketAddress endpoint) {
+        final InetAddress address = endpoint.getAddress();
+        if (address instanceof Inet4Address) {
+            // Inet4Address#hashCode returns the address itself and, unlike getAddress(), does not allocate
+            return IPV4_MAPPED_PREFIX | (address.hashCode() & 0xffffffffL);
+        }
+        return readLong(address.getAddress(), 8);
+    }
+
+    private static long readLong(final byte[] bytes, final int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    // writes the lowest length bytes of value in network byte order
+    private static void writeBytes(final byte[] bytes, final int offset, final long value, final int length) {
+        for (int i = 0; i < length; i++) {
+            bytes[offset + i] = (byte) (value >>> (8 * (length - 1 - i)));
+        }
+    }
+
+    private static int idHash(final String peerId) {
+        return mix(peerId.hashCode());
+    }
+
+    private int endpointHash(final int slot) {
+        return endpointHash(addressesHigh[slot], addressesLow[slot], ports[slot]);
+    }
+
+    private static int endpointHash(final long high, final long low, final int port) {
+        return mix((Long.hashCode(high) * 31 + Long.hashCode(low)) * 31 + port);
+    }
+
+    private static int mix(final int hash) {
+        final int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,89 @@
+package de.uhh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * FIFO queue of {@link QuicMessage}s held back until a path is available. The queue owns its messages: they are
+ * released when dropped or cleared, and ownership passes to the caller of {@link #poll()}.
+ * <p>
+ * The queue holds at most {@code maxBytes} bytes of packets. When full, newly added messages are dropped (tail drop):
+ * the first packets of a connection carry its handshake, later ones are retransmitted by QUIC anyway.
+ * <p>
+ * This class is not thread-safe.
+ */
+class PendingQuicMessages {
+    private static final Logger LOG = LoggerFactory.getLogger(PendingQuicMessages.class);
+    private final Deque<QuicMessage> messages = new ArrayDeque<>();
+    private final int maxBytes;
+    private int bytes;
+    private long dropped;
+
+    PendingQuicMessages(final int maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must be non-negative");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Enqueues {@code msg} or releases it, if the queue is full.
+     *
+     * @return {@code true} if {@code msg} has been enqueued
+     */
+    boolean add(final QuicMessage msg) {
+        final int size = msg.getPacket().readableBytes();
+        if (bytes + size > maxBytes) {
+            dropped++;
+            LOG.trace("{} pending byte(s) exceed budget of {} bytes. Drop `{}`.", bytes + size, maxBytes, msg);
+            msg.release();
+            return false;
+        }
+        messages.add(msg);
+        bytes += size;
+        return true;
+    }
+
+    /**
+     * @return the oldest message, or {@code null} if the queue is empty
+     */
+    QuicMessage poll() {
+        final QuicMessage msg = messages.poll();
+        if (msg != null) {
+            bytes -= msg.getPacket().readableBytes();
+        }
+        return msg;
+    }
+
+    /**
+     * Releases all messages.
+     */
+    void clear() {
+        QuicMessage msg;
+        while ((msg = poll()) != null) {
+            msg.release();
+        }
+    }
+
+    boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    int size() {
+        return messages.size();
+    }
+
+    int bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return number of messages dropped because the queue was full
+     */
+    long dropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,133 @@
+package de.uhh;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultAddressedEnvelope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Predicts endpoints of peers behind NATs with endpoint-dependent mapping ("symmetric NATs"). Such a NAT allocates a
+ * new port for every destination, so the endpoint seen by the rendezvous server is useless to other peers. Many of
+ * these NATs allocate ports sequentially, though: the next mapping gets the port of the previous one plus a fixed
+ * delta. A peer learns the delta of its NAT from the mappings it gets towards two ports of the rendezvous server and
+ * registers it. Other peers then expect it at the ports following the endpoint seen by the server.
+ * <p>
+ * This class is not thread-safe.
+ */
+class PortPrediction {
+    private static final Logger LOG = LoggerFactory.getLogger(PortPrediction.class);
+    // larger deltas are indistinguishable from random port allocation
+    static final int MAX_PORT_DELTA = 32;
+    private final InetSocketAddress primaryServerEndpoint;
+    private final InetSocketAddress secondaryServerEndpoint;
+    private final RttEstimator serverRttEstimator;
+    // System#nanoTime of the latest discovery, 0 once the primary port has answered it
+    private long discoveryTime;
+    private InetSocketAddress primaryMapping;
+    private InetSocketAddress secondaryMapping;
+    private int portDelta;
+
+    /**
+     * @param secondaryServerPort port of the rendezvous server answering binding requests besides the primary one,
+     *                            or {@code 0} to disable the discovery
+     * @param serverRttEstimator  sampled with the response of the primary port
+     */
+    PortPrediction(final InetSocketAddress primaryServerEndpoint,
+                   final int secondaryServerPort,
+                   final RttEstimator serverRttEstimator) {
+        this.primaryServerEndpoint = requireNonNull(primaryServerEndpoint);
+        this.secondaryServerEndpoint = secondaryServerPort != 0 ? new InetSocketAddress(primaryServerEndpoint.getAddress(), secondaryServerPort) : null;
+        this.serverRttEstimator = requireNonNull(serverRttEstimator);
+    }
+
+    /**
+     * Sends binding requests to both server ports. The primary one must have been contacted before, so that only the
+     * request to the secondary port creates a new mapping.
+     */
+    void discover(final ChannelHandlerContext ctx) {
+        if (secondaryServerEndpoint == null) {
+            return;
+        }
+        primaryMapping = null;
+        secondaryMapping = null;
+        discoveryTime = System.nanoTime();
+        ctx.write(new DefaultAddressedEnvelope<>(BindingRequest.INSTANCE, primaryServerEndpoint));
+        ctx.write(new DefaultAddressedEnvelope<>(BindingRequest.INSTANCE, secondaryServerEndpoint));
+        ctx.flush();
+    }
+
+    /**
+     * @return {@code true} if the port delta has changed and must be registered again
+     */
+    boolean bindingResponse(final InetSocketAddress sender, final BindingResponse response) {
+        if (sender.equals(primaryServerEndpoint)) {
+            primaryMapping = response.getEndpoint();
+            if (discoveryTime != 0) {
+                // binding requests are not retransmitted, so the response belongs to the latest one
+                serverRttEstimator.sample(System.nanoTime() - discoveryTime);
+                discoveryTime = 0;
+            }
+        }
+        else if (sender.equals(secondaryServerEndpoint)) {
+            secondaryMapping = response.getEndpoint();
+        }
+        else {
+            LOG.trace("Got binding response from unknown endpoint `{}`. Ignore.", sender);
+            return false;
+        }
+        if (primaryMapping == null || secondaryMapping == null) {
+            return false;
+        }
+
+        final int delta = portDelta(primaryMapping, secondaryMapping);
+        LOG.trace("Got mappings `{}` and `{}`. Port delta is {}.", primaryMapping, secondaryMapping, delta);
+        primaryMapping = null;
+        secondaryMapping = null;
+        if (delta == portDelta) {
+            return false;
+        }
+        LOG.debug("Port delta of our NAT has changed from {} to {}.", portDelta, delta);
+        portDelta = delta;
+        return true;
+    }
+
+    /**
+     * @return port delta of our NAT, or {@code 0} if it maps endpoint-independently or its ports are not predictable
+     */
+    int portDelta() {
+        return portDelta;
+    }
+
+    private static int portDelta(final InetSocketAddress primaryMapping, final InetSocketAddress secondaryMapping) {
+        if (!primaryMapping.getAddress().equals(secondaryMapping.getAddress())) {
+            // NAT with a pool of addresses, ports of other addresses tell nothing
+            return 0;
+        }
+        final int delta = secondaryMapping.getPort() - primaryMapping.getPort();
+        return Math.abs(delta) <= MAX_PORT_DELTA ? delta : 0;
+    }
+
+    /**
+     * Returns the endpoints the next {@code count} mappings of a NAT with {@code portDelta} will get, following the
+     * mapping {@code endpoint}.
+     */
+    static List<InetSocketAddress> predict(final InetSocketAddress endpoint, final int portDelta, final int count) {
+        final List<InetSocketAddress> endpoints = new ArrayList<>(portDelta != 0 ? count : 0);
+        if (portDelta != 0) {
+            for (int i = 1; i <= count; i++) {
+                final int port = endpoint.getPort() + i * portDelta;
+                if (port < 1 || port > 65535) {
+                    break;
+                }
+                endpoints.add(new InetSocketAddress(endpoint.getAddress(), port));
+            }
+        }
+        return endpoints;
+    }
+}
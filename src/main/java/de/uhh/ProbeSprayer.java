@@ -0,0 +1,85 @@
+package de.uhh;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Sends probes to predicted endpoints of a peer, one at a time and at a fixed rate, sweeping over them until
+ * {@link #cancel()} is called. Unlike checks of candidates, probes are paced: a burst to dozens of ports overflows
+ * socket and NAT queues and looks like a port scan to firewalls.
+ * <p>
+ * Probes are always sent on the {@link EventExecutor} passed to {@link #start(EventExecutor, List, Consumer)}. Apart
+ * from that, this class is not thread-safe.
+ */
+class ProbeSprayer {
+    private static final Logger LOG = LoggerFactory.getLogger(ProbeSprayer.class);
+    private final long intervalNanos;
+    private final int maxSweeps;
+    private List<InetSocketAddress> endpoints;
+    private Consumer<InetSocketAddress> probe;
+    private ScheduledFuture<?> future;
+    private int next;
+    private int sweeps;
+
+    /**
+     * @param rate      probes per second
+     * @param maxSweeps number of times each endpoint is probed at most
+     */
+    ProbeSprayer(final int rate, final int maxSweeps) {
+        if (rate < 1) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        this.intervalNanos = SECONDS.toNanos(1) / rate;
+        this.maxSweeps = maxSweeps;
+    }
+
+    /**
+     * Performs {@code probe} for each of {@code endpoints} in turn. A pending spray is replaced.
+     */
+    void start(final EventExecutor executor,
+               final List<InetSocketAddress> endpoints,
+               final Consumer<InetSocketAddress> probe) {
+        cancel();
+        if (endpoints.isEmpty() || maxSweeps < 1) {
+            return;
+        }
+        this.endpoints = List.copyOf(endpoints);
+        this.probe = requireNonNull(probe);
+        next = 0;
+        sweeps = 0;
+        future = executor.scheduleAtFixedRate(this::spray, 0, intervalNanos, NANOSECONDS);
+    }
+
+    void cancel() {
+        if (future != null) {
+            future.cancel(false);
+            future = null;
+        }
+        probe = null;
+    }
+
+    private void spray() {
+        if (probe == null) {
+            // cancelled in the meantime
+            return;
+        }
+        probe.accept(endpoints.get(next));
+        if (++next == endpoints.size()) {
+            next = 0;
+            if (++sweeps == maxSweeps) {
+                LOG.debug("No response after {} sweep(s) over {} endpoint(s). Give up.", sweeps, endpoints.size());
+                cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package de.uhh;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.DatagramPacket;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Connects a QUIC codec embedded at the end of a pipeline to the hole punching handler in front of it. QUIC packets
+ * addressed to a {@link EmbeddedQuic#isVirtual(InetSocketAddress) virtual endpoint} never reach the socket:
+ * <ul>
+ * <li>{@link #quicSide()}, placed right before the QUIC codec, turns packets the codec writes to a virtual endpoint
+ * into packets received by {@link #networkSide()} from that endpoint.</li>
+ * <li>{@link #networkSide()}, placed right after the transport handlers, turns packets written to a virtual endpoint
+ * into packets received by the QUIC codec from that endpoint.</li>
+ * </ul>
+ * Packets are passed on in a separate task of the event loop, so that a handler never gets a read while it writes.
+ * <p>
+ * This class is not thread-safe and must only be used from the event loop of the pipeline.
+ */
+class QuicLoopback {
+    private final Queue<DatagramPacket> toNetworkSide = new ArrayDeque<>();
+    private final Queue<DatagramPacket> toQuicSide = new ArrayDeque<>();
+    private final ChannelHandler networkSide = new NetworkSide();
+    private final ChannelHandler quicSide = new QuicSide();
+    private ChannelHandlerContext networkCtx;
+    private ChannelHandlerContext quicCtx;
+    private boolean deliveryScheduled;
+
+    ChannelHandler networkSide() {
+        return networkSide;
+    }
+
+    ChannelHandler quicSide() {
+        return quicSide;
+    }
+
+    /**
+     * Passes {@code packet} to the QUIC codec as if it has been received from {@code sender}. Takes ownership of
+     * {@code packet}.
+     */
+    void receive(final ByteBuf packet, final InetSocketAddress sender) {
+        toQuicSide.add(new DatagramPacket(packet, (InetSocketAddress) quicCtx.channel().localAddress(), sender));
+        scheduleDelivery(quicCtx);
+    }
+
+    private void scheduleDelivery(final ChannelHandlerContext ctx) {
+        if (!deliveryScheduled) {
+            deliveryScheduled = true;
+            ctx.executor().execute(this::deliver);
+        }
+    }
+
+    private void deliver() {
+        deliveryScheduled = false;
+        deliver(networkCtx, toNetworkSide);
+        deliver(quicCtx, toQuicSide);
+    }
+
+    private static void deliver(final ChannelHandlerContext ctx, final Queue<DatagramPacket> packets) {
+        if (packets.isEmpty()) {
+            return;
+        }
+        DatagramPacket packet;
+        while ((packet = packets.poll()) != null) {
+            ctx.fireChannelRead(packet);
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    private class NetworkSide extends ChannelOutboundHandlerAdapter {
+        @Override
+        public void handlerAdded(final ChannelHandlerContext ctx) {
+            networkCtx = ctx;
+        }
+
+        @Override
+        public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) {
+            if (msg instanceof DatagramPacket && EmbeddedQuic.isVirtual(((DatagramPacket) msg).recipient())) {
+                receive(((DatagramPacket) msg).content(), ((DatagramPacket) msg).recipient());
+                promise.setSuccess();
+            }
+            else {
+                ctx.write(msg, promise);
+            }
+        }
+    }
+
+    private class QuicSide extends ChannelOutboundHandlerAdapter {
+        @Override
+        public void handlerAdded(final ChannelHandlerContext ctx) {
+            quicCtx = ctx;
+        }
+
+        @Override
+        public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) {
+            if (msg instanceof DatagramPacket && EmbeddedQuic.isVirtual(((DatagramPacket) msg).recipient())) {
+                final DatagramPacket packet = (DatagramPacket) msg;
+                toNetworkSide.add(new DatagramPacket(packet.content(), (InetSocketAddress) ctx.channel().localAddress(), packet.recipient()));
+                scheduleDelivery(ctx);
+                promise.setSuccess();
+            }
+            else {
+                ctx.write(msg, promise);
+            }
+        }
+    }
+}
@@ -3,8 +3,13 @@ package de.uhh;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
 import io.netty.incubator.codec.quic.QuicPacketType;
+import io.netty.util.ReferenceCounted;
 
-public class QuicMessage implements TlsHolePunchingMessage {
+/**
+ * A QUIC packet. Reference counting is delegated to the packet, so the message has to be released like any
+ * other {@link ReferenceCounted} message and retained when forwarded.
+ */
+public class QuicMessage implements TlsHolePunchingMessage, ReferenceCounted {
     private final ByteBuf packet;
     private final QuicPacketType type;
 
@@ -23,6 +28,76 @@ public class QuicMessage implements TlsHolePunchingMessage {
         return type;
     }
 
+    /**
+     * Returns the Destination Connection ID of this packet as slice of the packet. Short header packets do not
+     * contain the length of their Destination Connection ID, so the receiver has to know it.
+     *
+     * @param shortHeaderLength length of the Destination Connection ID if this is a short header packet
+     * @return Destination Connection ID, or {@code null} if the packet is too short
+     */
+    public ByteBuf getDestinationConnectionId(final int shortHeaderLength) {
+        final int offset = packet.readerIndex();
+        if (type == QuicPacketType.SHORT) {
+            // first byte, Destination Connection ID
+            return packet.readableBytes() > shortHeaderLength ? packet.slice(offset + 1, shortHeaderLength) : null;
+        }
+        // first byte, version, Destination Connection ID length, Destination Connection ID
+        return packet.slice(offset + 6, packet.getUnsignedByte(offset + 5));
+    }
+
+    /**
+     * @return Source Connection ID of this packet as slice of the packet, or {@code null} for short header packets
+     */
+    public ByteBuf getSourceConnectionId() {
+        if (type == QuicPacketType.SHORT) {
+            return null;
+        }
+        // first byte, version, Destination Connection ID length, Destination Connection ID, Source Connection ID
+        // length, Source Connection ID
+        final int offset = packet.readerIndex();
+        final int dcidLength = packet.getUnsignedByte(offset + 5);
+        return packet.slice(offset + 7 + dcidLength, packet.getUnsignedByte(offset + 6 + dcidLength));
+    }
+
+    @Override
+    public int refCnt() {
+        return packet.refCnt();
+    }
+
+    @Override
+    public QuicMessage retain() {
+        packet.retain();
+        return this;
+    }
+
+    @Override
+    public QuicMessage retain(final int increment) {
+        packet.retain(increment);
+        return this;
+    }
+
+    @Override
+    public QuicMessage touch() {
+        packet.touch();
+        return this;
+    }
+
+    @Override
+    public QuicMessage touch(final Object hint) {
+        packet.touch(hint);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return packet.release();
+    }
+
+    @Override
+    public boolean release(final int decrement) {
+        return packet.release(decrement);
+    }
+
     @Override
     public String toString() {
         return "QuicMessage{" +
@@ -1,6 +1,11 @@
 package de.uhh;
 
 public class ReachabilityCheck implements TlsHolePunchingMessage {
+    public static final ReachabilityCheck INSTANCE = new ReachabilityCheck();
+
+    private ReachabilityCheck() {
+    }
+
     @Override
     public String toString() {
         return "ReachabilityCheck{}";
@@ -1,20 +1,97 @@
 package de.uhh;
 
+import io.netty.buffer.ByteBufUtil;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
 public class Register implements TlsHolePunchingMessage {
-    private final Character peerId;
+    static final int MAX_PEER_ID_LENGTH = 255; // bytes
+    static final int MAX_CANDIDATES = 8;
+    private final String peerId;
+    private final String contactId;
+    private final List<InetSocketAddress> candidates;
+    private final int portDelta;
+
+    public Register(final String peerId) {
+        this(peerId, null);
+    }
+
+    /**
+     * @param contactId if not {@code null}, the rendezvous server treats QUIC connection attempts relayed on behalf
+     *                  of {@code peerId} as connection request to {@code contactId}
+     */
+    public Register(final String peerId, final String contactId) {
+        this(peerId, contactId, List.of());
+    }
 
-    public Register(final Character peerId) {
-        this.peerId = peerId;
+    /**
+     * @param contactId  if not {@code null}, the rendezvous server treats QUIC connection attempts relayed on behalf
+     *                   of {@code peerId} as connection request to {@code contactId}
+     * @param candidates local endpoints of {@code peerId}, forwarded to other peers in addition to the endpoint the
+     *                   rendezvous server sees
+     */
+    public Register(final String peerId,
+                    final String contactId,
+                    final List<InetSocketAddress> candidates) {
+        this(peerId, contactId, candidates, 0);
+    }
+
+    /**
+     * @param contactId  if not {@code null}, the rendezvous server treats QUIC connection attempts relayed on behalf
+     *                   of {@code peerId} as connection request to {@code contactId}
+     * @param candidates local endpoints of {@code peerId}, forwarded to other peers in addition to the endpoint the
+     *                   rendezvous server sees
+     * @param portDelta  port allocation delta of the NAT in front of {@code peerId}, or {@code 0} if its ports are not
+     *                   predictable. See {@link PortPrediction}
+     */
+    public Register(final String peerId,
+                    final String contactId,
+                    final List<InetSocketAddress> candidates,
+                    final int portDelta) {
+        if (ByteBufUtil.utf8Bytes(peerId) > MAX_PEER_ID_LENGTH) {
+            throw new IllegalArgumentException("Peer id must not be longer than " + MAX_PEER_ID_LENGTH + " bytes.");
+        }
+        if (contactId != null && ByteBufUtil.utf8Bytes(contactId) > MAX_PEER_ID_LENGTH) {
+            throw new IllegalArgumentException("Contact id must not be longer than " + MAX_PEER_ID_LENGTH + " bytes.");
+        }
+        if (candidates.size() > MAX_CANDIDATES) {
+            throw new IllegalArgumentException("Must not register more than " + MAX_CANDIDATES + " candidates.");
+        }
+        if (Math.abs(portDelta) > PortPrediction.MAX_PORT_DELTA) {
+            throw new IllegalArgumentException("Port delta must not exceed " + PortPrediction.MAX_PORT_DELTA + ".");
+        }
+        this.peerId = requireNonNull(peerId);
+        this.contactId = contactId;
+        this.candidates = List.copyOf(candidates);
+        this.portDelta = portDelta;
     }
 
     @Override
     public String toString() {
         return "Register{" +
                 "peerId=" + peerId +
+                ", contactId=" + contactId +
+                ", candidates=" + candidates +
+                ", portDelta=" + portDelta +
                 '}';
     }
 
-    public Character getPeerId() {
+    public String getPeerId() {
         return peerId;
     }
+
+    public String getContactId() {
+        return contactId;
+    }
+
+    public List<InetSocketAddress> getCandidates() {
+        return candidates;
+    }
+
+    public int getPortDelta() {
+        return portDelta;
+    }
 }
@@ -0,0 +1,31 @@
+package de.uhh;
+
+import java.net.InetSocketAddress;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Precedes a relayed QUIC packet within a {@link Bundle}, so that a target with several requesters can tell whose
+ * connection a packet belongs to before it knows the connection ids.
+ */
+public class RelayOrigin implements TlsHolePunchingMessage {
+    private final InetSocketAddress endpoint;
+
+    /**
+     * @param endpoint endpoint of the {@link ForwardEndpoints} the target got for the requester
+     */
+    public RelayOrigin(final InetSocketAddress endpoint) {
+        this.endpoint = requireNonNull(endpoint);
+    }
+
+    @Override
+    public String toString() {
+        return "RelayOrigin{" +
+                "endpoint=" + endpoint +
+                '}';
+    }
+
+    public InetSocketAddress getEndpoint() {
+        return endpoint;
+    }
+}
@@ -1,25 +1,37 @@
 package de.uhh;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.AddressedEnvelope;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.DefaultAddressedEnvelope;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.incubator.codec.quic.QuicPacketType;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 
 import java.net.InetSocketAddress;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Objects;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static de.uhh.PeerRegistry.NO_SLOT;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 @Command(
         name = "server",
@@ -29,7 +41,7 @@ public class RendezvousServer implements Runnable {
     private static final Logger LOG = LoggerFactory.getLogger(RendezvousServer.class);
     @Option(
             names = { "--bind-host" },
-            defaultValue = "127.0.0.1"
+            defaultValue = "0.0.0.0"
     )
     protected String bindHost;
     @Option(
@@ -37,71 +49,627 @@ public class RendezvousServer implements Runnable {
             defaultValue = "8012"
     )
     protected int bindPort;
+    @Option(
+            names = { "--secondary-bind-port" },
+            defaultValue = "8013"
+    )
+    protected int secondaryBindPort; // answers binding requests only, 0 disables
+    @Option(
+            names = { "--peer-ttl" },
+            defaultValue = "90"
+    )
+    protected int peerTtl; // seconds
+    @Option(
+            names = { "--registry-capacity" },
+            defaultValue = "1024"
+    )
+    protected int registryCapacity;
+
+    @Option(
+            names = { "--session-timeout" },
+            defaultValue = "30"
+    )
+    protected int sessionTimeout; // seconds without relayed packets
+    @Option(
+            names = { "--threads" },
+            defaultValue = "1"
+    )
+    protected int threads;
+    @Option(
+            names = { "--transport" },
+            defaultValue = "NIO"
+    )
+    protected DatagramTransport transport;
+    @Option(
+            names = { "--metrics-port" },
+            defaultValue = "0"
+    )
+    protected int metricsPort; // local Prometheus scrape endpoint, 0 disables it
+    @Option(
+            names = { "--flight-recorder" },
+            defaultValue = "4096"
+    )
+    protected int flightRecorderSlots; // datagrams kept per socket, 0 disables the flight recorder
+    private final Metrics metrics = new Metrics("server");
 
     @Override
     public void run() {
-        final EventLoopGroup group = new NioEventLoopGroup(1);
+        int shardCount = threads;
+        DatagramTransport transport = this.transport.orFallback();
+        if (shardCount > 1 && !Epoll.isAvailable()) {
+            LOG.warn("Epoll not available ({}). Fall back to single-threaded server.", Epoll.unavailabilityCause().toString());
+            shardCount = 1;
+        }
+        else if (shardCount > 1) {
+            // SO_REUSEPORT requires the native transport
+            transport = DatagramTransport.EPOLL;
+        }
+
+        // each shard gets its own socket, event loop, and peer registry. SO_REUSEPORT makes the kernel
+        // distribute datagrams by their source endpoint, so a peer is always served by the same shard
+        final EventLoopGroup group = transport.newEventLoopGroup(shardCount);
+        final FlightRecorder flightRecorder = flightRecorderSlots > 0 ? new FlightRecorder(flightRecorderSlots, null) : null;
+        final MetricsEndpoint metricsEndpoint = MetricsEndpoint.start(metrics, flightRecorder, RendezvousServer.class.getSimpleName(), metricsPort);
         try {
-            final Bootstrap b = new Bootstrap()
-                    .group(group)
-                    .channel(NioDatagramChannel.class)
-                    .handler(new ChannelInitializer<>() {
-                        @Override
-                        protected void initChannel(final Channel ch) {
-                            final ChannelPipeline p = ch.pipeline();
-                            p.addLast(new TlsHolePunchingCodec());
-                            p.addLast(new RendezvousServerHandler());
+            final ConcurrentMap<InetSocketAddress, Session> sessions = new ConcurrentHashMap<>();
+            final RendezvousServerHandler[] shards = new RendezvousServerHandler[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                // peers register once per address family
+                final PeerRegistry[] registries = new PeerRegistry[DualStack.FAMILIES];
+                for (int family = 0; family < DualStack.FAMILIES; family++) {
+                    registries[family] = new PeerRegistry(registryCapacity, peerTtl, SECONDS);
+                }
+                shards[i] = new RendezvousServerHandler(shards, i, registries, sessions, sessionTimeout);
+            }
+
+            final Bootstrap b = transport.configure(new Bootstrap().group(group));
+            if (shardCount > 1) {
+                b.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+            final DatagramTransport channelTransport = transport;
+            // shared by all shards, counters are striped
+            final MetricsHandler metricsHandler = new MetricsHandler(metrics);
+
+            final Channel[] channels = new Channel[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                final RendezvousServerHandler shard = shards[i];
+                b.handler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(final Channel ch) {
+                        final ChannelPipeline p = ch.pipeline();
+                        channelTransport.initPipeline(p);
+                        p.addLast(metricsHandler);
+                        if (flightRecorder != null) {
+                            // in front of the fast path, so that relayed packets are recorded as well
+                            p.addLast(flightRecorder.newHandler());
                         }
-                    });
-            final Channel ch = b.bind(bindHost, bindPort).syncUninterruptibly().channel();
+                        p.addLast(new RelayFastPathHandler(sessions));
+                        p.addLast(new TlsHolePunchingCodec());
+                        p.addLast(new BindingHandler());
+                        p.addLast(shard);
+                    }
+                });
+                channels[i] = b.bind(bindHost, bindPort).syncUninterruptibly().channel();
+            }
+
+            // second port, so that peers can tell how their NAT allocates ports. Served by the first shard's loop
+            Channel secondaryChannel = null;
+            if (secondaryBindPort != 0) {
+                secondaryChannel = transport.configure(new Bootstrap().group(channels[0].eventLoop()))
+                        .handler(new ChannelInitializer<>() {
+                            @Override
+                            protected void initChannel(final Channel ch) {
+                                final ChannelPipeline p = ch.pipeline();
+                                channelTransport.initPipeline(p);
+                                p.addLast(metricsHandler);
+                                if (flightRecorder != null) {
+                                    p.addLast(flightRecorder.newHandler());
+                                }
+                                p.addLast(new TlsHolePunchingCodec());
+                                p.addLast(new BindingHandler());
+                            }
+                        })
+                        .bind(bindHost, secondaryBindPort).syncUninterruptibly().channel();
+            }
 
             // print configuration
-            System.out.println(RendezvousServer.class.getSimpleName() + " listening on `" + ch.localAddress() + "`.");
+            System.out.println(RendezvousServer.class.getSimpleName() + " listening on `" + channels[0].localAddress() + "` with " + shardCount + " shard(s) using " + transport + " transport.");
+            if (secondaryChannel != null) {
+                System.out.println(RendezvousServer.class.getSimpleName() + " answering binding requests on `" + secondaryChannel.localAddress() + "`.");
+            }
 
-            ch.closeFuture().awaitUninterruptibly();
+            for (final Channel ch : channels) {
+                ch.closeFuture().awaitUninterruptibly();
+            }
         }
         finally {
+            if (metricsEndpoint != null) {
+                metricsEndpoint.close();
+            }
+            if (flightRecorder != null) {
+                flightRecorder.close();
+            }
             group.shutdownGracefully();
         }
     }
 
     private static class RendezvousServerHandler extends SimpleChannelInboundHandler<AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress>> {
-        public final Map<Character, InetSocketAddress> clients = new HashMap<>();
+        // per session, QUIC packets held back until the target has been found
+        private static final int MAX_PENDING_RELAY_BYTES = 16 * 1500;
+        private final RendezvousServerHandler[] shards;
+        private final int shard;
+        private final PeerRegistry[] registries;
+        private final ConcurrentMap<InetSocketAddress, Session> sessions;
+        private final int sessionTimeout;
+        private final WriteBatch writeBatch = new WriteBatch();
+        private volatile ChannelHandlerContext ctx;
+
+        RendezvousServerHandler(final RendezvousServerHandler[] shards,
+                                final int shard,
+                                final PeerRegistry[] registries,
+                                final ConcurrentMap<InetSocketAddress, Session> sessions,
+                                final int sessionTimeout) {
+            this.shards = requireNonNull(shards);
+            this.shard = shard;
+            this.registries = requireNonNull(registries);
+            this.sessions = requireNonNull(sessions);
+            this.sessionTimeout = sessionTimeout;
+        }
+
+        @Override
+        public void channelActive(final ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+            ctx.fireChannelActive();
+
+            for (final PeerRegistry registry : registries) {
+                ctx.executor().scheduleAtFixedRate(() -> {
+                    final int expired = registry.expire();
+                    if (expired > 0) {
+                        LOG.trace("Shard {}: Removed {} expired registration(s). {} registration(s) left.", shard, expired, registry.size());
+                    }
+                }, registry.tickMillis(), registry.tickMillis(), MILLISECONDS);
+            }
+        }
 
         @Override
         protected void channelRead0(final ChannelHandlerContext ctx,
                                     final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> msg) {
-            LOG.trace("Got `{}` from `{}`.", msg.content(), msg.sender());
+            LOG.trace("Shard {}: Got `{}` from `{}`.", shard, msg.content(), msg.sender());
             if (msg.content() instanceof Register) {
-                LOG.trace("Got registration for peer `{}` from endpoint `{}`.", ((Register) msg.content()).getPeerId(), msg.sender());
-                clients.put(((Register) msg.content()).getPeerId(), msg.sender());
+                final String peerId = ((Register) msg.content()).getPeerId();
+                LOG.trace("Got registration for peer `{}` from endpoint `{}`.", peerId, msg.sender());
+                final int family = DualStack.family(msg.sender());
+                final boolean known = registries[family].slotOf(peerId) != NO_SLOT;
+                registries[family].register(peerId, ((Register) msg.content()).getContactId(), ((Register) msg.content()).getCandidates(), ((Register) msg.content()).getPortDelta(), msg.sender());
+                if (!known) {
+                    // peer may have been served by another shard before its endpoint has changed
+                    for (final RendezvousServerHandler other : shards) {
+                        if (other != this && other.ctx != null) {
+                            other.ctx.executor().execute(() -> other.registries[family].unregister(peerId));
+                        }
+                    }
+                }
             }
             else if (msg.content() instanceof ConnectionRequest) {
-                if (clients.containsKey('a') && clients.containsKey('b')) {
-                    LOG.trace("Send endpoints to both clients.");
-                    ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new ForwardEndpoints(clients.get('a')), clients.get('b')));
-                    ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new ForwardEndpoints(clients.get('b')), clients.get('a')));
-                }
-                else {
-                    LOG.trace("Unable to send endpoints as not both clients are registered.");
+                final PeerRegistry registry = registryOf(msg.sender());
+                final int requester = registry.slotOf(msg.sender());
+                if (requester == NO_SLOT) {
+                    LOG.trace("Got connection request from unregistered endpoint `{}`.", msg.sender());
+                    return;
                 }
+
+                requestConnection(registry.peerId(requester), ((ConnectionRequest) msg.content()).getTargetPeerId(), msg.sender(), null);
             }
             else if (msg.content() instanceof QuicMessage) {
-                if (Objects.equals(msg.sender(), clients.get('a')) && clients.containsKey('b')) {
-                    LOG.trace("Redirect QUIC message from `a` to `b`: `{}`", msg.content());
-                    ctx.writeAndFlush(new DefaultAddressedEnvelope<>(msg.content(), clients.get('b')));
+                final Session session = sessions.get(msg.sender());
+                if (isImplicitConnectionRequest(session, (QuicMessage) msg.content(), msg.sender())) {
+                    implicitConnectionRequest((QuicMessage) msg.content(), msg.sender());
+                    return;
                 }
-                else if (Objects.equals(msg.sender(), clients.get('b')) && clients.containsKey('a')) {
-                    LOG.trace("Redirect QUIC message from `b` to `a` `{}`", msg.content());
-                    ctx.writeAndFlush(new DefaultAddressedEnvelope<>(msg.content(), clients.get('a')));
+                if (session == null) {
+                    LOG.trace("Got unroutable QUIC message `{}`.", msg);
+                }
+                else if (msg.sender().equals(session.requesterEndpoint)) {
+                    if (session.pendingRelays == null) {
+                        LOG.trace("Redirect QUIC message from `{}` to `{}`: `{}`", session.requesterId, session.targetId, msg.content());
+                        session.relayed();
+                        relayToTarget(session, ((QuicMessage) msg.content()).retain());
+                    }
+                    else {
+                        LOG.trace("Peer `{}` not found yet. Enqueue QUIC message `{}`.", session.targetId, msg.content());
+                        session.pendingRelays.add(((QuicMessage) msg.content()).retain());
+                    }
                 }
                 else {
-                    LOG.trace("Got unroutable QUIC message `{}`.", msg);
+                    LOG.trace("Redirect QUIC message from `{}` to `{}`: `{}`", session.targetId, session.requesterId, msg.content());
+                    session.relayed();
+                    writeBatch.write(ctx, new DefaultAddressedEnvelope<>(ReferenceCountUtil.retain(msg.content()), session.requesterEndpoint));
                 }
             }
             else {
                 LOG.error("Unexpected message: {}", msg);
             }
         }
+
+        @Override
+        public void channelReadComplete(final ChannelHandlerContext ctx) {
+            writeBatch.flush(ctx);
+            ctx.fireChannelReadComplete();
+        }
+
+        // firstRelay, if not null, is relayed to the target together with its endpoints
+        private void requestConnection(final String requesterId,
+                                       final String targetId,
+                                       final InetSocketAddress requesterEndpoint,
+                                       final QuicMessage firstRelay) {
+            final Session session = new Session(requesterId, targetId, requesterEndpoint);
+            final Session previous = sessions.put(requesterEndpoint, session);
+            if (previous != null) {
+                removeSession(previous);
+            }
+            ctx.executor().schedule(() -> expireIfIdle(session), sessionTimeout, SECONDS);
+
+            session.addEndpoints(endpointsOf(requesterId), endpointsOf(targetId));
+            if (shards.length == 1) {
+                endpointsLookedUp(session, firstRelay);
+                return;
+            }
+
+            // registrations of both peers may be served by other shards, one per address family. Relays are held
+            // back until all shards have answered
+            if (firstRelay != null) {
+                session.pendingRelays.add(firstRelay.retain());
+            }
+            LOG.trace("Shard {}: Ask other shards for endpoints of `{}` and `{}`.", shard, requesterId, targetId);
+            for (final RendezvousServerHandler other : shards) {
+                if (other != this && other.ctx != null) {
+                    session.pendingLookups++;
+                    other.ctx.executor().execute(() -> other.lookupEndpoints(session, this));
+                }
+            }
+            if (session.pendingLookups == 0) {
+                endpointsLookedUp(session, null);
+            }
+        }
+
+        // the first packet of a QUIC connection relayed on behalf of a peer that has registered with a contact is
+        // treated as connection request to that contact. Saves the peer a ConnectionRequest round trip. Later packets,
+        // including Initials of further connections, are relayed within the session. Peers that need the endpoints
+        // again request them explicitly
+        private boolean isImplicitConnectionRequest(final Session session,
+                                                    final QuicMessage msg,
+                                                    final InetSocketAddress sender) {
+            if (msg.getType() != QuicPacketType.INITIAL && msg.getType() != QuicPacketType.ZERO_RTT) {
+                return false;
+            }
+            final PeerRegistry registry = registryOf(sender);
+            final int requester = registry.slotOf(sender);
+            if (requester == NO_SLOT || registry.contactId(requester) == null) {
+                return false;
+            }
+            // no session of the sender as requester yet, or one with a target it no longer contacts
+            return session == null || !sender.equals(session.requesterEndpoint) || !registry.contactId(requester).equals(session.targetId);
+        }
+
+        private void implicitConnectionRequest(final QuicMessage msg,
+                                               final InetSocketAddress sender) {
+            final PeerRegistry registry = registryOf(sender);
+            final int requester = registry.slotOf(sender);
+            final String targetId = registry.contactId(requester);
+            LOG.trace("Got {} from `{}`. Treat it as connection request to `{}`.", msg, registry.peerId(requester), targetId);
+            requestConnection(registry.peerId(requester), targetId, sender, msg);
+        }
+
+        // called on the event loop of this shard on behalf of the shard serving the requester
+        private void lookupEndpoints(final Session session,
+                                     final RendezvousServerHandler requesterShard) {
+            final PeerEndpoints requesterEndpoints = endpointsOf(session.requesterId);
+            final PeerEndpoints targetEndpoints = endpointsOf(session.targetId);
+            requesterShard.ctx.executor().execute(() -> {
+                session.addEndpoints(requesterEndpoints, targetEndpoints);
+                if (--session.pendingLookups == 0) {
+                    requesterShard.endpointsLookedUp(session, null);
+                }
+            });
+        }
+
+        // must be called on the event loop of the shard serving the requester
+        private void endpointsLookedUp(final Session session,
+                                       final QuicMessage firstRelay) {
+            if (session.selectEndpoints()) {
+                targetFound(session, firstRelay);
+                flushPendingRelays(session);
+            }
+            else {
+                if (firstRelay != null) {
+                    LOG.trace("Peer `{}` not found yet. Enqueue QUIC message `{}`.", session.targetId, firstRelay);
+                    session.pendingRelays.add(firstRelay.retain());
+                }
+                LOG.trace("Unable to send endpoints as peer `{}` is not registered.", session.targetId);
+            }
+        }
+
+        // firstRelay, if not null, is sent to the target in the same datagram as the endpoints
+        private void targetFound(final Session session,
+                                 final QuicMessage firstRelay) {
+            final List<InetSocketAddress> targetCandidates = session.targetEndpoints.candidates(session.targetDirectEndpoint);
+            final List<InetSocketAddress> requesterCandidates = session.requesterEndpoints.candidates(session.requesterDirectEndpoint);
+            LOG.trace("Shard {}: Send endpoints `{}` to `{}` and `{}` to `{}`.", shard, targetCandidates, session.requesterId, requesterCandidates, session.targetId);
+            // an endpoint can only be part of one session. The most recent session wins
+            sessions.put(session.targetEndpoint, session);
+            // requester first: answers to a relayed packet must not overtake its endpoints
+            ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new ForwardEndpoints(targetCandidates, session.targetEndpoints.portDelta(session.targetDirectEndpoint)), session.requesterEndpoint));
+            final ForwardEndpoints requesterEndpoints = new ForwardEndpoints(requesterCandidates, session.requesterEndpoints.portDelta(session.requesterDirectEndpoint));
+            if (firstRelay != null) {
+                LOG.trace("Redirect QUIC message from `{}` to `{}`: `{}`", session.requesterId, session.targetId, firstRelay);
+                ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new Bundle(List.of(requesterEndpoints, new RelayOrigin(session.requesterDirectEndpoint)), firstRelay.retain()), session.targetEndpoint));
+            }
+            else {
+                ctx.writeAndFlush(new DefaultAddressedEnvelope<>(requesterEndpoints, session.targetEndpoint));
+            }
+        }
+
+        // must be called on the event loop of the shard serving the requester
+        private void flushPendingRelays(final Session session) {
+            final PendingQuicMessages pendingRelays = session.pendingRelays;
+            session.pendingRelays = null;
+            if (pendingRelays != null && !pendingRelays.isEmpty()) {
+                LOG.trace("Shard {}: Peer `{}` found. Flush {} pending relay(s).", shard, session.targetId, pendingRelays.size());
+                QuicMessage pendingRelay;
+                while ((pendingRelay = pendingRelays.poll()) != null) {
+                    relayToTarget(session, pendingRelay);
+                }
+                writeBatch.flush(ctx);
+            }
+        }
+
+        // relays that skip the fast path, mostly connection attempts, tell the target their requester. It has no
+        // connection id of them yet. Takes ownership of msg
+        private void relayToTarget(final Session session, final QuicMessage msg) {
+            writeBatch.write(ctx, new DefaultAddressedEnvelope<>(new Bundle(new RelayOrigin(session.requesterDirectEndpoint), msg), session.targetEndpoint));
+        }
+
+        // must be called on the event loop of the shard serving the requester
+        private void expireIfIdle(final Session session) {
+            final long idle = System.nanoTime() - session.lastRelayTime;
+            final long timeout = SECONDS.toNanos(sessionTimeout);
+            if (idle < timeout) {
+                ctx.executor().schedule(() -> expireIfIdle(session), timeout - idle, NANOSECONDS);
+            }
+            else {
+                LOG.trace("Shard {}: No relay between `{}` and `{}` for {}s. Remove session.", shard, session.requesterId, session.targetId, sessionTimeout);
+                removeSession(session);
+                discardPendingRelays(session);
+            }
+        }
+
+        // must be called on the event loop of the shard serving the requester
+        private void discardPendingRelays(final Session session) {
+            final PendingQuicMessages pendingRelays = session.pendingRelays;
+            if (pendingRelays != null && !pendingRelays.isEmpty()) {
+                LOG.trace("Shard {}: Peer `{}` not found. Discard {} pending relay(s).", shard, session.targetId, pendingRelays.size());
+                pendingRelays.clear();
+            }
+        }
+
+        private PeerRegistry registryOf(final InetSocketAddress endpoint) {
+            return registries[DualStack.family(endpoint)];
+        }
+
+        // registrations of peerId in this shard
+        private PeerEndpoints endpointsOf(final String peerId) {
+            final PeerEndpoints endpoints = new PeerEndpoints();
+            for (int family = 0; family < DualStack.FAMILIES; family++) {
+                final int slot = registries[family].slotOf(peerId);
+                if (slot != NO_SLOT) {
+                    endpoints.registered[family] = registries[family].endpoint(slot);
+                    endpoints.portDeltas[family] = registries[family].portDelta(slot);
+                    endpoints.candidates = registries[family].candidates(slot);
+                }
+            }
+            return endpoints;
+        }
+
+        private void removeSession(final Session session) {
+            sessions.remove(session.requesterEndpoint, session);
+            final InetSocketAddress targetEndpoint = session.targetEndpoint;
+            if (targetEndpoint != null) {
+                sessions.remove(targetEndpoint, session);
+            }
+        }
+    }
+
+    // tells peers the endpoint we see them at, if requested after a delay. Passes other messages on
+    private static class BindingHandler extends ChannelInboundHandlerAdapter {
+        // each costs a scheduled task, which spoofed requests must not pile up
+        private static final int MAX_DELAYED_RESPONSES = 4096;
+        private int delayedResponses;
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+            if (!(msg instanceof AddressedEnvelope) || !(((AddressedEnvelope<?, ?>) msg).content() instanceof BindingRequest)) {
+                ctx.fireChannelRead(msg);
+                return;
+            }
+
+            final InetSocketAddress sender = ((AddressedEnvelope<BindingRequest, InetSocketAddress>) msg).sender();
+            final int delay = ((AddressedEnvelope<BindingRequest, InetSocketAddress>) msg).content().getDelay();
+            LOG.trace("Got binding request from `{}` with delay {}s.", sender, delay);
+            if (delay == 0) {
+                ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new BindingResponse(sender), sender));
+            }
+            else if (delayedResponses < MAX_DELAYED_RESPONSES) {
+                delayedResponses++;
+                ctx.executor().schedule(() -> {
+                    delayedResponses--;
+                    ctx.writeAndFlush(new DefaultAddressedEnvelope<>(new BindingResponse(sender), sender));
+                }, delay, SECONDS);
+            }
+            else {
+                LOG.trace("Too many delayed binding responses. Drop request from `{}`.", sender);
+            }
+        }
+    }
+
+    // forwards QUIC packets of established sessions as they are, skipping decoding and encoding
+    private static class RelayFastPathHandler extends ChannelInboundHandlerAdapter {
+        private final ConcurrentMap<InetSocketAddress, Session> sessions;
+        private final WriteBatch writeBatch = new WriteBatch();
+
+        RelayFastPathHandler(final ConcurrentMap<InetSocketAddress, Session> sessions) {
+            this.sessions = requireNonNull(sessions);
+        }
+
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+            if (msg instanceof DatagramPacket) {
+                final DatagramPacket packet = (DatagramPacket) msg;
+                final ByteBuf content = packet.content();
+                if (content.isReadable() && !TlsHolePunchingCodec.isTlsHolePunchingMessage(content.getByte(content.readerIndex()))) {
+                    final Session session = sessions.get(packet.sender());
+                    final InetSocketAddress recipient = recipientOf(session, packet.sender(), content.getByte(content.readerIndex()));
+                    if (recipient != null) {
+                        session.relayed();
+                        // pass ownership of the received buffer to the outbound datagram
+                        writeBatch.write(ctx, new DatagramPacket(content, recipient));
+                        return;
+                    }
+                }
+            }
+
+            // control message, unroutable, or held back QUIC packet
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void channelReadComplete(final ChannelHandlerContext ctx) {
+            writeBatch.flush(ctx);
+            ctx.fireChannelReadComplete();
+        }
+
+        private static InetSocketAddress recipientOf(final Session session,
+                                                     final InetSocketAddress sender,
+                                                     final byte firstByte) {
+            if (session == null) {
+                return null;
+            }
+            else if (sender.equals(session.requesterEndpoint)) {
+                // relays of the requester might have to be held back. Connection attempts may request endpoints and
+                // carry their origin
+                return session.pendingRelays == null && !isConnectionAttempt(firstByte) ? session.targetEndpoint : null;
+            }
+            else {
+                return session.requesterEndpoint;
+            }
+        }
+    }
+
+    // QUIC v1 long header packet of type Initial or 0-RTT
+    private static boolean isConnectionAttempt(final byte firstByte) {
+        return (firstByte & 0x80) != 0 && (firstByte & 0x30) >> 4 <= 1;
+    }
+
+    // registrations of a peer, indexed by address family, and the local endpoints it has reported
+    private static class PeerEndpoints {
+        private final InetSocketAddress[] registered = new InetSocketAddress[DualStack.FAMILIES];
+        // port delta of the NAT in front of each registration
+        private final int[] portDeltas = new int[DualStack.FAMILIES];
+        private List<InetSocketAddress> candidates = List.of();
+
+        void add(final PeerEndpoints other) {
+            for (int family = 0; family < DualStack.FAMILIES; family++) {
+                if (other.registered[family] != null) {
+                    registered[family] = other.registered[family];
+                    portDeltas[family] = other.portDeltas[family];
+                }
+            }
+            if (!other.candidates.isEmpty()) {
+                candidates = other.candidates;
+            }
+        }
+
+        int portDelta(final InetSocketAddress endpoint) {
+            return endpoint.equals(registered[DualStack.family(endpoint)]) ? portDeltas[DualStack.family(endpoint)] : 0;
+        }
+
+        // endpoint, followed by the local endpoints
+        List<InetSocketAddress> candidates(final InetSocketAddress endpoint) {
+            final List<InetSocketAddress> endpoints = new ArrayList<>(1 + candidates.size());
+            endpoints.add(endpoint);
+            for (final InetSocketAddress candidate : candidates) {
+                if (!candidate.equals(endpoint)) {
+                    endpoints.add(candidate);
+                }
+            }
+            return endpoints;
+        }
+    }
+
+    // in-flight hole punch between two peers. Accessible by all shards
+    private static class Session {
+        private final String requesterId;
+        private final String targetId;
+        private final InetSocketAddress requesterEndpoint;
+        // endpoint of the target QUIC packets are relayed to
+        private volatile InetSocketAddress targetEndpoint;
+        // relays held back until target has been found. Only accessed by the shard serving the requester
+        private PendingQuicMessages pendingRelays = new PendingQuicMessages(RendezvousServerHandler.MAX_PENDING_RELAY_BYTES);
+        // System#nanoTime of the latest relay in either direction, or of the creation. Written by any shard
+        private volatile long lastRelayTime = System.nanoTime();
+        // the following fields are only accessed by the shard serving the requester
+        private final PeerEndpoints requesterEndpoints = new PeerEndpoints();
+        private final PeerEndpoints targetEndpoints = new PeerEndpoints();
+        private int pendingLookups;
+        // endpoints forwarded to the peers for their reachability checks
+        private InetSocketAddress requesterDirectEndpoint;
+        private InetSocketAddress targetDirectEndpoint;
+
+        Session(final String requesterId,
+                final String targetId,
+                final InetSocketAddress requesterEndpoint) {
+            this.requesterId = requireNonNull(requesterId);
+            this.targetId = requireNonNull(targetId);
+            this.requesterEndpoint = requireNonNull(requesterEndpoint);
+        }
+
+        void relayed() {
+            lastRelayTime = System.nanoTime();
+        }
+
+        void addEndpoints(final PeerEndpoints requesterEndpoints,
+                          final PeerEndpoints targetEndpoints) {
+            this.requesterEndpoints.add(requesterEndpoints);
+            this.targetEndpoints.add(targetEndpoints);
+        }
+
+        /**
+         * Relays go to the target's registration in the address family of the requester, if any. Peers check the
+         * IPv6 path if both have registered over IPv6: it usually does not traverse a NAT.
+         *
+         * @return {@code false} if the target is not registered
+         */
+        boolean selectEndpoints() {
+            final int family = DualStack.family(requesterEndpoint);
+            targetEndpoint = targetEndpoints.registered[family] != null ? targetEndpoints.registered[family] : targetEndpoints.registered[DualStack.FAMILIES - 1 - family];
+            if (targetEndpoint == null) {
+                return false;
+            }
+
+            if (requesterEndpoints.registered[DualStack.IPV6] != null && targetEndpoints.registered[DualStack.IPV6] != null) {
+                requesterDirectEndpoint = requesterEndpoints.registered[DualStack.IPV6];
+                targetDirectEndpoint = targetEndpoints.registered[DualStack.IPV6];
+            }
+            else if (requesterEndpoints.registered[DualStack.IPV4] != null && targetEndpoints.registered[DualStack.IPV4] != null) {
+                requesterDirectEndpoint = requesterEndpoints.registered[DualStack.IPV4];
+                targetDirectEndpoint = targetEndpoints.registered[DualStack.IPV4];
+            }
+            else {
+                // no common address family, checks will fail but relaying works
+                requesterDirectEndpoint = requesterEndpoint;
+                targetDirectEndpoint = targetEndpoint;
+            }
+            return true;
+        }
     }
 }
@@ -0,0 +1,122 @@
+package de.uhh;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Repeats a transmission with exponential backoff until {@link #acknowledged()} or {@link #cancel()} is called.
+ * Timers are kept in a hashed wheel shared by all retransmitters, but transmissions are always performed on the
+ * {@link EventExecutor} passed to {@link #start(EventExecutor, RttEstimator, Runnable)}. Apart from that, this class is not
+ * thread-safe.
+ */
+class Retransmitter {
+    private static final Logger LOG = LoggerFactory.getLogger(Retransmitter.class);
+    private static final Timer TIMER = new HashedWheelTimer(new DefaultThreadFactory("retransmission-timer", true), 5, MILLISECONDS);
+    private final int maxRetransmissions;
+    private final Runnable giveUp;
+    private EventExecutor executor;
+    // estimator of the path the current transmission takes
+    private RttEstimator rttEstimator;
+    private Runnable transmission;
+    private Timeout timeout;
+    private long rto;
+    private long firstTransmissionTime;
+    private int retransmissions;
+
+    Retransmitter(final int maxRetransmissions) {
+        this(maxRetransmissions, () -> {
+        });
+    }
+
+    /**
+     * @param giveUp run on the event loop when the last retransmission has not been acknowledged either
+     */
+    Retransmitter(final int maxRetransmissions, final Runnable giveUp) {
+        this.maxRetransmissions = maxRetransmissions;
+        this.giveUp = requireNonNull(giveUp);
+    }
+
+    /**
+     * Performs {@code transmission} and repeats it until acknowledged. A pending transmission is replaced.
+     *
+     * @param rttEstimator estimator of the path to the recipient, sampled on acknowledgement
+     */
+    void start(final EventExecutor executor, final RttEstimator rttEstimator, final Runnable transmission) {
+        cancel();
+        this.executor = requireNonNull(executor);
+        this.rttEstimator = requireNonNull(rttEstimator);
+        this.transmission = requireNonNull(transmission);
+        rto = rttEstimator.rto();
+        retransmissions = 0;
+        firstTransmissionTime = System.nanoTime();
+        transmission.run();
+        schedule();
+    }
+
+    /**
+     * Like {@link #start(EventExecutor, RttEstimator, Runnable)}, but for requests that have already been sent
+     * implicitly: {@code transmission} is performed the first time only if not acknowledged within the retransmission
+     * timeout.
+     */
+    void startDeferred(final EventExecutor executor, final RttEstimator rttEstimator, final Runnable transmission) {
+        cancel();
+        this.executor = requireNonNull(executor);
+        this.rttEstimator = requireNonNull(rttEstimator);
+        this.transmission = requireNonNull(transmission);
+        rto = rttEstimator.rto();
+        retransmissions = 0;
+        firstTransmissionTime = System.nanoTime();
+        schedule();
+    }
+
+    void acknowledged() {
+        if (transmission != null && retransmissions == 0) {
+            // Karn's algorithm: we can not tell to which transmission a response belongs once we have retransmitted
+            rttEstimator.sample(System.nanoTime() - firstTransmissionTime);
+        }
+        cancel();
+    }
+
+    void cancel() {
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+        transmission = null;
+    }
+
+    private void schedule() {
+        final Runnable scheduledTransmission = transmission;
+        timeout = TIMER.newTimeout(t -> executor.execute(() -> retransmit(scheduledTransmission)), rto, NANOSECONDS);
+    }
+
+    private void retransmit(final Runnable scheduledTransmission) {
+        if (transmission != scheduledTransmission) {
+            // acknowledged, cancelled, or replaced in the meantime
+            return;
+        }
+
+        if (retransmissions >= maxRetransmissions) {
+            LOG.debug("No response after {} retransmission(s). Give up.", retransmissions);
+            transmission = null;
+            timeout = null;
+            giveUp.run();
+            return;
+        }
+
+        retransmissions++;
+        LOG.trace("No response within {}ms. Retransmit ({}/{}).", NANOSECONDS.toMillis(rto), retransmissions, maxRetransmissions);
+        rto = Math.min(RttEstimator.MAX_RTO, rto * 2);
+        transmission.run();
+        schedule();
+    }
+}
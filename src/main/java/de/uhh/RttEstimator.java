@@ -0,0 +1,57 @@
+package de.uhh;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Estimates the retransmission timeout from round-trip time samples as described in RFC 6298.
+ */
+class RttEstimator {
+    private static final long MIN_RTO = MILLISECONDS.toNanos(20);
+    static final long MAX_RTO = SECONDS.toNanos(3);
+    private final long initialRto;
+    private long srtt;
+    private long rttvar;
+
+    RttEstimator(final long initialRto) {
+        this.initialRto = Math.max(MIN_RTO, initialRto);
+    }
+
+    /**
+     * Starts with the current estimate of {@code seed}, e.g. the rendezvous server's for a new peer, and then
+     * estimates on its own.
+     */
+    RttEstimator(final RttEstimator seed) {
+        this.initialRto = seed.rto();
+        this.srtt = seed.srtt;
+        this.rttvar = seed.rttvar;
+    }
+
+    void sample(final long rtt) {
+        if (srtt == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        }
+        else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+    }
+
+    /**
+     * @return retransmission timeout in nanoseconds
+     */
+    long rto() {
+        if (srtt == 0) {
+            return initialRto;
+        }
+        return Math.min(MAX_RTO, Math.max(MIN_RTO, srtt + 4 * rttvar));
+    }
+
+    /**
+     * @return smoothed round-trip time in nanoseconds, or {@code 0} if no sample has been taken yet
+     */
+    long srtt() {
+        return srtt;
+    }
+}
@@ -0,0 +1,132 @@
+package de.uhh;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Monotonic {@link System#nanoTime()} timestamps of a session: when each {@link Phase} began and when each of the
+ * first {@link #MAX_PACKETS} packets of the session has been received or sent. Stamping a packet stores references
+ * into preallocated arrays and allocates nothing.
+ * <p>
+ * This class is not thread-safe and must only be used from the event loop of the session.
+ */
+class SessionTimeline {
+    // later packets are counted only
+    static final int MAX_PACKETS = 64;
+    private static final boolean RX = false;
+    private static final boolean TX = true;
+    private final long[] phases = new long[Phase.values().length];
+    private final Set<Phase> reached = EnumSet.noneOf(Phase.class);
+    private final long[] packetTimes = new long[MAX_PACKETS];
+    private final boolean[] packetDirections = new boolean[MAX_PACKETS];
+    // message class, or QUIC packet type
+    private final Object[] packetKinds = new Object[MAX_PACKETS];
+    private final InetSocketAddress[] packetPeers = new InetSocketAddress[MAX_PACKETS];
+    private int packets;
+
+    enum Phase {
+        HOLE_PUNCHING_STARTED,
+        ENDPOINTS_RECEIVED,
+        HOLE_PUNCHED,
+        QUIC_HANDSHAKE_STARTED,
+        QUIC_HANDSHAKED
+    }
+
+    static long now() {
+        return System.nanoTime();
+    }
+
+    void reach(final Phase phase) {
+        reach(phase, now());
+    }
+
+    void reach(final Phase phase, final long nanos) {
+        phases[phase.ordinal()] = nanos;
+        reached.add(phase);
+    }
+
+    boolean hasReached(final Phase phase) {
+        return reached.contains(phase);
+    }
+
+    /**
+     * @return nanoseconds from {@link Phase#HOLE_PUNCHING_STARTED} to {@code phase}, or -1 if not reached
+     */
+    long offset(final Phase phase) {
+        return hasReached(phase) ? phases[phase.ordinal()] - phases[Phase.HOLE_PUNCHING_STARTED.ordinal()] : -1;
+    }
+
+    /**
+     * @return the timestamp of the packet
+     */
+    long received(final TlsHolePunchingMessage msg, final InetSocketAddress sender) {
+        return packet(RX, msg, sender);
+    }
+
+    void sent(final TlsHolePunchingMessage msg, final InetSocketAddress recipient) {
+        packet(TX, msg, recipient);
+    }
+
+    /**
+     * @return nanoseconds from {@link Phase#HOLE_PUNCHING_STARTED} to the first QUIC packet sent ({@code sent}) or
+     * received over the network, i.e. not exchanged with {@code quicEndpoint}, or -1 if there was none among the
+     * recorded packets
+     */
+    long firstQuicPacket(final boolean sent, final InetSocketAddress quicEndpoint) {
+        for (int i = 0; i < Math.min(packets, MAX_PACKETS); i++) {
+            if (packetDirections[i] == sent && !(packetKinds[i] instanceof Class) && !packetPeers[i].equals(quicEndpoint)) {
+                return packetTimes[i] - phases[Phase.HOLE_PUNCHING_STARTED.ordinal()];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Lists phases and packets in chronological order, one per line.
+     */
+    @Override
+    public String toString() {
+        final long origin = phases[Phase.HOLE_PUNCHING_STARTED.ordinal()];
+        final List<Phase> sortedPhases = new ArrayList<>(reached);
+        sortedPhases.sort(Comparator.comparingLong(phase -> phases[phase.ordinal()]));
+        final StringBuilder sb = new StringBuilder();
+        int phase = 0;
+        for (int i = 0; i < Math.min(packets, MAX_PACKETS); i++) {
+            // phases reached by a packet follow it
+            while (phase < sortedPhases.size() && phases[sortedPhases.get(phase).ordinal()] < packetTimes[i]) {
+                appendPhase(sb, sortedPhases.get(phase++), origin);
+            }
+            final Object kind = packetKinds[i];
+            sb.append(String.format("%n  %+10.3fms %s %s %s `%s`", (packetTimes[i] - origin) / 1e6, packetDirections[i] ? "TX" : "RX", kind instanceof Class ? ((Class<?>) kind).getSimpleName() : "QUIC " + kind, packetDirections[i] ? "to" : "from", packetPeers[i]));
+        }
+        while (phase < sortedPhases.size()) {
+            appendPhase(sb, sortedPhases.get(phase++), origin);
+        }
+        if (packets > MAX_PACKETS) {
+            sb.append(String.format("%n  %d more packet(s)", packets - MAX_PACKETS));
+        }
+        return sb.toString();
+    }
+
+    private void appendPhase(final StringBuilder sb, final Phase phase, final long origin) {
+        sb.append(String.format("%n  %+10.3fms %s", (phases[phase.ordinal()] - origin) / 1e6, phase));
+    }
+
+    private long packet(final boolean direction,
+                        final TlsHolePunchingMessage msg,
+                        final InetSocketAddress peer) {
+        final long now = now();
+        if (packets < MAX_PACKETS) {
+            packetTimes[packets] = now;
+            packetDirections[packets] = direction;
+            packetKinds[packets] = msg instanceof QuicMessage ? ((QuicMessage) msg).getType() : msg.getClass();
+            packetPeers[packets] = peer;
+        }
+        packets++;
+        return now;
+    }
+}
@@ -0,0 +1,57 @@
+package de.uhh;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Copies everything read from one channel to another, e.g. from a TCP connection to a QUIC stream. Reading pauses
+ * while the other channel is not writable. Add one bridge to each of the two channels.
+ */
+class StreamBridge extends ChannelInboundHandlerAdapter {
+    private final Channel other;
+
+    StreamBridge(final Channel other) {
+        this.other = requireNonNull(other);
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+        other.write(msg);
+    }
+
+    @Override
+    public void channelReadComplete(final ChannelHandlerContext ctx) {
+        other.flush();
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(final ChannelHandlerContext ctx) {
+        // the other channel's bridge reads for us
+        other.config().setAutoRead(ctx.channel().isWritable());
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) {
+        closeOnFlush(other);
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+        ctx.close();
+    }
+
+    // closes ch after everything written so far has been sent
+    static void closeOnFlush(final Channel ch) {
+        if (ch.isActive()) {
+            ch.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+}
@@ -2,22 +2,31 @@ package de.uhh;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.AddressedEnvelope;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.DefaultAddressedEnvelope;
 import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.DecoderException;
 import io.netty.handler.codec.EncoderException;
 import io.netty.handler.codec.MessageToMessageCodec;
 import io.netty.incubator.codec.quic.QuicHeaderParser;
+import io.netty.incubator.codec.quic.QuicPacketType;
+import io.netty.util.concurrent.FastThreadLocal;
 import io.netty.util.internal.StringUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.List;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 @Sharable
 public class TlsHolePunchingCodec extends MessageToMessageCodec<AddressedEnvelope<ByteBuf, InetSocketAddress>, AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress>> {
     private static final Logger LOG = LoggerFactory.getLogger(TlsHolePunchingCodec.class);
@@ -29,6 +38,61 @@ public class TlsHolePunchingCodec extends MessageToMessageCodec<AddressedEnvelop
     static final byte MAGIC_NUMBER_REACHABILITY_CHECK = 103;
     static final byte MAGIC_NUMBER_ACKNOWLEDGEMENT = 104;
     static final byte MAGIC_NUMBER_REGISTER = 105;
+    // later magic numbers are below 64. The first byte of a QUIC packet always has the fixed bit (0x40) set, so they
+    // can never be mistaken for a short header packet (RFC 9000, 17)
+    static final byte MAGIC_NUMBER_RELAY_ORIGIN = 1;
+    static final byte MAGIC_NUMBER_BUNDLE = 2;
+    static final byte MAGIC_NUMBER_BINDING_REQUEST = 3;
+    static final byte MAGIC_NUMBER_BINDING_RESPONSE = 4;
+    // encoded IPv6 endpoint within a list
+    private static final int MAX_ENDPOINT_LENGTH = 19;
+    // list entry with address length 0: port delta (s16) instead of an endpoint
+    private static final int PORT_DELTA_ENTRY = 0;
+    private static final int PORT_DELTA_LENGTH = 3;
+    // magic number, delay (u16), zeros. Binding requests are padded to the size of the largest response, so that the
+    // server does not amplify requests with spoofed senders
+    private static final int BINDING_REQUEST_LENGTH = 1 + MAX_ENDPOINT_LENGTH;
+    // most significant bit of the first byte of every QUIC packet. Set for long header packets (RFC 9000, 17.2)
+    private static final int HEADER_FORM_LONG = 0x80;
+    // stateless messages are encoded only once. Each send still allocates a duplicate (two small objects, no
+    // memory of its own), as writers like encodeBundle advance the reader index of the buffer they get
+    private static final ByteBuf REACHABILITY_CHECK = preEncoded(MAGIC_NUMBER_REACHABILITY_CHECK);
+    private static final ByteBuf ACKNOWLEDGEMENT = preEncoded(MAGIC_NUMBER_ACKNOWLEDGEMENT);
+    private static final ByteBuf BINDING_REQUEST = Unpooled.unreleasableBuffer(Unpooled.directBuffer(BINDING_REQUEST_LENGTH, BINDING_REQUEST_LENGTH).writeByte(MAGIC_NUMBER_BINDING_REQUEST).writeZero(BINDING_REQUEST_LENGTH - 1));
+    // InetAddress#getByAddress does not keep the passed array, so we can reuse it
+    private static final FastThreadLocal<byte[]> IPV4_ADDRESS_BUFFER = new FastThreadLocal<>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[4];
+        }
+    };
+    private static final FastThreadLocal<byte[]> IPV6_ADDRESS_BUFFER = new FastThreadLocal<>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[16];
+        }
+    };
+
+    /**
+     * @return {@code true} if a datagram starting with {@code firstByte} is a {@link TlsHolePunchingMessage} other
+     * than {@link QuicMessage}
+     */
+    static boolean isTlsHolePunchingMessage(final byte firstByte) {
+        switch (firstByte) {
+            case MAGIC_NUMBER_CONNECTION_REQUEST:
+            case MAGIC_NUMBER_FORWARD_ENDPOINTS:
+            case MAGIC_NUMBER_REACHABILITY_CHECK:
+            case MAGIC_NUMBER_ACKNOWLEDGEMENT:
+            case MAGIC_NUMBER_REGISTER:
+            case MAGIC_NUMBER_RELAY_ORIGIN:
+            case MAGIC_NUMBER_BUNDLE:
+            case MAGIC_NUMBER_BINDING_REQUEST:
+            case MAGIC_NUMBER_BINDING_RESPONSE:
+                return true;
+            default:
+                return false;
+        }
+    }
 
     @SuppressWarnings("unchecked")
     @Override
@@ -44,44 +108,128 @@ public class TlsHolePunchingCodec extends MessageToMessageCodec<AddressedEnvelop
             // no magic number!
             out.add(new DatagramPacket(((QuicMessage) msg.content()).getPacket().retain(), msg.recipient(), msg.sender()));
         }
-        else if (msg.content() instanceof ConnectionRequest) {
-            final ByteBuf buf = ctx.alloc().buffer();
-            buf.writeByte(MAGIC_NUMBER_CONNECTION_REQUEST);
-
-            out.add(new DatagramPacket(buf, msg.recipient(), msg.sender()));
+        else if (msg.content() instanceof Bundle) {
+            out.add(new DatagramPacket(encodeBundle(ctx, (Bundle) msg.content()), msg.recipient(), msg.sender()));
         }
-        else if (msg.content() instanceof ForwardEndpoints) {
-            final ByteBuf buf = ctx.alloc().buffer();
-            buf.writeByte(MAGIC_NUMBER_FORWARD_ENDPOINTS);
-            buf.writeBytes(((ForwardEndpoints) msg.content()).getEndpoint().getAddress().getAddress());
-            buf.writeInt(((ForwardEndpoints) msg.content()).getEndpoint().getPort());
-
-            out.add(new DatagramPacket(buf, msg.recipient(), msg.sender()));
+        else {
+            out.add(new DatagramPacket(encodeControl(ctx, msg.content()), msg.recipient(), msg.sender()));
         }
-        else if (msg.content() instanceof ReachabilityCheck) {
-            final ByteBuf buf = ctx.alloc().buffer();
-            buf.writeByte(MAGIC_NUMBER_REACHABILITY_CHECK);
+    }
 
-            out.add(new DatagramPacket(buf, msg.recipient(), msg.sender()));
+    private static ByteBuf encodeControl(final ChannelHandlerContext ctx,
+                                         final TlsHolePunchingMessage msg) {
+        if (msg instanceof ConnectionRequest) {
+            final String targetPeerId = ((ConnectionRequest) msg).getTargetPeerId();
+            final ByteBuf buf = ctx.alloc().buffer(2 + ByteBufUtil.utf8Bytes(targetPeerId));
+            buf.writeByte(MAGIC_NUMBER_CONNECTION_REQUEST);
+            writePeerId(buf, targetPeerId);
+            return buf;
         }
-        else if (msg.content() instanceof Acknowledgement) {
-            final ByteBuf buf = ctx.alloc().buffer();
-            buf.writeByte(MAGIC_NUMBER_ACKNOWLEDGEMENT);
-
-            out.add(new DatagramPacket(buf, msg.recipient(), msg.sender()));
+        else if (msg instanceof ForwardEndpoints) {
+            final List<InetSocketAddress> endpoints = ((ForwardEndpoints) msg).getEndpoints();
+            final int portDelta = ((ForwardEndpoints) msg).getPortDelta();
+            if (endpoints.size() > 1 || portDelta != 0) {
+                final ByteBuf buf = ctx.alloc().buffer(1 + MAX_ENDPOINT_LENGTH * endpoints.size() + PORT_DELTA_LENGTH);
+                buf.writeByte(MAGIC_NUMBER_FORWARD_ENDPOINTS);
+                for (final InetSocketAddress endpoint : endpoints) {
+                    writeEndpoint(buf, endpoint);
+                }
+                writePortDelta(buf, portDelta);
+                return buf;
+            }
+            // a single endpoint is encoded as before, its address length follows from the message length
+            final InetSocketAddress endpoint = endpoints.get(0);
+            if (endpoint.getAddress() instanceof Inet4Address) {
+                final ByteBuf buf = ctx.alloc().buffer(9);
+                buf.writeByte(MAGIC_NUMBER_FORWARD_ENDPOINTS);
+                // Inet4Address#hashCode returns the address itself and, unlike getAddress(), does not allocate
+                buf.writeInt(endpoint.getAddress().hashCode());
+                buf.writeInt(endpoint.getPort());
+                return buf;
+            }
+            else {
+                final ByteBuf buf = ctx.alloc().buffer(21);
+                buf.writeByte(MAGIC_NUMBER_FORWARD_ENDPOINTS);
+                buf.writeBytes(endpoint.getAddress().getAddress());
+                buf.writeInt(endpoint.getPort());
+                return buf;
+            }
+        }
+        else if (msg instanceof ReachabilityCheck) {
+            return REACHABILITY_CHECK.retainedDuplicate();
+        }
+        else if (msg instanceof Acknowledgement) {
+            return ACKNOWLEDGEMENT.retainedDuplicate();
         }
-        else if (msg.content() instanceof Register) {
-            final ByteBuf buf = ctx.alloc().buffer();
+        else if (msg instanceof RelayOrigin) {
+            final ByteBuf buf = ctx.alloc().buffer(1 + MAX_ENDPOINT_LENGTH);
+            buf.writeByte(MAGIC_NUMBER_RELAY_ORIGIN);
+            writeEndpoint(buf, ((RelayOrigin) msg).getEndpoint());
+            return buf;
+        }
+        else if (msg instanceof BindingRequest) {
+            final int delay = ((BindingRequest) msg).getDelay();
+            if (delay == 0) {
+                return BINDING_REQUEST.retainedDuplicate();
+            }
+            final ByteBuf buf = ctx.alloc().buffer(BINDING_REQUEST_LENGTH);
+            buf.writeByte(MAGIC_NUMBER_BINDING_REQUEST);
+            buf.writeShort(delay);
+            buf.writeZero(BINDING_REQUEST_LENGTH - 3);
+            return buf;
+        }
+        else if (msg instanceof BindingResponse) {
+            final ByteBuf buf = ctx.alloc().buffer(1 + MAX_ENDPOINT_LENGTH);
+            buf.writeByte(MAGIC_NUMBER_BINDING_RESPONSE);
+            writeEndpoint(buf, ((BindingResponse) msg).getEndpoint());
+            return buf;
+        }
+        else if (msg instanceof Register) {
+            final String peerId = ((Register) msg).getPeerId();
+            final String contactId = ((Register) msg).getContactId();
+            final List<InetSocketAddress> candidates = ((Register) msg).getCandidates();
+            final int portDelta = ((Register) msg).getPortDelta();
+            final ByteBuf buf = ctx.alloc().buffer(3 + ByteBufUtil.utf8Bytes(peerId) + (contactId != null ? ByteBufUtil.utf8Bytes(contactId) : 0) + MAX_ENDPOINT_LENGTH * candidates.size() + PORT_DELTA_LENGTH);
             buf.writeByte(MAGIC_NUMBER_REGISTER);
-            buf.writeChar(((Register) msg.content()).getPeerId());
-
-            out.add(new DatagramPacket(buf, msg.recipient(), msg.sender()));
+            writePeerId(buf, peerId);
+            if (contactId != null || !candidates.isEmpty() || portDelta != 0) {
+                // optional, older servers ignore it. Empty if candidates follow without contact
+                writePeerId(buf, contactId != null ? contactId : "");
+            }
+            for (final InetSocketAddress candidate : candidates) {
+                writeEndpoint(buf, candidate);
+            }
+            writePortDelta(buf, portDelta);
+            return buf;
         }
         else {
-            throw new EncoderException("Unknown " + StringUtil.simpleClassName(TlsHolePunchingMessage.class) + " type: " + StringUtil.simpleClassName(msg.content()));
+            throw new EncoderException("Unknown " + StringUtil.simpleClassName(TlsHolePunchingMessage.class) + " type: " + StringUtil.simpleClassName(msg));
         }
     }
 
+    // magic number, number of control messages, length-prefixed control messages, optional QUIC packet
+    private static ByteBuf encodeBundle(final ChannelHandlerContext ctx,
+                                        final Bundle bundle) {
+        final ByteBuf buf = ctx.alloc().buffer();
+        buf.writeByte(MAGIC_NUMBER_BUNDLE);
+        buf.writeByte(bundle.getMessages().size());
+        for (final TlsHolePunchingMessage message : bundle.getMessages()) {
+            final ByteBuf encoded = encodeControl(ctx, message);
+            try {
+                buf.writeShort(encoded.readableBytes());
+                buf.writeBytes(encoded);
+            }
+            finally {
+                encoded.release();
+            }
+        }
+        if (bundle.getQuicMessage() == null) {
+            return buf;
+        }
+        // QUIC packet takes the rest of the datagram
+        return ctx.alloc().compositeDirectBuffer(2).addComponents(true, buf, bundle.getQuicMessage().getPacket().retain());
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public boolean acceptInboundMessage(final Object msg) {
@@ -92,55 +240,172 @@ public class TlsHolePunchingCodec extends MessageToMessageCodec<AddressedEnvelop
     protected void decode(final ChannelHandlerContext ctx,
                           final AddressedEnvelope<ByteBuf, InetSocketAddress> msg,
                           final List<Object> out) throws Exception {
-        msg.content().markReaderIndex();
-        final byte magicNumber = msg.content().readByte();
+        final ByteBuf content = msg.content();
+        final byte magicNumber = content.getByte(content.readerIndex());
+        if (magicNumber == MAGIC_NUMBER_BUNDLE) {
+            content.skipBytes(1);
+            final int count = content.readUnsignedByte();
+            for (int i = 0; i < count; i++) {
+                final int length = content.readUnsignedShort();
+                out.add(new DefaultAddressedEnvelope<>(decodeControl(content.readSlice(length)), msg.recipient(), msg.sender()));
+            }
+            if (content.isReadable()) {
+                decodeQuic(content, msg.recipient(), msg.sender(), out);
+            }
+        }
+        else if (isTlsHolePunchingMessage(magicNumber)) {
+            out.add(new DefaultAddressedEnvelope<>(decodeControl(content), msg.recipient(), msg.sender()));
+        }
+        else {
+            decodeQuic(content, msg.recipient(), msg.sender(), out);
+        }
+    }
+
+    private static TlsHolePunchingMessage decodeControl(final ByteBuf buf) throws UnknownHostException {
+        final byte magicNumber = buf.readByte();
         switch (magicNumber) {
             case MAGIC_NUMBER_CONNECTION_REQUEST:
-                out.add(new DefaultAddressedEnvelope<>(new ConnectionRequest(), msg.recipient(), msg.sender()));
-                break;
+                return new ConnectionRequest(readPeerId(buf));
             case MAGIC_NUMBER_FORWARD_ENDPOINTS:
-                final byte[] addressBuffer = new byte[4];
-                msg.content().readBytes(addressBuffer);
-                final InetAddress address = InetAddress.getByAddress(addressBuffer);
-                final int port = msg.content().readInt();
-                final InetSocketAddress endpoint = new InetSocketAddress(address, port);
-                out.add(new DefaultAddressedEnvelope<>(new ForwardEndpoints(endpoint), msg.recipient(), msg.sender()));
-                break;
+                // lists of 7 or 19 byte entries, optionally followed by a 3 byte port delta, never have the length of
+                // a single endpoint (8 or 20 bytes)
+                if (buf.readableBytes() == 8 || buf.readableBytes() == 20) {
+                    final InetAddress address = readAddress(buf, buf.readableBytes() - 4);
+                    final int port = buf.readInt();
+                    return new ForwardEndpoints(new InetSocketAddress(address, port));
+                }
+                final List<InetSocketAddress> endpoints = readEndpoints(buf, 1 + Register.MAX_CANDIDATES);
+                return new ForwardEndpoints(endpoints, readPortDelta(buf));
             case MAGIC_NUMBER_REACHABILITY_CHECK:
-                out.add(new DefaultAddressedEnvelope<>(new ReachabilityCheck(), msg.recipient(), msg.sender()));
-                break;
+                return ReachabilityCheck.INSTANCE;
             case MAGIC_NUMBER_ACKNOWLEDGEMENT:
-                out.add(new DefaultAddressedEnvelope<>(new Acknowledgement(), msg.recipient(), msg.sender()));
-                break;
+                return Acknowledgement.INSTANCE;
             case MAGIC_NUMBER_REGISTER:
-                final char peerId = msg.content().readChar();
-                out.add(new DefaultAddressedEnvelope<>(new Register(peerId), msg.recipient(), msg.sender()));
-                break;
+                final String peerId = readPeerId(buf);
+                final String contactId = buf.isReadable() ? readPeerId(buf) : "";
+                final List<InetSocketAddress> candidates = readEndpoints(buf, Register.MAX_CANDIDATES);
+                return new Register(peerId, contactId.isEmpty() ? null : contactId, candidates, readPortDelta(buf));
+            case MAGIC_NUMBER_BINDING_REQUEST:
+                if (buf.readableBytes() < BINDING_REQUEST_LENGTH - 1) {
+                    throw new DecoderException("Binding request without padding.");
+                }
+                final int delay = buf.readUnsignedShort();
+                if (delay > BindingRequest.MAX_DELAY) {
+                    throw new DecoderException("Unexpected binding response delay " + delay + ".");
+                }
+                return delay == 0 ? BindingRequest.INSTANCE : new BindingRequest(delay);
+            case MAGIC_NUMBER_BINDING_RESPONSE:
+                return new BindingResponse(readEndpoint(buf));
+            case MAGIC_NUMBER_RELAY_ORIGIN:
+                return new RelayOrigin(readEndpoint(buf));
             default:
-                // QUIC message
-                msg.content().resetReaderIndex();
-                headerParser.parse(msg.sender(), msg.recipient(), msg.content(), (sender, recipient, packet, type, version, scid, dcid, token) -> {
-                    // QUIC message
-                    switch (type) {
-                        case INITIAL:
-                        case HANDSHAKE:
-                        case VERSION_NEGOTIATION:
-                        case RETRY:
-                        case ZERO_RTT:
-//                            LOG.trace("[{} => {}]: {}, DCID={}, SCID={}", msg.sender(), msg.recipient(), type, ByteBufUtil.hexDump(dcid), ByteBufUtil.hexDump(scid));
-                            break;
-                        case SHORT:
-//                            LOG.trace("[{} => {}]: Protected Payload, DCID={}", msg.sender(), msg.recipient(), ByteBufUtil.hexDump(dcid));
-                            break;
-                        default:
-                            LOG.error("Unexpected type: {}", type);
-                            break;
-                    }
-
-                    final QuicMessage quicMessage = new QuicMessage(packet.retain(), type);
-                    out.add(new DefaultAddressedEnvelope<>(quicMessage, msg.recipient(), msg.sender()));
-                });
-                break;
+                throw new DecoderException("Unexpected magic number " + magicNumber + ".");
+        }
+    }
+
+    private void decodeQuic(final ByteBuf packet,
+                            final InetSocketAddress recipient,
+                            final InetSocketAddress sender,
+                            final List<Object> out) throws Exception {
+        if ((packet.getByte(packet.readerIndex()) & HEADER_FORM_LONG) == 0) {
+            // short header packets (1-RTT) carry no information we're interested in, no need to parse them
+            out.add(new DefaultAddressedEnvelope<>(new QuicMessage(packet.retainedSlice(), QuicPacketType.SHORT), recipient, sender));
+            return;
+        }
+        headerParser.parse(sender, recipient, packet, (s, r, p, type, version, scid, dcid, token) -> {
+            // QUIC message
+            switch (type) {
+                case INITIAL:
+                case HANDSHAKE:
+                case VERSION_NEGOTIATION:
+                case RETRY:
+                case ZERO_RTT:
+//                    LOG.trace("[{} => {}]: {}, DCID={}, SCID={}", s, r, type, ByteBufUtil.hexDump(dcid), ByteBufUtil.hexDump(scid));
+                    break;
+                case SHORT:
+//                    LOG.trace("[{} => {}]: Protected Payload, DCID={}", s, r, ByteBufUtil.hexDump(dcid));
+                    break;
+                default:
+                    LOG.error("Unexpected type: {}", type);
+                    break;
+            }
+
+            out.add(new DefaultAddressedEnvelope<>(new QuicMessage(packet.retainedSlice(), type), recipient, sender));
+        });
+    }
+
+    private static ByteBuf preEncoded(final byte magicNumber) {
+        return Unpooled.unreleasableBuffer(Unpooled.directBuffer(1, 1).writeByte(magicNumber));
+    }
+
+    private static InetAddress readAddress(final ByteBuf buf, final int length) throws UnknownHostException {
+        if (length != 4 && length != 16) {
+            throw new DecoderException("Unexpected address length " + length + ".");
+        }
+        final byte[] address = (length == 16 ? IPV6_ADDRESS_BUFFER : IPV4_ADDRESS_BUFFER).get();
+        buf.readBytes(address);
+        return InetAddress.getByAddress(address);
+    }
+
+    // address length (u8) | address | port (u16)
+    private static void writeEndpoint(final ByteBuf buf, final InetSocketAddress endpoint) {
+        final InetAddress address = endpoint.getAddress();
+        if (address instanceof Inet4Address) {
+            buf.writeByte(4);
+            // Inet4Address#hashCode returns the address itself and, unlike getAddress(), does not allocate
+            buf.writeInt(address.hashCode());
+        }
+        else {
+            buf.writeByte(16);
+            buf.writeBytes(address.getAddress());
         }
+        buf.writeShort(endpoint.getPort());
+    }
+
+    private static InetSocketAddress readEndpoint(final ByteBuf buf) throws UnknownHostException {
+        final InetAddress address = readAddress(buf, buf.readUnsignedByte());
+        return new InetSocketAddress(address, buf.readUnsignedShort());
+    }
+
+    // reads endpoints up to the end of buf or the port delta
+    private static List<InetSocketAddress> readEndpoints(final ByteBuf buf, final int maxEndpoints) throws UnknownHostException {
+        final List<InetSocketAddress> endpoints = new ArrayList<>();
+        while (buf.isReadable() && buf.getUnsignedByte(buf.readerIndex()) != PORT_DELTA_ENTRY) {
+            if (endpoints.size() == maxEndpoints) {
+                throw new DecoderException("More than " + maxEndpoints + " endpoints.");
+            }
+            endpoints.add(readEndpoint(buf));
+        }
+        return endpoints;
+    }
+
+    // optional last entry of an endpoint list, omitted if 0
+    private static void writePortDelta(final ByteBuf buf, final int portDelta) {
+        if (portDelta != 0) {
+            buf.writeByte(PORT_DELTA_ENTRY);
+            buf.writeShort(portDelta);
+        }
+    }
+
+    private static int readPortDelta(final ByteBuf buf) {
+        if (!buf.isReadable()) {
+            return 0;
+        }
+        buf.skipBytes(1);
+        final int portDelta = buf.readShort();
+        if (Math.abs(portDelta) > PortPrediction.MAX_PORT_DELTA) {
+            throw new DecoderException("Unexpected port delta " + portDelta + ".");
+        }
+        return portDelta;
+    }
+
+    private static void writePeerId(final ByteBuf buf, final String peerId) {
+        buf.writeByte(ByteBufUtil.utf8Bytes(peerId));
+        buf.writeCharSequence(peerId, UTF_8);
+    }
+
+    private static String readPeerId(final ByteBuf buf) {
+        final int length = buf.readUnsignedByte();
+        return buf.readCharSequence(length, UTF_8).toString();
     }
 }
@@ -0,0 +1,35 @@
+package de.uhh;
+
+import io.netty.channel.ChannelOutboundInvoker;
+
+/**
+ * Counts writes that have not been flushed yet. Forwarding handlers write without flushing and call
+ * {@link #flush(ChannelOutboundInvoker)} on {@code channelReadComplete}, so that all datagrams forwarded during a
+ * read batch leave the socket together. To bound latency and buffered memory, every
+ * {@link #MAX_WRITES_PER_FLUSH}th write is flushed immediately.
+ * <p>
+ * This class is not thread-safe and must only be used from the event loop of the written channel.
+ */
+class WriteBatch {
+    // matches the maximum number of segments of a single GSO send
+    static final int MAX_WRITES_PER_FLUSH = 64;
+    private int unflushedWrites;
+
+    void write(final ChannelOutboundInvoker out, final Object msg) {
+        out.write(msg);
+        if (++unflushedWrites >= MAX_WRITES_PER_FLUSH) {
+            flush(out);
+        }
+    }
+
+    void flush(final ChannelOutboundInvoker out) {
+        if (unflushedWrites > 0) {
+            unflushedWrites = 0;
+            out.flush();
+        }
+    }
+
+    boolean isEmpty() {
+        return unflushedWrites == 0;
+    }
+}
@@ -0,0 +1,18 @@
+package de.uhh;
+
+import org.junit.jupiter.api.Test;
+import picocli.CommandLine;
+
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class ActiveClientCommandTest {
+    @Test
+    void embeddedModeWithoutTrustedCertificateFailsAtStartup() {
+        assertNotEquals(0, new CommandLine(new ActiveClientCommand()).execute("--embedded", "--bind-port", "0"));
+    }
+
+    @Test
+    void trustedCertificateAndInsecureAreMutuallyExclusive() {
+        assertNotEquals(0, new CommandLine(new ActiveClientCommand()).execute("--embedded", "--bind-port", "0", "--trust-cert", "cert.pem", "--insecure"));
+    }
+}
@@ -0,0 +1,74 @@
+package de.uhh;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import picocli.CommandLine;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ConvertLogCommandTest {
+    private Path directory;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("convert-log");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (final Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    void convertedColumnarLogEqualsCsvLog() throws IOException {
+        final Path input = directory.resolve("log.bin");
+        final Path output = directory.resolve("log.csv");
+        final StringBuilder expected = new StringBuilder(CsvLogger.csvHeader(CsvLogger.LONG_COLUMNS, CsvLogger.STRING_COLUMNS));
+        try (final OutputStream out = new FileOutputStream(input.toFile());
+             final ColumnarLog.Writer writer = new ColumnarLog.Writer(out, CsvLogger.LONG_COLUMNS, CsvLogger.STRING_COLUMNS)) {
+            // several blocks, so that strings of earlier blocks are referenced again
+            for (int block = 0; block < 3; block++) {
+                final List<long[]> longs = new ArrayList<>();
+                final List<String[]> strings = new ArrayList<>();
+                for (int row = 0; row < 5; row++) {
+                    longs.add(row(block * 5 + row));
+                    strings.add(new String[]{ "/192.0.2.1:" + (5000 + row % 2), "/[2001:db8::" + block + "]:4433", "/192.0.2.10:8012" });
+                }
+                writer.writeBlock(longs, strings);
+                for (int row = 0; row < longs.size(); row++) {
+                    CsvLogger.appendCsv(expected, longs.get(row), strings.get(row));
+                }
+            }
+        }
+
+        assertEquals(0, new CommandLine(new ConvertLogCommand()).execute("--input", input.toString(), "--output", output.toString()));
+
+        assertEquals(expected.toString(), Files.readString(output, UTF_8));
+    }
+
+    // values that go up and down, are negative and use every varint length
+    private static long[] row(final int i) {
+        final long[] longs = new long[CsvLogger.LONG_COLUMNS.length];
+        longs[0] = 1_700_000_000_000L + i * 1_234L;
+        longs[1] = i % 2;
+        for (int column = 2; column < longs.length; column++) {
+            longs[column] = i % 3 == 0 ? -1 : (long) Math.pow(7, column) * (i % 4) - column;
+        }
+        longs[longs.length - 1] = i == 7 ? Long.MAX_VALUE : i == 8 ? Long.MIN_VALUE : longs[longs.length - 1];
+        return longs;
+    }
+}
@@ -0,0 +1,56 @@
+package de.uhh;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DuplicateFilterTest {
+    @Test
+    void copiesOfAPacketAreDropped() {
+        final DuplicateFilter filter = new DuplicateFilter(4);
+        assertTrue(filter.add(packet(1)));
+        assertTrue(filter.add(packet(2)));
+        assertFalse(filter.add(packet(1)));
+        assertFalse(filter.add(packet(2)));
+    }
+
+    @Test
+    void packetIsNotConsumed() {
+        final DuplicateFilter filter = new DuplicateFilter(4);
+        final ByteBuf packet = packet(1);
+        filter.add(packet);
+        assertEquals(0, packet.readerIndex());
+        assertEquals(3, packet.readableBytes());
+    }
+
+    @Test
+    void oldestPacketIsForgottenWhenTheRingWrapsAround() {
+        final DuplicateFilter filter = new DuplicateFilter(3);
+        assertTrue(filter.add(packet(1)));
+        assertTrue(filter.add(packet(2)));
+        assertTrue(filter.add(packet(3)));
+        assertTrue(filter.add(packet(4)));
+
+        // 1 has been overwritten by 4, and now overwrites 2
+        assertTrue(filter.add(packet(1)));
+        assertTrue(filter.add(packet(2)));
+        assertFalse(filter.add(packet(4)));
+        assertFalse(filter.add(packet(1)));
+        assertFalse(filter.add(packet(2)));
+        assertTrue(filter.add(packet(3)));
+    }
+
+    @Test
+    void capacityMustBePositive() {
+        assertThrows(IllegalArgumentException.class, () -> new DuplicateFilter(0));
+    }
+
+    private static ByteBuf packet(final int id) {
+        return Unpooled.wrappedBuffer(new byte[]{ 0x40, 0, (byte) id });
+    }
+}
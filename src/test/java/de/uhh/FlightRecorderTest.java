@@ -0,0 +1,98 @@
+package de.uhh;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class FlightRecorderTest {
+    private static final InetSocketAddress LOCAL = new InetSocketAddress("192.0.2.1", 8010);
+    private static final InetSocketAddress REMOTE = new InetSocketAddress("198.51.100.2", 4433);
+    private static final int PCAP_HEADER_LENGTH = 24;
+    private static final int IPV4_UDP_HEADER_LENGTH = 28;
+
+    @Test
+    void ringKeepsTheLastDatagramsAsPcap() throws IOException {
+        final FlightRecorder recorder = new FlightRecorder(2, null);
+        final EmbeddedChannel channel = new EmbeddedChannel(recorder.newHandler()) {
+            @Override
+            protected SocketAddress localAddress0() {
+                return LOCAL;
+            }
+        };
+        try {
+            // the first datagram is overwritten by the third
+            channel.writeInbound(new DatagramPacket(Unpooled.wrappedBuffer(datagram(1, 50)), LOCAL, REMOTE));
+            channel.writeOutbound(new DatagramPacket(Unpooled.wrappedBuffer(datagram(2, 10)), REMOTE, LOCAL));
+            channel.writeInbound(new DatagramPacket(Unpooled.wrappedBuffer(datagram(3, 1200)), LOCAL, REMOTE));
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            recorder.writePcap(out);
+            final ByteBuffer pcap = ByteBuffer.wrap(out.toByteArray());
+
+            assertEquals(0xa1b23c4d, pcap.getInt(0));
+            assertEquals(101, pcap.getInt(20)); // LINKTYPE_RAW
+            pcap.position(PCAP_HEADER_LENGTH);
+            assertRecord(pcap, LOCAL, REMOTE, datagram(2, 10));
+            assertRecord(pcap, REMOTE, LOCAL, datagram(3, 1200));
+            assertFalse(pcap.hasRemaining());
+        }
+        finally {
+            channel.finishAndReleaseAll();
+            recorder.close();
+        }
+    }
+
+    private static void assertRecord(final ByteBuffer pcap,
+                                     final InetSocketAddress src,
+                                     final InetSocketAddress dst,
+                                     final byte[] datagram) {
+        final int captured = Math.min(FlightRecorder.SNAP_LENGTH, datagram.length);
+        pcap.position(pcap.position() + 8); // timestamp
+        assertEquals(IPV4_UDP_HEADER_LENGTH + captured, pcap.getInt());
+        assertEquals(IPV4_UDP_HEADER_LENGTH + datagram.length, pcap.getInt());
+
+        final byte[] ipHeader = new byte[20];
+        pcap.get(ipHeader);
+        assertEquals(0x45, ipHeader[0]);
+        assertEquals(IPV4_UDP_HEADER_LENGTH + datagram.length, ((ipHeader[2] & 0xFF) << 8) | (ipHeader[3] & 0xFF));
+        assertEquals(17, ipHeader[9]);
+        assertArrayEquals(src.getAddress().getAddress(), Arrays.copyOfRange(ipHeader, 12, 16));
+        assertArrayEquals(dst.getAddress().getAddress(), Arrays.copyOfRange(ipHeader, 16, 20));
+        // one's complement sum over a header with valid checksum
+        int sum = 0;
+        for (int i = 0; i < ipHeader.length; i += 2) {
+            sum += ((ipHeader[i] & 0xFF) << 8) | (ipHeader[i + 1] & 0xFF);
+        }
+        while ((sum >> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        }
+        assertEquals(0xFFFF, sum);
+
+        assertEquals(src.getPort(), pcap.getShort() & 0xFFFF);
+        assertEquals(dst.getPort(), pcap.getShort() & 0xFFFF);
+        assertEquals(8 + datagram.length, pcap.getShort() & 0xFFFF);
+        pcap.getShort(); // checksum
+        final byte[] prefix = new byte[captured];
+        pcap.get(prefix);
+        assertArrayEquals(Arrays.copyOf(datagram, captured), prefix);
+    }
+
+    private static byte[] datagram(final int id, final int length) {
+        final byte[] datagram = new byte[length];
+        for (int i = 0; i < length; i++) {
+            datagram[i] = (byte) (id + i);
+        }
+        return datagram;
+    }
+}
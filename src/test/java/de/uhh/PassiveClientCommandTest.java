@@ -0,0 +1,254 @@
+package de.uhh;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.AddressedEnvelope;
+import io.netty.channel.DefaultAddressedEnvelope;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.incubator.codec.quic.QuicPacketType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PassiveClientCommandTest {
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+    private DatagramSocket server;
+    private DatagramSocket quicServer;
+    private DatagramSocket peerA;
+    private DatagramSocket peerB;
+    private Thread client;
+    private InetSocketAddress clientEndpoint;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = socket();
+        quicServer = socket();
+        peerA = socket();
+        peerB = socket();
+        client = new Thread(() -> new CommandLine(new PassiveClientCommand()).execute(
+                "--bind-host", LOOPBACK.getHostAddress(),
+                "--bind-port", "0",
+                "--server-host", LOOPBACK.getHostAddress(),
+                "--server-port", String.valueOf(server.getLocalPort()),
+                "--target-host", LOOPBACK.getHostAddress(),
+                "--target-port", String.valueOf(quicServer.getLocalPort())
+        ));
+        client.start();
+
+        // the client registers right away
+        final DatagramPacket register = receive(server);
+        assertTrue(decode(register) instanceof Register);
+        clientEndpoint = (InetSocketAddress) register.getSocketAddress();
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        client.interrupt();
+        client.join();
+        server.close();
+        quicServer.close();
+        peerA.close();
+        peerB.close();
+    }
+
+    @Test
+    void relayedPacketsOfConcurrentPeersAreNotMixedUp() throws IOException {
+        // both requests are answered before any packet is relayed
+        send(server, new ForwardEndpoints(endpointOf(peerA)));
+        send(server, new ForwardEndpoints(endpointOf(peerB)));
+
+        relay(peerA, initial(0xA1, connectionId(0xA0, 8), connectionId(0xA2, 8)));
+        relay(peerB, initial(0xB1, connectionId(0xB0, 8), connectionId(0xB2, 8)));
+        final int upstreamA = upstreamOf(0xA1);
+        final int upstreamB = upstreamOf(0xB1);
+        assertNotEquals(upstreamA, upstreamB);
+
+        // retransmitted Initials are relayed without origin
+        send(server, initial(0xB3, connectionId(0xB0, 8), connectionId(0xB2, 8)));
+        send(server, initial(0xA3, connectionId(0xA0, 8), connectionId(0xA2, 8)));
+        assertEquals(upstreamB, upstreamOf(0xB3));
+        assertEquals(upstreamA, upstreamOf(0xA3));
+
+        // QUIC server answers with its connection ids, the QUIC clients use them from now on
+        answer(upstreamA, initial(0xA4, connectionId(0xA2, 8), connectionId(0xA5, 20)));
+        answer(upstreamB, initial(0xB4, connectionId(0xB2, 8), connectionId(0xB5, 20)));
+        assertEquals(0xA4, quicPacketAt(peerA));
+        assertEquals(0xB4, quicPacketAt(peerB));
+
+        send(server, shortHeader(0xB6, connectionId(0xB5, 20)));
+        send(server, shortHeader(0xA6, connectionId(0xA5, 20)));
+        send(server, shortHeader(0xB7, connectionId(0xB5, 20)));
+        assertEquals(upstreamB, upstreamOf(0xB6));
+        assertEquals(upstreamA, upstreamOf(0xA6));
+        assertEquals(upstreamB, upstreamOf(0xB7));
+    }
+
+    @Test
+    void relayedPacketWithUnknownConnectionIdIsDroppedIfPeerIsAmbiguous() throws IOException {
+        send(server, new ForwardEndpoints(endpointOf(peerA)));
+        send(server, shortHeader(0xA1, connectionId(0xA0, 20)));
+        upstreamOf(0xA1);
+
+        send(server, new ForwardEndpoints(endpointOf(peerB)));
+        send(server, shortHeader(0xA2, connectionId(0xA0, 20)));
+        // a packet with origin is still delivered, the one before it was not
+        relay(peerB, initial(0xB1, connectionId(0xB0, 8), connectionId(0xB2, 8)));
+        upstreamOf(0xB1);
+    }
+
+    @Test
+    void racingCopiesAreWrittenOnceWhileThePathIsChecked() throws IOException {
+        send(server, new ForwardEndpoints(endpointOf(peerA)));
+
+        // direct copy is held back until the acknowledgement
+        send(peerA, shortHeader(0xA1, connectionId(0xA0, 20)));
+        relay(peerA, shortHeader(0xA1, connectionId(0xA0, 20)));
+        // relayed copy is written right away
+        relay(peerA, shortHeader(0xA2, connectionId(0xA0, 20)));
+        send(peerA, shortHeader(0xA2, connectionId(0xA0, 20)));
+        assertEquals(0xA2, upstreamIdAt());
+
+        acknowledge(peerA);
+        send(peerA, shortHeader(0xA3, connectionId(0xA0, 20)));
+        assertEquals(0xA1, upstreamIdAt());
+        assertEquals(0xA3, upstreamIdAt());
+    }
+
+    @Test
+    void racingCopiesAreWrittenOnceOnAnAcknowledgedPath() throws IOException {
+        send(server, new ForwardEndpoints(endpointOf(peerA)));
+        acknowledge(peerA);
+
+        send(peerA, shortHeader(0xA1, connectionId(0xA0, 20)));
+        relay(peerA, shortHeader(0xA1, connectionId(0xA0, 20)));
+        relay(peerA, shortHeader(0xA2, connectionId(0xA0, 20)));
+        send(peerA, shortHeader(0xA2, connectionId(0xA0, 20)));
+        send(peerA, shortHeader(0xA3, connectionId(0xA0, 20)));
+        assertEquals(0xA1, upstreamIdAt());
+        assertEquals(0xA2, upstreamIdAt());
+        assertEquals(0xA3, upstreamIdAt());
+    }
+
+    private static DatagramSocket socket() throws IOException {
+        final DatagramSocket socket = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0));
+        socket.setSoTimeout(5_000);
+        return socket;
+    }
+
+    private static InetSocketAddress endpointOf(final DatagramSocket socket) {
+        return (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+
+    private static DatagramPacket receive(final DatagramSocket socket) throws IOException {
+        final DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+        socket.receive(packet);
+        return packet;
+    }
+
+    // sends msg from socket to the client under test
+    private void send(final DatagramSocket socket, final TlsHolePunchingMessage msg) throws IOException {
+        final EmbeddedChannel codec = new EmbeddedChannel(new TlsHolePunchingCodec());
+        codec.writeOutbound(new DefaultAddressedEnvelope<>(msg, clientEndpoint));
+        final io.netty.channel.socket.DatagramPacket packet = codec.readOutbound();
+        final byte[] bytes = ByteBufUtil.getBytes(packet.content());
+        packet.release();
+        codec.finishAndReleaseAll();
+        socket.send(new DatagramPacket(bytes, bytes.length, clientEndpoint));
+    }
+
+    // relays packet from peer via the rendezvous server, like the server does for packets off its fast path
+    private void relay(final DatagramSocket peer, final QuicMessage packet) throws IOException {
+        send(server, new Bundle(new RelayOrigin(endpointOf(peer)), packet));
+    }
+
+    // acknowledges the path of peer and waits until the client has processed it
+    private void acknowledge(final DatagramSocket peer) throws IOException {
+        send(peer, Acknowledgement.INSTANCE);
+        send(peer, ReachabilityCheck.INSTANCE);
+        DatagramPacket packet;
+        do {
+            packet = receive(peer);
+        } while (!(decode(packet) instanceof Acknowledgement));
+    }
+
+    private void answer(final int upstreamPort, final QuicMessage packet) throws IOException {
+        final byte[] bytes = ByteBufUtil.getBytes(packet.getPacket());
+        packet.getPacket().release();
+        quicServer.send(new DatagramPacket(bytes, bytes.length, new InetSocketAddress(LOOPBACK, upstreamPort)));
+    }
+
+    private static TlsHolePunchingMessage decode(final DatagramPacket packet) {
+        final EmbeddedChannel codec = new EmbeddedChannel(new TlsHolePunchingCodec());
+        codec.writeInbound(new io.netty.channel.socket.DatagramPacket(Unpooled.wrappedBuffer(packet.getData(), 0, packet.getLength()), (InetSocketAddress) packet.getSocketAddress()));
+        final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> msg = codec.readInbound();
+        codec.finishAndReleaseAll();
+        return msg.content();
+    }
+
+    // receives the QUIC packet id at the QUIC server and returns the port of the upstream socket it came from
+    private int upstreamOf(final int id) throws IOException {
+        final DatagramPacket packet = receive(quicServer);
+        assertEquals(id, lastByteOf(packet));
+        return packet.getPort();
+    }
+
+    // id of the next QUIC packet peer receives, skipping the reachability checks of the client
+    // id of the next QUIC packet received at the QUIC server
+    private int upstreamIdAt() throws IOException {
+        return lastByteOf(receive(quicServer));
+    }
+
+    private static int quicPacketAt(final DatagramSocket peer) throws IOException {
+        DatagramPacket packet;
+        do {
+            packet = receive(peer);
+        } while (TlsHolePunchingCodec.isTlsHolePunchingMessage(packet.getData()[0]));
+        return lastByteOf(packet);
+    }
+
+    private static int lastByteOf(final DatagramPacket packet) {
+        return packet.getData()[packet.getLength() - 1] & 0xFF;
+    }
+
+    private static byte[] connectionId(final int value, final int length) {
+        final byte[] connectionId = new byte[length];
+        for (int i = 0; i < length; i++) {
+            connectionId[i] = (byte) (value + i);
+        }
+        return connectionId;
+    }
+
+    private static QuicMessage initial(final int id, final byte[] dcid, final byte[] scid) {
+        final ByteBuf packet = Unpooled.buffer();
+        packet.writeByte(0xC0); // long header, Initial, 1 byte packet number
+        packet.writeInt(1); // version
+        packet.writeByte(dcid.length).writeBytes(dcid);
+        packet.writeByte(scid.length).writeBytes(scid);
+        packet.writeByte(0); // token length
+        packet.writeByte(2); // length
+        packet.writeByte(0); // packet number
+        packet.writeByte(id);
+        return new QuicMessage(packet, QuicPacketType.INITIAL);
+    }
+
+    private static QuicMessage shortHeader(final int id, final byte[] dcid) {
+        final ByteBuf packet = Unpooled.buffer();
+        packet.writeByte(0x40); // short header, 1 byte packet number
+        packet.writeBytes(dcid);
+        packet.writeByte(0); // packet number
+        packet.writeByte(id);
+        return new QuicMessage(packet, QuicPacketType.SHORT);
+    }
+}
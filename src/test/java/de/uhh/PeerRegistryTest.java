@@ -0,0 +1,124 @@
+package de.uhh;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class PeerRegistryTest {
+    @Test
+    void registrationIsFoundByIdAndEndpoint() {
+        final PeerRegistry registry = new PeerRegistry(16, 60, SECONDS);
+        final InetSocketAddress endpointA = new InetSocketAddress("192.0.2.1", 4433);
+        final InetSocketAddress endpointB = new InetSocketAddress("192.0.2.2", 4433);
+
+        final int a = registry.register("a", endpointA);
+        final int b = registry.register("b", endpointB);
+
+        assertEquals(2, registry.size());
+        assertEquals(a, registry.slotOf("a"));
+        assertEquals(a, registry.slotOf(endpointA));
+        assertEquals(b, registry.slotOf("b"));
+        assertEquals(b, registry.slotOf(endpointB));
+        assertEquals("a", registry.peerId(a));
+        assertEquals(endpointA, registry.endpoint(a));
+        assertEquals(endpointB, registry.endpoint(b));
+        assertEquals(PeerRegistry.NO_SLOT, registry.slotOf("c"));
+        assertEquals(PeerRegistry.NO_SLOT, registry.slotOf(new InetSocketAddress("192.0.2.1", 4434)));
+    }
+
+    @Test
+    void refreshWithNewEndpointMovesRegistration() {
+        final PeerRegistry registry = new PeerRegistry(16, 60, SECONDS);
+        final InetSocketAddress oldEndpoint = new InetSocketAddress("192.0.2.1", 4433);
+        final InetSocketAddress newEndpoint = new InetSocketAddress("192.0.2.1", 5533);
+
+        final int slot = registry.register("a", oldEndpoint);
+        assertEquals(slot, registry.register("a", newEndpoint));
+
+        assertEquals(1, registry.size());
+        assertEquals(PeerRegistry.NO_SLOT, registry.slotOf(oldEndpoint));
+        assertEquals(slot, registry.slotOf(newEndpoint));
+        assertEquals(newEndpoint, registry.endpoint(slot));
+    }
+
+    @Test
+    void removalsKeepOtherEntriesOfProbeSequencesReachable() {
+        // crowded indexes, so that removals happen within clusters and entries have to be shifted back
+        final PeerRegistry registry = new PeerRegistry(16, 60, SECONDS);
+        final int peers = 999;
+        for (int i = 0; i < peers; i++) {
+            registry.register("peer-" + i, endpoint(i));
+        }
+        for (int i = 0; i < peers; i += 3) {
+            // NAT has reused the mapping for another peer, removes peer-i from both indexes
+            registry.register("successor-" + i, endpoint(i));
+            // NAT has assigned a new mapping, removes peer-i+1 from the endpoint index
+            registry.register("peer-" + (i + 1), endpoint(peers + i + 1));
+        }
+
+        assertEquals(peers, registry.size());
+        for (int i = 0; i < peers; i++) {
+            final String peerId = i % 3 == 0 ? "successor-" + i : "peer-" + i;
+            final InetSocketAddress endpoint = i % 3 == 1 ? endpoint(peers + i) : endpoint(i);
+            final int slot = registry.slotOf(peerId);
+            assertNotEquals(PeerRegistry.NO_SLOT, slot, peerId);
+            assertEquals(slot, registry.slotOf(endpoint), peerId);
+            assertEquals(endpoint, registry.endpoint(slot), peerId);
+            if (i % 3 == 0) {
+                assertEquals(PeerRegistry.NO_SLOT, registry.slotOf("peer-" + i), "peer-" + i);
+            }
+            else if (i % 3 == 1) {
+                assertEquals(PeerRegistry.NO_SLOT, registry.slotOf(endpoint(i)), "peer-" + i);
+            }
+        }
+    }
+
+    @Test
+    void fullRegistryGrowsAndReusesFreedSlots() {
+        final PeerRegistry registry = new PeerRegistry(16, 60, SECONDS);
+        for (int i = 0; i < 16; i++) {
+            registry.register("peer-" + i, endpoint(i));
+        }
+        // beyond the initial capacity
+        final int slot = registry.register("peer-16", endpoint(16));
+        assertEquals(17, registry.size());
+        for (int i = 0; i <= 16; i++) {
+            assertEquals(registry.slotOf("peer-" + i), registry.slotOf(endpoint(i)), "peer-" + i);
+        }
+
+        // replaces peer-16
+        assertEquals(slot, registry.register("peer-17", endpoint(16)));
+        assertEquals(17, registry.size());
+        assertEquals("peer-17", registry.peerId(slot));
+        assertEquals(PeerRegistry.NO_SLOT, registry.slotOf("peer-16"));
+    }
+
+    @Test
+    void entriesExpireOnceTheirTtlHasElapsedSinceTheLastRefresh() throws InterruptedException {
+        final PeerRegistry registry = new PeerRegistry(16, 400, MILLISECONDS);
+        registry.register("a", endpoint(1));
+        registry.register("b", endpoint(2));
+        assertEquals(0, registry.expire());
+
+        Thread.sleep(200);
+        registry.register("a", endpoint(1));
+        Thread.sleep(300 + registry.tickMillis());
+        // b expired 100ms ago, a expires in 100ms
+        assertEquals(1, registry.expire());
+        assertEquals(PeerRegistry.NO_SLOT, registry.slotOf("b"));
+        assertNotEquals(PeerRegistry.NO_SLOT, registry.slotOf("a"));
+
+        Thread.sleep(200 + registry.tickMillis());
+        assertEquals(1, registry.expire());
+        assertEquals(0, registry.size());
+    }
+
+    private static InetSocketAddress endpoint(final int i) {
+        return new InetSocketAddress("10.0." + (i / 250) + "." + (i % 250 + 1), 1024 + i);
+    }
+}
@@ -0,0 +1,90 @@
+package de.uhh;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PortPredictionTest {
+    private static final InetSocketAddress PRIMARY = new InetSocketAddress("192.0.2.10", 8012);
+    private static final InetSocketAddress SECONDARY = new InetSocketAddress("192.0.2.10", 8013);
+
+    @Test
+    void portDeltaIsTheDifferenceOfBothMappings() {
+        final PortPrediction prediction = new PortPrediction(PRIMARY, SECONDARY.getPort(), new RttEstimator(0));
+        assertFalse(prediction.bindingResponse(PRIMARY, mapping("198.51.100.1", 5000)));
+        assertTrue(prediction.bindingResponse(SECONDARY, mapping("198.51.100.1", 5002)));
+        assertEquals(2, prediction.portDelta());
+
+        // unchanged delta needs no new registration, no matter which response comes first
+        assertFalse(prediction.bindingResponse(SECONDARY, mapping("198.51.100.1", 6002)));
+        assertFalse(prediction.bindingResponse(PRIMARY, mapping("198.51.100.1", 6000)));
+        assertEquals(2, prediction.portDelta());
+    }
+
+    @Test
+    void portDeltaMayBeNegative() {
+        final PortPrediction prediction = new PortPrediction(PRIMARY, SECONDARY.getPort(), new RttEstimator(0));
+        prediction.bindingResponse(PRIMARY, mapping("198.51.100.1", 5000));
+        assertTrue(prediction.bindingResponse(SECONDARY, mapping("198.51.100.1", 4999)));
+        assertEquals(-1, prediction.portDelta());
+    }
+
+    @Test
+    void unpredictableMappingsHaveNoPortDelta() {
+        final PortPrediction prediction = new PortPrediction(PRIMARY, SECONDARY.getPort(), new RttEstimator(0));
+        prediction.bindingResponse(PRIMARY, mapping("198.51.100.1", 5000));
+        prediction.bindingResponse(SECONDARY, mapping("198.51.100.1", 5000 + PortPrediction.MAX_PORT_DELTA));
+        assertEquals(PortPrediction.MAX_PORT_DELTA, prediction.portDelta());
+
+        // random port allocation
+        prediction.bindingResponse(PRIMARY, mapping("198.51.100.1", 5000));
+        assertTrue(prediction.bindingResponse(SECONDARY, mapping("198.51.100.1", 5001 + PortPrediction.MAX_PORT_DELTA)));
+        assertEquals(0, prediction.portDelta());
+
+        // address pool
+        prediction.bindingResponse(PRIMARY, mapping("198.51.100.1", 5000));
+        prediction.bindingResponse(SECONDARY, mapping("198.51.100.2", 5001));
+        assertEquals(0, prediction.portDelta());
+
+        // endpoint-independent mapping
+        prediction.bindingResponse(PRIMARY, mapping("198.51.100.1", 5000));
+        prediction.bindingResponse(SECONDARY, mapping("198.51.100.1", 5000));
+        assertEquals(0, prediction.portDelta());
+    }
+
+    @Test
+    void responsesFromOtherEndpointsAreIgnored() {
+        final PortPrediction prediction = new PortPrediction(PRIMARY, SECONDARY.getPort(), new RttEstimator(0));
+        prediction.bindingResponse(PRIMARY, mapping("198.51.100.1", 5000));
+        assertFalse(prediction.bindingResponse(new InetSocketAddress("192.0.2.11", 8013), mapping("198.51.100.1", 5002)));
+        assertEquals(0, prediction.portDelta());
+    }
+
+    @Test
+    void predictedPortsFollowTheDelta() {
+        final InetSocketAddress endpoint = new InetSocketAddress("198.51.100.1", 5000);
+        assertEquals(List.of(endpoint(5002), endpoint(5004), endpoint(5006)), PortPrediction.predict(endpoint, 2, 3));
+        assertEquals(List.of(endpoint(4999), endpoint(4998)), PortPrediction.predict(endpoint, -1, 2));
+        assertEquals(List.of(), PortPrediction.predict(endpoint, 0, 3));
+    }
+
+    @Test
+    void predictedPortsStayWithinThePortRange() {
+        assertEquals(List.of(endpoint(65533), endpoint(65535)), PortPrediction.predict(endpoint(65531), 2, 5));
+        assertEquals(List.of(endpoint(2), endpoint(1)), PortPrediction.predict(endpoint(3), -1, 5));
+        assertEquals(List.of(), PortPrediction.predict(endpoint(65535), 1, 5));
+    }
+
+    private static BindingResponse mapping(final String address, final int port) {
+        return new BindingResponse(new InetSocketAddress(address, port));
+    }
+
+    private static InetSocketAddress endpoint(final int port) {
+        return new InetSocketAddress("198.51.100.1", port);
+    }
+}
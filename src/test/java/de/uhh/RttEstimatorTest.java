@@ -0,0 +1,38 @@
+package de.uhh;
+
+import org.junit.jupiter.api.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RttEstimatorTest {
+    @Test
+    void seededEstimatorStartsWithTheEstimateOfItsSeed() {
+        final RttEstimator server = new RttEstimator(MILLISECONDS.toNanos(500));
+        server.sample(MILLISECONDS.toNanos(40));
+        final RttEstimator peer = new RttEstimator(server);
+        assertEquals(server.rto(), peer.rto());
+        assertEquals(server.srtt(), peer.srtt());
+    }
+
+    @Test
+    void seededEstimatorDoesNotChangeItsSeed() {
+        final RttEstimator server = new RttEstimator(MILLISECONDS.toNanos(500));
+        server.sample(MILLISECONDS.toNanos(40));
+        final long serverRto = server.rto();
+        final RttEstimator peer = new RttEstimator(server);
+        for (int i = 0; i < 10; i++) {
+            peer.sample(MILLISECONDS.toNanos(400));
+        }
+        assertEquals(serverRto, server.rto());
+        assertTrue(peer.rto() > serverRto);
+    }
+
+    @Test
+    void unsampledSeedPassesOnItsInitialRto() {
+        final RttEstimator peer = new RttEstimator(new RttEstimator(MILLISECONDS.toNanos(500)));
+        assertEquals(MILLISECONDS.toNanos(500), peer.rto());
+        assertEquals(0, peer.srtt());
+    }
+}
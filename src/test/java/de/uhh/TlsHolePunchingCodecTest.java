@@ -0,0 +1,142 @@
+package de.uhh;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.AddressedEnvelope;
+import io.netty.channel.DefaultAddressedEnvelope;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.incubator.codec.quic.QuicPacketType;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TlsHolePunchingCodecTest {
+    private static final InetSocketAddress SENDER = new InetSocketAddress("192.0.2.1", 4433);
+    private static final InetSocketAddress RECIPIENT = new InetSocketAddress("192.0.2.2", 4433);
+
+    @Test
+    void magicNumbersAreNoShortHeaderPackets() {
+        for (int firstByte = 0x40; firstByte <= 0x7F; firstByte++) {
+            // magic numbers of the original messages are kept for compatibility
+            if (firstByte < TlsHolePunchingCodec.MAGIC_NUMBER_CONNECTION_REQUEST || firstByte > TlsHolePunchingCodec.MAGIC_NUMBER_REGISTER) {
+                assertFalse(TlsHolePunchingCodec.isTlsHolePunchingMessage((byte) firstByte), "first byte " + firstByte);
+            }
+        }
+    }
+
+    @Test
+    void shortHeaderPacketIsDecodedAsQuicMessage() {
+        final EmbeddedChannel channel = new EmbeddedChannel(new TlsHolePunchingCodec());
+        try {
+            final byte[] packet = { 0x6A, 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+            assertTrue(channel.writeInbound(new DatagramPacket(Unpooled.wrappedBuffer(packet), RECIPIENT, SENDER)));
+
+            final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> msg = channel.readInbound();
+            try {
+                final QuicMessage quicMessage = assertInstanceOf(QuicMessage.class, msg.content());
+                assertEquals(QuicPacketType.SHORT, quicMessage.getType());
+                assertEquals(Unpooled.wrappedBuffer(packet), quicMessage.getPacket());
+                assertEquals(SENDER, msg.sender());
+            }
+            finally {
+                msg.release();
+            }
+            assertNull(channel.readInbound());
+        }
+        finally {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    void bindingMessagesAreDecoded() {
+        final EmbeddedChannel channel = new EmbeddedChannel(new TlsHolePunchingCodec());
+        try {
+            assertTrue(channel.writeOutbound(new DefaultAddressedEnvelope<>(BindingRequest.INSTANCE, RECIPIENT, SENDER)));
+            assertTrue(channel.writeOutbound(new DefaultAddressedEnvelope<>(new BindingResponse(SENDER), SENDER, RECIPIENT)));
+            assertTrue(channel.writeInbound((DatagramPacket) channel.readOutbound()));
+            assertTrue(channel.writeInbound((DatagramPacket) channel.readOutbound()));
+
+            final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> request = channel.readInbound();
+            assertSame(BindingRequest.INSTANCE, request.content());
+            final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> response = channel.readInbound();
+            assertEquals(SENDER, assertInstanceOf(BindingResponse.class, response.content()).getEndpoint());
+        }
+        finally {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    void bundleIsDecodedIntoItsMessages() {
+        final EmbeddedChannel channel = new EmbeddedChannel(new TlsHolePunchingCodec());
+        try {
+            assertTrue(channel.writeOutbound(new DefaultAddressedEnvelope<>(new Bundle(Acknowledgement.INSTANCE, ReachabilityCheck.INSTANCE), RECIPIENT, SENDER)));
+            final DatagramPacket datagram = channel.readOutbound();
+            assertEquals(TlsHolePunchingCodec.MAGIC_NUMBER_BUNDLE, datagram.content().getByte(0));
+            assertTrue(channel.writeInbound(datagram));
+
+            final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> first = channel.readInbound();
+            final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> second = channel.readInbound();
+            assertSame(Acknowledgement.INSTANCE, first.content());
+            assertSame(ReachabilityCheck.INSTANCE, second.content());
+            assertNull(channel.readInbound());
+        }
+        finally {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    void bundleWithQuicPacketIsDecodedIntoItsMessages() {
+        final EmbeddedChannel channel = new EmbeddedChannel(new TlsHolePunchingCodec());
+        try {
+            final ByteBuf packet = Unpooled.wrappedBuffer(new byte[]{ 0x6A, 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+            assertTrue(channel.writeOutbound(new DefaultAddressedEnvelope<>(new Bundle(ReachabilityCheck.INSTANCE, new QuicMessage(packet, QuicPacketType.SHORT)), RECIPIENT, SENDER)));
+            assertTrue(channel.writeInbound((DatagramPacket) channel.readOutbound()));
+
+            final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> first = channel.readInbound();
+            assertSame(ReachabilityCheck.INSTANCE, first.content());
+            final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> second = channel.readInbound();
+            try {
+                final QuicMessage quicMessage = assertInstanceOf(QuicMessage.class, second.content());
+                assertEquals(QuicPacketType.SHORT, quicMessage.getType());
+                assertEquals(Unpooled.wrappedBuffer(new byte[]{ 0x6A, 1, 2, 3, 4, 5, 6, 7, 8, 9 }), quicMessage.getPacket());
+            }
+            finally {
+                second.release();
+            }
+        }
+        finally {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    void ipv6EndpointsAreDecoded() {
+        final EmbeddedChannel channel = new EmbeddedChannel(new TlsHolePunchingCodec());
+        try {
+            final InetSocketAddress endpoint = new InetSocketAddress("2001:db8::1", 4433);
+            assertTrue(channel.writeOutbound(new DefaultAddressedEnvelope<>(new Bundle(List.of(new ForwardEndpoints(endpoint), new RelayOrigin(endpoint)), null), RECIPIENT, SENDER)));
+            assertTrue(channel.writeInbound((DatagramPacket) channel.readOutbound()));
+
+            final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> first = channel.readInbound();
+            final AddressedEnvelope<TlsHolePunchingMessage, InetSocketAddress> second = channel.readInbound();
+            assertEquals(endpoint, assertInstanceOf(ForwardEndpoints.class, first.content()).getEndpoint());
+            assertEquals(endpoint, assertInstanceOf(RelayOrigin.class, second.content()).getEndpoint());
+            assertNull(channel.readInbound());
+        }
+        finally {
+            channel.finishAndReleaseAll();
+        }
+    }
+}